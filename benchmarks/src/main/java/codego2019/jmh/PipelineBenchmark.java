@@ -0,0 +1,98 @@
+package codego2019.jmh;
+
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+import java.util.function.Supplier;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * JMH benchmarks of the stages of a run, one pass over the part of the input a stage works on per invocation.
+ * The stages are those of {@code --mode=benchmark}, taken from {@code CodeGo2019.benchmarkStages}. This class
+ * reaches them by reflection once per trial, because CodeGo2019 lives in the unnamed package, which JMH does not
+ * allow for benchmarks, and classes of a package cannot name. The setup of every pass, such as building a manager
+ * with all its stock for the allocation, runs outside of the measurement.
+ *
+ * <p>Scores are per pass; the number of operations of a pass, for a time per order or per line, is printed when
+ * a trial starts. Run from the repository root, on the sample or on a generated input:
+ * <pre>
+ * mvn -B package
+ * java -jar benchmarks/target/benchmarks.jar -p input=input001.txt
+ * java -jar app/target/codego2019-1.0-SNAPSHOT.jar --mode=generate --input=input001.txt --output=big.txt
+ *         --orders=1000000 --items=100000
+ * java -jar benchmarks/target/benchmarks.jar -p input=big.txt -p stage=ShipmentsManager.findBestShipmentInfo(Order)
+ * </pre>
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PipelineBenchmark {
+
+    @Param("input001.txt")
+    public String input;
+
+    @Param({
+            "CsvParser.parseOrder",
+            "CsvParser.parseStock",
+            "CsvParser.parseItem",
+            "CsvParser.parseBoxType",
+            "CsvParser.parseCarrierPricings",
+            "CsvParser.parseDepartureTime",
+            "CsvParser.parseCarrierTime",
+            "CsvParser.readInput (per line)",
+            "FastCsvReader.readInput (per line)",
+            "BoxTypeRepository.findByItem",
+            "ItemRepository.findById",
+            "CarrierPricingRepository.findByWarehouseAndState",
+            "StockRepository.findByItemIdAndWareHouse",
+            "ShipmentsManager.findBestShipmentInfo(Order)",
+            "sort orders by date",
+            "sort shipment infos by order date",
+            "ShipmentInfo.toCsvLine",
+            "CsvLineEncoder.encode"
+    })
+    public String stage;
+
+    private Supplier<LongSupplier> setup;
+    private LongSupplier pass;
+
+    @Setup(Level.Trial)
+    @SuppressWarnings("unchecked")
+    public void loadStage() throws ReflectiveOperationException {
+        Class<?> tool = Class.forName("CodeGo2019");
+        Map<String, Supplier<LongSupplier>> stages = (Map<String, Supplier<LongSupplier>>) tool
+                .getMethod("benchmarkStages", String.class).invoke(null, input);
+        setup = stages.get(stage);
+        if (setup == null) {
+            throw new IllegalArgumentException("Unknown stage " + stage + ", expected one of " + stages.keySet());
+        }
+        Map<String, Integer> operations = (Map<String, Integer>) tool
+                .getMethod("benchmarkOperations", String.class).invoke(null, input);
+        System.out.println(stage + ": " + operations.get(stage) + " operations per pass over " + input);
+    }
+
+    @Setup(Level.Invocation)
+    public void preparePass() {
+        pass = setup.get();
+    }
+
+    @Benchmark
+    public long pass() {
+        return pass.getAsLong();
+    }
+}
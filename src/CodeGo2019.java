@@ -1,11 +1,21 @@
 import java.io.*;
+import java.math.*;
+import java.net.*;
+import java.nio.*;
+import java.nio.channels.*;
+import java.nio.charset.*;
+import java.nio.file.*;
 import java.text.*;
 import java.time.*;
 import java.time.format.*;
 import java.time.temporal.*;
+import java.time.zone.*;
 import java.util.*;
 import java.util.Map.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 import java.util.function.*;
+import java.util.zip.*;
 import java.util.stream.*;
 
 public class CodeGo2019 {
@@ -15,18 +25,33 @@ public class CodeGo2019 {
     static final DateTimeFormatter DATE_PATTERN = DateTimeFormatter.ofPattern("uuuu-MM-dd HH:mm");
     static final DecimalFormat DECIMAL_FORMAT = new DecimalFormat("#.000");
 
-    static final Float EXPERIENCE_PRICE_BY_HOUR = 0.03f;
-
-    static enum Warehouse {
-        NEW_YORK(-4),
-        SAN_FRANCISCO(-7);
-
-        private Integer timeZoneOffset;
-
-        Warehouse(int timeZoneOffset) {
-            this.timeZoneOffset = timeZoneOffset;
+    static final float EXPERIENCE_PRICE_BY_HOUR = 0.03f;
+
+    /**
+     * A warehouse, with its time zone and its index in the {@link Warehouses} of its input, so per-warehouse data
+     * lives in arrays indexed by {@link #index()}. New York and San Francisco are shared by every input, with the
+     * fixed offsets the allocation has always used.
+     */
+    static final class Warehouse {
+        static final Warehouse NEW_YORK = new Warehouse(0, "New York", ZoneOffset.ofHours(-4));
+        static final Warehouse SAN_FRANCISCO = new Warehouse(1, "San Francisco", ZoneOffset.ofHours(-7));
+
+        private final int index;
+        private final String name;
+        private final byte[] nameBytes;
+        private final ZoneTransitions zone;
+
+        private Warehouse(int index, String name, ZoneId zoneId) {
+            this.index = index;
+            this.name = name;
+            this.nameBytes = name.getBytes(StandardCharsets.UTF_8);
+            this.zone = ZoneTransitions.of(zoneId);
         }
 
+        /**
+         * @return New York or San Francisco by name, or null; the other warehouses of an input are found in its
+         * {@link Warehouses}
+         */
         static Warehouse fromName(String input) {
             switch (input) {
                 case "New York":
@@ -38,17 +63,179 @@ public class CodeGo2019 {
         }
 
         public String toName() {
-            switch (this) {
-                case NEW_YORK:
-                    return "New York";
-                case SAN_FRANCISCO:
-                    return "San Francisco";
+            return name;
+        }
+
+        byte[] nameBytes() {
+            return nameBytes;
+        }
+
+        public int index() {
+            return index;
+        }
+
+        public ZoneTransitions getZone() {
+            return zone;
+        }
+
+        @Override
+        public String toString() {
+            return name;
+        }
+    }
+
+    /**
+     * The warehouses of an input, numbered densely: New York and San Francisco, then the warehouses of a
+     * {@code ---Warehouses---} section at the start of the input, which can also give one of the first two a real
+     * time zone. Each input has its own, so loading an input never changes the warehouses of another one or of the
+     * managers built from it. A table is filled by the reader of its input, and only read afterwards.
+     */
+    static final class Warehouses {
+        private Warehouse[] warehouses = {Warehouse.NEW_YORK, Warehouse.SAN_FRANCISCO};
+
+        /**
+         * Adds a warehouse, or changes the time zone of the warehouse of that name, which must happen before
+         * anything of the input refers to it.
+         */
+        Warehouse register(String name, ZoneId zoneId) {
+            Warehouse existing = fromName(name);
+            if (existing != null && existing.zone.zoneId.equals(zoneId)) {
+                return existing;
+            }
+            int index = existing != null ? existing.index : warehouses.length;
+            if (index == warehouses.length) {
+                warehouses = Arrays.copyOf(warehouses, index + 1);
+            }
+            warehouses[index] = new Warehouse(index, name, zoneId);
+            return warehouses[index];
+        }
+
+        /**
+         * @return the warehouses by index, an array that must not be modified
+         */
+        Warehouse[] values() {
+            return warehouses;
+        }
+
+        int count() {
+            return warehouses.length;
+        }
+
+        Warehouse fromName(String input) {
+            for (Warehouse warehouse : warehouses) {
+                if (warehouse.name.equals(input)) {
+                    return warehouse;
+                }
             }
             return null;
         }
+    }
+
+    /**
+     * The UTC offsets of a time zone as a table of periods, precomputed from {@link ZoneRules} between 1900 and
+     * 2200, so that finding the offset at an epoch minute is a binary search over longs, or nothing at all for
+     * fixed offsets.
+     */
+    static final class ZoneTransitions {
+        private static final long FIRST_EPOCH_SECOND = LocalDateTime.of(1900, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+        private static final long LAST_EPOCH_SECOND = LocalDateTime.of(2200, 1, 1, 0, 0).toEpochSecond(ZoneOffset.UTC);
+
+        final ZoneId zoneId;
+        // epoch minute at which every period starts, the first one from the beginning of time
+        final long[] starts;
+        // index of the offset of every period in offsetMinutes
+        final int[] offsetIndexes;
+        // the distinct offsets of the zone, in minutes
+        final int[] offsetMinutes;
+
+        private ZoneTransitions(ZoneId zoneId, long[] starts, int[] offsetIndexes, int[] offsetMinutes) {
+            this.zoneId = zoneId;
+            this.starts = starts;
+            this.offsetIndexes = offsetIndexes;
+            this.offsetMinutes = offsetMinutes;
+        }
+
+        static ZoneTransitions of(ZoneId zoneId) {
+            ZoneRules rules = zoneId.getRules();
+            List<Long> starts = new ArrayList<>();
+            List<Integer> offsets = new ArrayList<>();
+            starts.add(Long.MIN_VALUE);
+            offsets.add(rules.getOffset(Instant.ofEpochSecond(FIRST_EPOCH_SECOND)).getTotalSeconds() / 60);
+            if (!rules.isFixedOffset()) {
+                ZoneOffsetTransition transition = rules.nextTransition(Instant.ofEpochSecond(FIRST_EPOCH_SECOND));
+                while (transition != null && transition.toEpochSecond() < LAST_EPOCH_SECOND) {
+                    starts.add(Math.floorDiv(transition.toEpochSecond(), 60));
+                    offsets.add(transition.getOffsetAfter().getTotalSeconds() / 60);
+                    transition = rules.nextTransition(transition.getInstant());
+                }
+            }
+            int[] offsetMinutes = offsets.stream().mapToInt(Integer::intValue).distinct().toArray();
+            int[] offsetIndexes = new int[offsets.size()];
+            for (int period = 0; period < offsetIndexes.length; period++) {
+                for (int i = 0; i < offsetMinutes.length; i++) {
+                    if (offsetMinutes[i] == offsets.get(period)) {
+                        offsetIndexes[period] = i;
+                    }
+                }
+            }
+            return new ZoneTransitions(zoneId, starts.stream().mapToLong(Long::longValue).toArray(), offsetIndexes,
+                    offsetMinutes);
+        }
 
-        public Integer getTimeZoneOffset() {
-            return timeZoneOffset;
+        int periodOf(long epochMinute) {
+            if (starts.length == 1) {
+                return 0;
+            }
+            int index = Arrays.binarySearch(starts, epochMinute);
+            return index >= 0 ? index : -index - 2;
+        }
+
+        int offsetMinutesAt(long epochMinute) {
+            return offsetMinutes[offsetIndexes[periodOf(epochMinute)]];
+        }
+    }
+
+    /**
+     * Timestamps as minutes since 1970-01-01T00:00, the time zone being the one of the orders.
+     */
+    static class EpochMinutes {
+        static final int MINUTES_PER_DAY = 24 * 60;
+        static final int MINUTES_PER_WEEK = 7 * MINUTES_PER_DAY;
+        // 1970-01-01 was a Thursday
+        private static final int EPOCH_MINUTE_OF_WEEK = 3 * MINUTES_PER_DAY;
+
+        static long of(LocalDateTime dateTime) {
+            return Math.floorDiv(dateTime.toEpochSecond(ZoneOffset.UTC), 60);
+        }
+
+        static LocalDateTime toLocalDateTime(long epochMinute) {
+            return LocalDateTime.ofEpochSecond(epochMinute * 60, 0, ZoneOffset.UTC);
+        }
+
+        /**
+         * Same as {@code of(LocalDateTime.of(year, month, day, hour, minute))} without creating any object.
+         */
+        static long of(int year, int month, int day, int hour, int minute) {
+            if (month < 1 || month > 12 || day < 1 || day > 28 && day > YearMonth.of(year, month).lengthOfMonth()
+                    || hour > 23 || minute > 59) {
+                // let java.time report the invalid field
+                return of(LocalDateTime.of(year, month, day, hour, minute));
+            }
+            // days from civil, shifting the year to start in March so that the leap day comes last
+            int y = month <= 2 ? year - 1 : year;
+            int era = Math.floorDiv(y, 400);
+            int yearOfEra = y - era * 400;
+            int dayOfYear = (153 * (month + (month > 2 ? -3 : 9)) + 2) / 5 + day - 1;
+            int dayOfEra = yearOfEra * 365 + yearOfEra / 4 - yearOfEra / 100 + dayOfYear;
+            long epochDay = era * 146097L + dayOfEra - 719468;
+            return epochDay * MINUTES_PER_DAY + hour * 60 + minute;
+        }
+
+        /**
+         * @return the minute of the week, starting on Monday 00:00
+         */
+        static int minuteOfWeek(long epochMinute) {
+            return (int) Math.floorMod(epochMinute + EPOCH_MINUTE_OF_WEEK, (long) MINUTES_PER_WEEK);
         }
     }
 
@@ -249,14 +436,21 @@ public class CodeGo2019 {
 
     static class Order {
         final long orderId;
-        final LocalDateTime orderDate;
+        final long orderEpochMinute;
         final String itemId;
+        // only written back with rejects, null when not kept, as in an OrderBook
+        final String city;
         final String targetState;
 
-        Order(long orderId, LocalDateTime orderDate, String itemId, String targetState) {
+        Order(long orderId, LocalDateTime orderDate, String itemId, String city, String targetState) {
+            this(orderId, EpochMinutes.of(orderDate), itemId, city, targetState);
+        }
+
+        Order(long orderId, long orderEpochMinute, String itemId, String city, String targetState) {
             this.orderId = orderId;
             this.itemId = itemId;
-            this.orderDate = orderDate;
+            this.orderEpochMinute = orderEpochMinute;
+            this.city = city;
             this.targetState = targetState;
         }
 
@@ -265,7 +459,11 @@ public class CodeGo2019 {
         }
 
         public LocalDateTime getOrderDate() {
-            return orderDate;
+            return EpochMinutes.toLocalDateTime(orderEpochMinute);
+        }
+
+        public long getOrderEpochMinute() {
+            return orderEpochMinute;
         }
 
         public String getItemId() {
@@ -281,17 +479,24 @@ public class CodeGo2019 {
     static class ShipmentInfo {
         final Order order;
         final Warehouse warehouse;
-        final LocalDateTime guaranteedDeliveryDate;
+        final long guaranteedDeliveryEpochMinute;
         final String boxType;
         final float shippingPrice;
+        final float shippingExperiencePrice;
 
         ShipmentInfo(Order order, Warehouse warehouse, LocalDateTime guaranteedDeliveryDate, String boxType,
                      float shippingPrice) {
+            this(order, warehouse, EpochMinutes.of(guaranteedDeliveryDate), boxType, shippingPrice);
+        }
+
+        ShipmentInfo(Order order, Warehouse warehouse, long guaranteedDeliveryEpochMinute, String boxType,
+                     float shippingPrice) {
             this.order = order;
             this.warehouse = warehouse;
-            this.guaranteedDeliveryDate = guaranteedDeliveryDate;
+            this.guaranteedDeliveryEpochMinute = guaranteedDeliveryEpochMinute;
             this.boxType = boxType;
             this.shippingPrice = shippingPrice;
+            this.shippingExperiencePrice = experiencePrice(order.orderEpochMinute, guaranteedDeliveryEpochMinute);
         }
 
         public Order getOrder() {
@@ -307,7 +512,11 @@ public class CodeGo2019 {
         }
 
         public LocalDateTime getGuaranteedDeliveryDate() {
-            return guaranteedDeliveryDate;
+            return EpochMinutes.toLocalDateTime(guaranteedDeliveryEpochMinute);
+        }
+
+        public long getGuaranteedDeliveryEpochMinute() {
+            return guaranteedDeliveryEpochMinute;
         }
 
         public String getBoxType() {
@@ -320,17 +529,24 @@ public class CodeGo2019 {
 
         public String toCsvLine() {
             return new StringBuilder().append(order.orderId).append(SEMICOLON).append(warehouse.toName())
-                    .append(SEMICOLON).append(DATE_PATTERN.format(guaranteedDeliveryDate)).append(SEMICOLON)
+                    .append(SEMICOLON).append(DATE_PATTERN.format(getGuaranteedDeliveryDate())).append(SEMICOLON)
                     .append(boxType).append(SEMICOLON).append(DECIMAL_FORMAT.format(shippingPrice)).append(SEMICOLON)
                     .append(DECIMAL_FORMAT.format(getShippingExperiencePrice())).toString();
         }
 
-        public Float getShippingExperiencePrice() {
-            long hours = order.orderDate.until(guaranteedDeliveryDate, ChronoUnit.HOURS);
+        public float getShippingExperiencePrice() {
+            return shippingExperiencePrice;
+        }
+
+        /**
+         * Whole hours between order and delivery, truncated like {@code LocalDateTime.until(..., HOURS)}.
+         */
+        static float experiencePrice(long orderEpochMinute, long guaranteedDeliveryEpochMinute) {
+            long hours = (guaranteedDeliveryEpochMinute - orderEpochMinute) / 60;
             return hours * EXPERIENCE_PRICE_BY_HOUR;
         }
 
-        public Float getTotalPrice() {
+        public float getTotalPrice() {
             return getShippingPrice() + getShippingExperiencePrice();
         }
 
@@ -341,12 +557,16 @@ public class CodeGo2019 {
         public static final Order parseOrder(String inputLine) {
             String[] input = inputLine.split(SEMICOLON);
             LocalDateTime orderDate = LocalDateTime.parse(input[1], DATE_PATTERN);
-            return new Order(Long.valueOf(input[0]), orderDate, input[2], input[4]);
+            return new Order(Long.valueOf(input[0]), orderDate, input[2], input[3], input[4]);
         }
 
         public static final Stock parseStock(String inputLine) {
+            return parseStock(inputLine, Warehouse::fromName);
+        }
+
+        static Stock parseStock(String inputLine, Function<String, Warehouse> warehouses) {
             String[] input = inputLine.split(SEMICOLON);
-            return new Stock(input[0], Warehouse.fromName(input[1]), Integer.valueOf(input[2]));
+            return new Stock(input[0], warehouses.apply(input[1]), Integer.valueOf(input[2]));
         }
 
         public static final BoxType parseBoxType(String inputLine) {
@@ -356,15 +576,23 @@ public class CodeGo2019 {
         }
 
         public static final CarrierPricing parseCarrierPricings(String inputLine) {
+            return parseCarrierPricings(inputLine, Warehouse::fromName);
+        }
+
+        static CarrierPricing parseCarrierPricings(String inputLine, Function<String, Warehouse> warehouses) {
             String[] input = inputLine.split(SEMICOLON);
             String costString = input[2];
-            return new CarrierPricing(Warehouse.fromName(input[0]), input[1],
+            return new CarrierPricing(warehouses.apply(input[0]), input[1],
                     Float.valueOf(costString.replaceAll(",", ".")));
         }
 
         public static final DepartureTime parseDepartureTime(String inputLine) {
+            return parseDepartureTime(inputLine, Warehouse::fromName);
+        }
+
+        static DepartureTime parseDepartureTime(String inputLine, Function<String, Warehouse> warehouses) {
             String[] input = inputLine.split(SEMICOLON);
-            Warehouse warehouse = Warehouse.fromName(input[0]);
+            Warehouse warehouse = warehouses.apply(input[0]);
 
             String departureTimes[] = input[2].split(COLON);
             List<ShippingHour> shippingHours = Arrays.stream(departureTimes).map(new Function<String, ShippingHour>() {
@@ -381,8 +609,12 @@ public class CodeGo2019 {
         }
 
         public static final CarrierTime parseCarrierTime(String inputLine) {
+            return parseCarrierTime(inputLine, Warehouse::fromName);
+        }
+
+        static CarrierTime parseCarrierTime(String inputLine, Function<String, Warehouse> warehouses) {
             String[] input = inputLine.split(SEMICOLON);
-            return new CarrierTime(Warehouse.fromName(input[0]), input[1], Integer.valueOf(input[2].split(" ")[0]));
+            return new CarrierTime(warehouses.apply(input[0]), input[1], Integer.valueOf(input[2].split(" ")[0]));
         }
 
         public static final Item parseItem(String inputLine) {
@@ -390,309 +622,6042 @@ public class CodeGo2019 {
             return new Item(input[0], Integer.valueOf(input[2]), Integer.valueOf(input[3]), Integer.valueOf(input[4]),
                     Integer.valueOf(input[5]));
         }
+
+        static Warehouse parseWarehouse(String inputLine, Warehouses warehouses) {
+            String[] input = inputLine.split(SEMICOLON);
+            return warehouses.register(input[0], ZoneId.of(input[1]));
+        }
+
+        public static final InputData readInput(String path) throws IOException {
+            InputData data = new InputData();
+            Function<String, Warehouse> warehouses = data.warehouses::fromName;
+            Consumer<String> stockConsumer = input -> data.stocks.add(parseStock(input, warehouses));
+            Consumer<String> boxTypeConsumer = input -> data.boxTypes.add(parseBoxType(input));
+            Consumer<String> carrierPricingConsumer = input ->
+                    data.carrierPricings.add(parseCarrierPricings(input, warehouses));
+            Consumer<String> departureTimeConsumer = input ->
+                    data.departureTimes.add(parseDepartureTime(input, warehouses));
+            Consumer<String> carrierTimeConsumer = input -> data.carrierTimes.add(parseCarrierTime(input, warehouses));
+            Consumer<String> itemConsumer = input -> data.items.add(parseItem(input));
+            Consumer<String> orderConsumer = input -> data.orders.add(parseOrder(input));
+            Consumer<String> warehouseConsumer = input -> parseWarehouse(input, data.warehouses);
+
+            // UTF-8 like FastCsvReader, whatever the platform charset, so both read the same cities
+            try (BufferedReader br = new BufferedReader(new InputStreamReader(new FileInputStream(path),
+                    StandardCharsets.UTF_8))) {
+                String inputLine;
+                Consumer<String> consumer = t -> {
+                };
+                while ((inputLine = br.readLine()) != null) {
+                    switch (inputLine) {
+                        case "---Orders---":
+                            consumer = orderConsumer;
+                            break;
+                        case "---Stocks---":
+                            consumer = stockConsumer;
+                            break;
+                        case "---BoxTypes---":
+                            consumer = boxTypeConsumer;
+                            break;
+                        case "---CarrierPricing---":
+                            consumer = carrierPricingConsumer;
+                            break;
+                        case "---DepartureTimes---":
+                            consumer = departureTimeConsumer;
+                            break;
+                        case "---CarrierTimes---":
+                            consumer = carrierTimeConsumer;
+                            break;
+                        case "---Items---":
+                            consumer = itemConsumer;
+                            break;
+                        case "---Warehouses---":
+                            consumer = warehouseConsumer;
+                            break;
+                        default:
+                            consumer.accept(inputLine);
+                            break;
+                    }
+                }
+            }
+            return data;
+        }
     }
 
-    static class ShipmentsManager {
+    /**
+     * The sections of an input file: the reference data followed by the orders.
+     */
+    static class InputData {
+        final Warehouses warehouses = new Warehouses();
+        final List<Stock> stocks = new ArrayList<>();
+        final List<BoxType> boxTypes = new ArrayList<>();
+        final List<CarrierPricing> carrierPricings = new ArrayList<>();
+        final List<DepartureTime> departureTimes = new ArrayList<>();
+        final List<CarrierTime> carrierTimes = new ArrayList<>();
+        final List<Item> items = new ArrayList<>();
+        final List<Order> orders = new ArrayList<>();
+        // box of every item when loaded from a snapshot, null otherwise
+        List<BoxType> boxAssignments;
+        // cost entries when loaded from a snapshot that has them, null otherwise
+        CatalogSnapshot.CostMatrix costMatrix;
+
+        ShipmentsManager newShipmentsManager() {
+            return newShipmentsManager(ShipmentsManager.ShippingCostCache.AUTO_CAPACITY);
+        }
 
-        final Integer PACKAGE_PREPARATION_HOURS = 4;
+        ShipmentsManager newShipmentsManager(int costCacheCapacity) {
+            return new ShipmentsManager(items, boxTypes, carrierPricings, departureTimes, carrierTimes, stocks,
+                    costCacheCapacity, boxAssignments, costMatrix);
+        }
+    }
 
-        static class NoSuitableBoxException extends RuntimeException {
-            private static final long serialVersionUID = 7513400494522133911L;
+    /**
+     * Streaming reader for the sectioned input format. Lines are tokenized straight from a reusable byte buffer
+     * filled from a channel, so files of any size can be read, and numbers, comma-decimal floats and
+     * {@code uuuu-MM-dd HH:mm} timestamps are parsed without intermediate Strings. Repeated ids and state codes
+     * are interned, so only their first occurrence allocates a String. {@link CsvParser} remains the reference
+     * implementation.
+     */
+    static class FastCsvReader implements Closeable {
+
+        enum Section {
+            WAREHOUSES("---Warehouses---"),
+            STOCKS("---Stocks---"),
+            BOX_TYPES("---BoxTypes---"),
+            CARRIER_PRICING("---CarrierPricing---"),
+            DEPARTURE_TIMES("---DepartureTimes---"),
+            CARRIER_TIMES("---CarrierTimes---"),
+            ITEMS("---Items---"),
+            ORDERS("---Orders---");
+
+            final byte[] header;
+
+            Section(String header) {
+                this.header = header.getBytes(StandardCharsets.US_ASCII);
+            }
+        }
 
-            public NoSuitableBoxException(String itemId) {
-                super("There is no suitable for item " + itemId);
+        static final int DEFAULT_BUFFER_SIZE = 1 << 20;
+
+        // every power of ten up to 10^10 is exact in a float, as is every mantissa below 2^24, so their
+        // quotient is correctly rounded and equals Float.valueOf
+        private static final float[] FLOAT_POWERS_OF_TEN = {1e0f, 1e1f, 1e2f, 1e3f, 1e4f, 1e5f, 1e6f, 1e7f, 1e8f,
+                1e9f, 1e10f};
+        private static final byte[][] DAY_NAMES = Arrays.stream(DayOfWeek.values())
+                .map(day -> day.name().getBytes(StandardCharsets.US_ASCII)).toArray(byte[][]::new);
+
+        private final ReadableByteChannel channel;
+        private final ByteStringInterner strings = new ByteStringInterner();
+        // the warehouses warehouse fields resolve to, those of the input being read
+        private Warehouses warehouses = new Warehouses();
+        private byte[] buffer;
+        private int limit;
+        private int next;
+        private boolean endOfInput;
+        private int lineStart, lineEnd;
+        private int cursor;
+
+        FastCsvReader(ReadableByteChannel channel, int bufferSize) {
+            this.channel = channel;
+            this.buffer = new byte[bufferSize];
+        }
+
+        static InputData readInput(String path) throws IOException {
+            InputData input = new InputData();
+            try (FastCsvReader reader = new FastCsvReader(FileChannel.open(Paths.get(path)), DEFAULT_BUFFER_SIZE)) {
+                reader.readInto(input);
             }
+            return input;
         }
 
-        static class NoSuitableWarehouseException extends RuntimeException {
-            private static final long serialVersionUID = 7513400494522133911L;
+        void readInto(InputData input) throws IOException {
+            readUntil(null, input);
+        }
 
-            public NoSuitableWarehouseException(String itemId, String targetState) {
-                super("There is no warehouse with stock and deliver options for item " + itemId + " and target state "
-                        + targetState);
+        /**
+         * Reads sections into the input until the header of the given section, which is consumed. With a null
+         * input the sections are skipped.
+         *
+         * @return whether the header was found before the end of the input
+         */
+        boolean readUntil(Section stop, InputData input) throws IOException {
+            if (input != null) {
+                warehouses = input.warehouses;
+            }
+            Section section = null;
+            while (nextLine()) {
+                Section header = header();
+                if (header != null) {
+                    if (header == stop) {
+                        return true;
+                    }
+                    section = header;
+                } else if (section != null && lineEnd > lineStart && input != null) {
+                    switch (section) {
+                        case WAREHOUSES:
+                            parseWarehouse();
+                            break;
+                        case STOCKS:
+                            input.stocks.add(parseStock());
+                            break;
+                        case BOX_TYPES:
+                            input.boxTypes.add(parseBoxType());
+                            break;
+                        case CARRIER_PRICING:
+                            input.carrierPricings.add(parseCarrierPricing());
+                            break;
+                        case DEPARTURE_TIMES:
+                            input.departureTimes.add(parseDepartureTime());
+                            break;
+                        case CARRIER_TIMES:
+                            input.carrierTimes.add(parseCarrierTime());
+                            break;
+                        case ITEMS:
+                            input.items.add(parseItem());
+                            break;
+                        case ORDERS:
+                            input.orders.add(parseOrder());
+                            break;
+                    }
+                }
             }
+            return false;
         }
 
-        private final CarrierPricingRepository carrierPricingRepository;
-        private final BoxTypeRepository boxTypeRepository;
-        private final ItemRepository itemRepository;
-        private final DepartureTimeRepository departureTimeRepository;
-        private final CarrierTimeRepository carrierTimeRepository;
-        private final StockRepository stockRepository;
+        /**
+         * @return the current line as a String, for the rare lines that are not data
+         */
+        String line() {
+            return text(lineStart, lineEnd);
+        }
 
-        public ShipmentsManager(List<Item> items, List<BoxType> boxTypes, List<CarrierPricing> carrierPricings,
-                                List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes, List<Stock> initialStocks) {
-            carrierPricingRepository = new CarrierPricingRepository(carrierPricings);
-            boxTypeRepository = new BoxTypeRepository(boxTypes);
-            itemRepository = new ItemRepository(items);
-            departureTimeRepository = new DepartureTimeRepository(departureTimes);
-            carrierTimeRepository = new CarrierTimeRepository(carrierTimes);
-            stockRepository = new StockRepository(initialStocks);
+        boolean startsWithLetter() {
+            if (lineEnd == lineStart) {
+                return false;
+            }
+            byte first = buffer[lineStart];
+            return (first >= 'A' && first <= 'Z') || (first >= 'a' && first <= 'z');
         }
 
-        public ShipmentInfo findBestShipmentInfo(Order order) {
-            ShipmentInfo shipmentInfo = stockRepository.getStocks().stream().filter(stock ->
-                    stock.getItemId().equals(order.getItemId()) && stock.getStock() > 0
-            ).map(stock -> {
-                Item item = itemRepository.findById(order.getItemId()).orElseThrow(IllegalStateException::new);
-                BoxType boxType = boxTypeRepository.findByItem(item);
-                CarrierPricing carrierPricing = carrierPricingRepository
-                        .findByWarehouseAndState(stock.getWarehouse(), order.getTargetState())
-                        .orElseThrow(IllegalStateException::new);
-                Float carrierPrice = carrierPricing.getVolumePrice() * boxType.getVolume();
-
-                DepartureTime departureTime = departureTimeRepository
-                        .findByWarehouseAndState(stock.getWarehouse(), order.getTargetState())
-                        .orElseThrow(IllegalStateException::new);
-                LocalDateTime preparedPackageInWarehouseTimeZoneDate = order.getOrderDate()
-                        .plusHours(PACKAGE_PREPARATION_HOURS)
-                        .plusHours(stock.getWarehouse().getTimeZoneOffset());
-                LocalDateTime departureDate = departureTime.getShippingHours().stream()
-                        .map(shippingHour ->
-                                ((preparedPackageInWarehouseTimeZoneDate.getHour() < shippingHour.getTime().getHour()) ?
-                                        preparedPackageInWarehouseTimeZoneDate.with(TemporalAdjusters.nextOrSame(shippingHour.getDay())) :
-                                        preparedPackageInWarehouseTimeZoneDate.with(TemporalAdjusters.next(shippingHour.getDay())))
-                                        .with(LocalTime.of(shippingHour.getTime().getHour(), shippingHour.getTime().getMinute()))
-                                        .minusHours(stock.getWarehouse().getTimeZoneOffset()))
-                        .min(LocalDateTime::compareTo)
-                        .orElseThrow(IllegalStateException::new);
-                CarrierTime carrierTime = carrierTimeRepository
-                        .findByWarehouseAndState(stock.getWarehouse(), order.getTargetState())
-                        .orElseThrow(IllegalStateException::new);
-                LocalDateTime guaranteedDeliveryDate = departureDate.plusHours(carrierTime.getCarrierTime());
-                return new ShipmentInfo(order, stock.warehouse, guaranteedDeliveryDate, boxType.getBoxType(), carrierPrice);
-            }).min((si1, si2) -> {
-                int compareTotalPrice = Float.compare(
-                        si1.shippingPrice + si1.getShippingExperiencePrice(),
-                        si2.shippingPrice + si2.getShippingExperiencePrice());
-                return (compareTotalPrice != 0) ? compareTotalPrice :
-                        Integer.compare(
-                                stockRepository.findByItemIdAndWareHouse(
-                                        si2.getItemId(),
-                                        si2.getWarehouse())
-                                        .orElseThrow(IllegalStateException::new)
-                                        .getStock(),
-                                stockRepository.findByItemIdAndWareHouse(
-                                        si1.getItemId(),
-                                        si1.getWarehouse())
-                                        .orElseThrow(IllegalStateException::new)
-                                        .getStock());
-            }).orElseThrow(() -> new NoSuitableWarehouseException(order.getItemId(), order.getTargetState()));
-            stockRepository.reduceStockByItemIdAndWareHouse(shipmentInfo.getItemId(), shipmentInfo.getWarehouse());
-            return shipmentInfo;
+        /**
+         * @return whether the current line is empty
+         */
+        boolean isBlankLine() {
+            return lineEnd == lineStart;
         }
 
-        public List<ShipmentInfo> findBestShipmentInfo(List<Order> orders) {
-            orders.stream()
-            return new ArrayList<ShipmentInfo>();
+        Order parseOrder() {
+            long orderId = nextLong();
+            long orderEpochMinute = nextEpochMinute();
+            String itemId = nextString();
+            String city = nextString();
+            return new Order(orderId, orderEpochMinute, itemId, city, nextString());
         }
 
-        static class CarrierPricingRepository {
-            private final List<CarrierPricing> carrierPricings;
+        /**
+         * Reads only the orders of a file, skipping any reference section.
+         */
+        static void readOrders(String path, List<Order> orders) throws IOException {
+            try (FastCsvReader reader = new FastCsvReader(FileChannel.open(Paths.get(path)), DEFAULT_BUFFER_SIZE)) {
+                if (reader.readUntil(Section.ORDERS, null)) {
+                    reader.readOrders(orders);
+                }
+            }
+        }
 
-            CarrierPricingRepository(List<CarrierPricing> carrierPricings) {
-                this.carrierPricings = carrierPricings;
+        /**
+         * Reads the remaining order lines into a columnar order book.
+         */
+        void readOrders(List<Order> orders) throws IOException {
+            while (nextLine()) {
+                if (header() != null) {
+                    throw new IllegalStateException("Reference sections must precede the orders");
+                }
+                if (!isBlankLine()) {
+                    orders.add(parseOrder());
+                }
             }
+        }
 
-            Optional<CarrierPricing> findByWarehouseAndState(Warehouse warehouse, String state) {
-                return carrierPricings.stream()
-                        .filter(cp -> cp.getWarehouse().equals(warehouse) && cp.getTargetState().equals(state))
-                        .reduce((cp1, cp2) -> {
-                            throw new IllegalStateException("Multiple carrier prices between warehouse and state: " + cp1 + ", " + cp2);
-                        });
+        void readOrders(OrderBook orders) throws IOException {
+            while (nextLine()) {
+                if (header() != null) {
+                    throw new IllegalStateException("Reference sections must precede the orders");
+                }
+                if (isBlankLine()) {
+                    continue;
+                }
+                long orderId = nextLong();
+                long orderEpochMinute = nextEpochMinute();
+                int itemIndex = nextId(orders.itemIds);
+                skipField();
+                orders.add(orderId, orderEpochMinute, itemIndex, nextId(orders.states));
             }
         }
 
-        static class ItemRepository {
-            private final List<Item> items;
+        Warehouse parseWarehouse() {
+            String name = nextString();
+            return warehouses.register(name, ZoneId.of(nextString()));
+        }
 
-            ItemRepository(List<Item> items) {
-                this.items = items;
-            }
+        Stock parseStock() {
+            return new Stock(nextString(), nextWarehouse(), nextInt());
+        }
 
-            Optional<Item> findById(String itemId) {
-                return items.stream()
-                        .filter(it -> it.getItemId().equals(itemId))
-                        .reduce((it1, it2) -> {
-                            throw new IllegalStateException("Multiple items for the same itemId: " + it1 + ", " + it2);
-                        });
+        BoxType parseBoxType() {
+            return new BoxType(nextString(), nextInt(), nextInt(), nextInt(), nextInt(), nextDecimal());
+        }
+
+        CarrierPricing parseCarrierPricing() {
+            return new CarrierPricing(nextWarehouse(), nextString(), nextDecimal());
+        }
+
+        DepartureTime parseDepartureTime() {
+            Warehouse warehouse = nextWarehouse();
+            String targetState = nextString();
+            List<ShippingHour> shippingHours = new ArrayList<>(2);
+            int end = fieldEnd();
+            while (cursor < end) {
+                int entryEnd = indexOf((byte) ',', cursor, end);
+                int start = skipSpaces(cursor, entryEnd);
+                int space = indexOf((byte) ' ', start, entryEnd);
+                int dayIndex = match(DAY_NAMES, start, space);
+                if (dayIndex < 0) {
+                    throw new IllegalArgumentException("Unknown day in shipping hour " + text(start, entryEnd)
+                            + " of line " + line());
+                }
+                DayOfWeek day = DayOfWeek.values()[dayIndex];
+                int timeStart = skipSpaces(space, entryEnd);
+                int timeEnd = trimEnd(timeStart, entryEnd);
+                if (timeEnd - timeStart != 5 || buffer[timeStart + 2] != ':') {
+                    throw new IllegalArgumentException("Unparseable shipping hour " + text(start, entryEnd));
+                }
+                shippingHours.add(new ShippingHour(day,
+                        LocalTime.of(digits(timeStart, 2), digits(timeStart + 3, 2))));
+                cursor = entryEnd + 1;
             }
+            cursor = end + 1;
+            return new DepartureTime(warehouse, targetState, shippingHours);
         }
 
-        static class BoxTypeRepository {
-            private final List<BoxType> boxTypes;
+        CarrierTime parseCarrierTime() {
+            Warehouse warehouse = nextWarehouse();
+            String targetState = nextString();
+            int end = fieldEnd();
+            // "10 hours": only the leading number is kept
+            int hours = (int) parseLong(cursor, indexOf((byte) ' ', cursor, end));
+            cursor = end + 1;
+            return new CarrierTime(warehouse, targetState, hours);
+        }
+
+        Item parseItem() {
+            String itemId = nextString();
+            skipField();
+            return new Item(itemId, nextInt(), nextInt(), nextInt(), nextInt());
+        }
 
-            BoxTypeRepository(List<BoxType> boxTypes) {
-                this.boxTypes = boxTypes;
+        boolean nextLine() throws IOException {
+            while (true) {
+                int newline = indexOf((byte) '\n', next, limit);
+                if (newline < limit) {
+                    setLine(next, newline);
+                    next = newline + 1;
+                    return true;
+                }
+                if (endOfInput) {
+                    if (next < limit) {
+                        setLine(next, limit);
+                        next = limit;
+                        return true;
+                    }
+                    return false;
+                }
+                fill();
             }
+        }
 
-            BoxType findByItem(Item item) {
-                return boxTypes.stream().filter(bt ->
-                        bt.getHeight() >= item.getHeight() &&
-                                ((bt.getLength() >= item.getLength() && bt.getWidth() >= item.getWidth()) ||
-                                        (bt.getLength() >= item.getWidth() && bt.getWidth() >= item.getLength())) &&
-                                bt.getMaxWeight() >= item.getWeight())
-                        .min(Comparator.comparing(BoxType::getVolume))
-                        .orElseThrow(() -> new NoSuitableBoxException(item.getItemId()));
+        /**
+         * @return the section introduced by the current line, or null if it is not a section header
+         */
+        Section header() {
+            if (lineEnd - lineStart < 3 || buffer[lineStart] != '-' || buffer[lineStart + 1] != '-'
+                    || buffer[lineStart + 2] != '-') {
+                return null;
             }
+            for (Section section : Section.values()) {
+                if (equalsRange(section.header, lineStart, lineEnd)) {
+                    return section;
+                }
+            }
+            throw new IllegalArgumentException("Unknown section " + text(lineStart, lineEnd));
         }
 
-        static class DepartureTimeRepository {
-            private final List<DepartureTime> departureTimes;
+        long nextLong() {
+            int end = fieldEnd();
+            long value = parseLong(cursor, end);
+            cursor = end + 1;
+            return value;
+        }
 
-            DepartureTimeRepository(List<DepartureTime> departureTimes) {
-                this.departureTimes = departureTimes;
+        int nextInt() {
+            long value = nextLong();
+            if (value != (int) value) {
+                throw new NumberFormatException("Value out of int range: " + value);
             }
+            return (int) value;
+        }
 
-            Optional<DepartureTime> findByWarehouseAndState(Warehouse warehouse, String state) {
-                return departureTimes.stream()
-                        .filter(departureTime ->
-                                departureTime.getWarehouse().equals(warehouse) && departureTime.getTargetState().equals(state))
-                        .reduce((dp1, dp2) -> {
-                            throw new IllegalStateException("Multiple departure times between warehouse and state: " + dp1 + ", " + dp2);
-                        });
+        float nextDecimal() {
+            int end = fieldEnd();
+            long mantissa = 0;
+            int digits = 0;
+            int fractionDigits = -1;
+            boolean negative = false;
+            int i = cursor;
+            if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+                negative = buffer[i++] == '-';
+            }
+            for (; i < end; i++) {
+                byte b = buffer[i];
+                if (b >= '0' && b <= '9') {
+                    mantissa = mantissa * 10 + (b - '0');
+                    digits++;
+                    if (fractionDigits >= 0) {
+                        fractionDigits++;
+                    }
+                } else if ((b == ',' || b == '.') && fractionDigits < 0) {
+                    fractionDigits = 0;
+                } else {
+                    break;
+                }
             }
+            float value;
+            if (i == end && digits > 0 && digits <= 7 && fractionDigits <= 10) {
+                value = mantissa / FLOAT_POWERS_OF_TEN[Math.max(fractionDigits, 0)];
+                value = negative ? -value : value;
+            } else {
+                value = Float.valueOf(text(cursor, end).replace(',', '.'));
+            }
+            cursor = end + 1;
+            return value;
         }
 
-        static class CarrierTimeRepository {
-            private final List<CarrierTime> carrierTimes;
+        /**
+         * Parses a fixed {@code uuuu-MM-dd HH:mm} timestamp into epoch minutes.
+         */
+        long nextEpochMinute() {
+            int end = fieldEnd();
+            int s = cursor;
+            if (end - s != 16 || buffer[s + 4] != '-' || buffer[s + 7] != '-' || buffer[s + 10] != ' '
+                    || buffer[s + 13] != ':') {
+                throw new DateTimeParseException("Text could not be parsed", text(s, end), 0);
+            }
+            long value = EpochMinutes.of(digits(s, 4), digits(s + 5, 2), digits(s + 8, 2), digits(s + 11, 2),
+                    digits(s + 14, 2));
+            cursor = end + 1;
+            return value;
+        }
 
-            CarrierTimeRepository(List<CarrierTime> carrierTimes) {
-                this.carrierTimes = carrierTimes;
+        String nextString() {
+            int end = fieldEnd();
+            String value = strings.intern(buffer, cursor, end);
+            cursor = end + 1;
+            return value;
+        }
+
+        int nextId(ByteStringInterner ids) {
+            int end = fieldEnd();
+            int id = ids.internId(buffer, cursor, end);
+            cursor = end + 1;
+            return id;
+        }
+
+        Warehouse nextWarehouse() {
+            int end = fieldEnd();
+            Warehouse found = null;
+            for (Warehouse warehouse : warehouses.values()) {
+                if (equalsRange(warehouse.nameBytes(), cursor, end)) {
+                    found = warehouse;
+                    break;
+                }
             }
+            cursor = end + 1;
+            return found;
+        }
 
-            Optional<CarrierTime> findByWarehouseAndState(Warehouse warehouse, String state) {
-                return carrierTimes.stream()
-                        .filter(ct ->
-                                ct.getWarehouse().equals(warehouse) && ct.getTargetState().equals(state))
-                        .reduce((ct1, ct2) -> {
-                            throw new IllegalStateException("Multiple carrier times between warehouse and state: " + ct1 + ", " + ct2);
-                        });
+        void skipField() {
+            cursor = fieldEnd() + 1;
+        }
+
+        @Override
+        public void close() throws IOException {
+            channel.close();
+        }
+
+        private void fill() throws IOException {
+            if (next > 0) {
+                System.arraycopy(buffer, next, buffer, 0, limit - next);
+                limit -= next;
+                next = 0;
+            } else if (limit == buffer.length) {
+                // a single line larger than the buffer
+                buffer = Arrays.copyOf(buffer, buffer.length * 2);
+            }
+            int read = channel.read(ByteBuffer.wrap(buffer, limit, buffer.length - limit));
+            if (read < 0) {
+                endOfInput = true;
+            } else {
+                limit += read;
             }
         }
 
-        static class StockRepository {
-            private final List<Stock> stocks;
+        private void setLine(int start, int end) {
+            lineStart = start;
+            lineEnd = (end > start && buffer[end - 1] == '\r') ? end - 1 : end;
+            cursor = start;
+        }
 
-            StockRepository(List<Stock> stocks) {
-                this.stocks = stocks;
+        private int fieldEnd() {
+            return indexOf((byte) ';', cursor, lineEnd);
+        }
+
+        private int indexOf(byte value, int from, int to) {
+            for (int i = from; i < to; i++) {
+                if (buffer[i] == value) {
+                    return i;
+                }
+            }
+            return to;
+        }
+
+        private int skipSpaces(int from, int to) {
+            while (from < to && buffer[from] == ' ') {
+                from++;
             }
+            return from;
+        }
 
-            List<Stock> getStocks() {
-                return stocks;
+        private int trimEnd(int from, int to) {
+            while (to > from && buffer[to - 1] == ' ') {
+                to--;
             }
+            return to;
+        }
 
-            Optional<Stock> findByItemIdAndWareHouse(String itemId, Warehouse warehouse) {
-                return stocks.stream()
-                        .filter(st ->
-                                st.getWarehouse().equals(warehouse) && st.getItemId().equals(itemId))
-                        .reduce((stock1, stock2) -> {
-                            throw new IllegalStateException("Multiple carrier times between warehouse and state: " + stock1 + ", " + stock2);
-                        });
+        private long parseLong(int start, int end) {
+            int i = start;
+            boolean negative = false;
+            if (i < end && (buffer[i] == '-' || buffer[i] == '+')) {
+                negative = buffer[i++] == '-';
+            }
+            if (i == end || end - i > 18) {
+                return Long.parseLong(text(start, end));
+            }
+            long value = 0;
+            for (; i < end; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new NumberFormatException("For input string: \"" + text(start, end) + "\"");
+                }
+                value = value * 10 + digit;
             }
+            return negative ? -value : value;
+        }
+
+        private int digits(int start, int count) {
+            int value = 0;
+            for (int i = start; i < start + count; i++) {
+                int digit = buffer[i] - '0';
+                if (digit < 0 || digit > 9) {
+                    throw new DateTimeParseException("Text could not be parsed", text(lineStart, lineEnd), i - lineStart);
+                }
+                value = value * 10 + digit;
+            }
+            return value;
+        }
 
-            Stock reduceStockByItemIdAndWareHouse(String itemId, Warehouse warehouse) {
-                return IntStream.range(0, stocks.size())
-                        .filter(i -> stocks.get(i).getItemId().equals(itemId) && stocks.get(i).getWarehouse().equals(warehouse))
-                        .mapToObj(i -> {
-                            Stock stock = stocks.get(i);
-                            stock = new Stock(stock.getItemId(), stock.getWarehouse(), stock.getStock() - 1);
-                            return stocks.set(i, stock);
-                        }).findFirst().orElseThrow(IllegalStateException::new);
+        private int match(byte[][] candidates, int start, int end) {
+            for (int i = 0; i < candidates.length; i++) {
+                if (equalsRange(candidates[i], start, end)) {
+                    return i;
+                }
             }
+            return -1;
         }
 
+        private boolean equalsRange(byte[] expected, int start, int end) {
+            if (end - start != expected.length) {
+                return false;
+            }
+            for (int i = 0; i < expected.length; i++) {
+                if (buffer[start + i] != expected[i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
 
+        private String text(int start, int end) {
+            return new String(buffer, start, end - start, StandardCharsets.UTF_8);
+        }
     }
 
-    public static void main(String[] args) throws IOException {
-        List<Stock> stocks = new ArrayList<>();
-        List<BoxType> boxTypes = new ArrayList<>();
-        List<CarrierPricing> carrierPricings = new ArrayList<>();
-        List<DepartureTime> departureTimes = new ArrayList<>();
-        List<CarrierTime> carrierTimes = new ArrayList<>();
-        List<Item> items = new ArrayList<>();
-
-        List<Order> orders = new ArrayList<>();
-
-        Consumer<String> stockConsumer = input -> stocks.add(CsvParser.parseStock(input));
-        Consumer<String> boxTypeConsumer = input -> boxTypes.add(CsvParser.parseBoxType(input));
-        Consumer<String> carrierPricingConsumer = input -> carrierPricings.add(CsvParser.parseCarrierPricings(input));
-        Consumer<String> departureTimeConsumer = input -> departureTimes.add(CsvParser.parseDepartureTime(input));
-        Consumer<String> carrierTimeConsumer = input -> carrierTimes.add(CsvParser.parseCarrierTime(input));
-        Consumer<String> itemConsumer = input -> items.add(CsvParser.parseItem(input));
-        Consumer<String> orderConsumer = input -> orders.add(CsvParser.parseOrder(input));
-
-        BufferedWriter bw = new BufferedWriter(new FileWriter("output002.txt"));
-        FileInputStream fstream = new FileInputStream("input001.txt");
-        BufferedReader br = new BufferedReader(new InputStreamReader(fstream));
-
-        String inputLine;
-        Consumer<String> consumer = t -> {
-        };
-        while ((inputLine = br.readLine()) != null) {
-            switch (inputLine) {
-                case "---Orders---":
-                    consumer = orderConsumer;
-                    break;
-                case "---Stocks---":
-                    consumer = stockConsumer;
-                    break;
-                case "---BoxTypes---":
-                    consumer = boxTypeConsumer;
-                    break;
-                case "---CarrierPricing---":
-                    consumer = carrierPricingConsumer;
-                    break;
-                case "---DepartureTimes---":
-                    consumer = departureTimeConsumer;
-                    break;
-                case "---CarrierTimes---":
-                    consumer = carrierTimeConsumer;
-                    break;
-                case "---Items---":
-                    consumer = itemConsumer;
-                    break;
-                default:
-                    consumer.accept(inputLine);
-                    break;
+    /**
+     * Reads the reference data from one file and the orders from a set of order files, or shards, such as the
+     * daily files of the upstream. A shard holds only order lines, optionally under an {@code ---Orders---}
+     * header. Shards are split into chunks at line boundaries and parsed in parallel, each chunk becoming a run
+     * sorted by date, and the runs are then merged. Ties are merged in the order of the runs, which is the order
+     * of the files and of the lines within them, so the result is the one of a stable sort of all the orders
+     * concatenated, as with a single input file.
+     */
+    static class ShardedInput {
+
+        static final int CHUNK_SIZE = 4 << 20;
+
+        private static final byte[] ORDERS_HEADER = FastCsvReader.Section.ORDERS.header;
+
+        /**
+         * A byte range of a file, holding only whole lines.
+         */
+        static class Chunk {
+            final Path path;
+            final long start;
+            final long end;
+
+            Chunk(Path path, long start, long end) {
+                this.path = path;
+                this.start = start;
+                this.end = end;
             }
         }
-        br.close();
 
-        Collections.sort(orders, new Comparator<Order>() {
-            @Override
-            public int compare(Order arg0, Order arg1) {
-                return arg0.getOrderDate().compareTo(arg1.getOrderDate());
+        /**
+         * Lists the shards of a comma separated list of files and directories. The regular files of a directory
+         * are taken in the order of their names.
+         */
+        static List<Path> listShards(String shards) throws IOException {
+            List<Path> paths = new ArrayList<>();
+            for (String shard : shards.split(",")) {
+                Path path = Paths.get(shard.trim());
+                if (Files.isDirectory(path)) {
+                    try (Stream<Path> files = Files.list(path)) {
+                        files.filter(Files::isRegularFile).sorted().forEach(paths::add);
+                    }
+                } else {
+                    paths.add(path);
+                }
             }
-        });
+            return paths;
+        }
 
-        ShipmentsManager shipmentsManager = new ShipmentsManager(items, boxTypes, carrierPricings, departureTimes,
-                carrierTimes, stocks);
+        /**
+         * Reads the reference data, and the orders of the reference file if any, into the input, and parses the
+         * shards on the given number of threads.
+         *
+         * @return the runs to merge, each sorted by date, starting with the orders of the reference file
+         */
+        static List<List<Order>> read(String reference, List<Path> shards, int threads, InputData input)
+                throws IOException {
+            List<Order> referenceOrders = new ArrayList<>();
+            try (FastCsvReader reader = new FastCsvReader(FileChannel.open(Paths.get(reference)),
+                    FastCsvReader.DEFAULT_BUFFER_SIZE)) {
+                if (reader.readUntil(FastCsvReader.Section.ORDERS, input)) {
+                    reader.readOrders(referenceOrders);
+                }
+            }
+            referenceOrders.sort(Comparator.comparingLong(Order::getOrderEpochMinute));
+            List<Chunk> chunks = new ArrayList<>();
+            for (Path shard : shards) {
+                split(shard, CHUNK_SIZE, chunks);
+            }
+            List<List<Order>> runs = new ArrayList<>(chunks.size() + 1);
+            runs.add(referenceOrders);
+            if (threads <= 1) {
+                for (Chunk chunk : chunks) {
+                    runs.add(parse(chunk));
+                }
+                return runs;
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                runs.addAll(pool.submit(() -> chunks.parallelStream().map(chunk -> {
+                    try {
+                        return parse(chunk);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).collect(Collectors.toList())).get());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof UncheckedIOException) {
+                    throw ((UncheckedIOException) e.getCause()).getCause();
+                }
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+            return runs;
+        }
 
-        List<ShipmentInfo> shipmentInfos = orders.stream().map(shipmentsManager::findBestShipmentInfo)
-                .collect(Collectors.toList());
+        /**
+         * Splits the order lines of a shard into chunks of about the given size. A chunk boundary is moved
+         * forward to the start of the next line, so every line belongs to exactly one chunk.
+         */
+        static void split(Path shard, long chunkSize, List<Chunk> chunks) throws IOException {
+            try (FileChannel channel = FileChannel.open(shard)) {
+                long size = channel.size();
+                long start = ordersStart(channel, shard);
+                while (start < size) {
+                    long end = start + chunkSize < size ? lineStartAtOrAfter(channel, start + chunkSize) : size;
+                    chunks.add(new Chunk(shard, start, end));
+                    start = end;
+                }
+            }
+        }
 
-        Collections.sort(shipmentInfos, new Comparator<ShipmentInfo>() {
-            @Override
-            public int compare(ShipmentInfo arg0, ShipmentInfo arg1) {
-                return arg0.getOrder().getOrderDate().compareTo(arg1.getOrder().getOrderDate());
+        /**
+         * @return the position after the {@code ---Orders---} header the shard starts with, or 0 without one
+         */
+        private static long ordersStart(FileChannel channel, Path shard) throws IOException {
+            ByteBuffer head = ByteBuffer.allocate(ORDERS_HEADER.length);
+            channel.read(head, 0);
+            if (head.position() < 3 || head.get(0) != '-' || head.get(1) != '-' || head.get(2) != '-') {
+                return 0;
             }
-        });
+            for (int i = 0; i < ORDERS_HEADER.length; i++) {
+                if (i >= head.position() || head.get(i) != ORDERS_HEADER[i]) {
+                    throw new IllegalArgumentException(
+                            "Order shard " + shard + " may only hold orders, reference data goes in the reference file");
+                }
+            }
+            return lineStartAtOrAfter(channel, ORDERS_HEADER.length);
+        }
 
-        Float totalShipmentPrice = 0.0f;
+        /**
+         * @return the given position if a line starts there, otherwise the start of the next line or the size
+         */
+        private static long lineStartAtOrAfter(FileChannel channel, long position) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(8192);
+            long offset = position - 1;
+            while (true) {
+                buffer.clear();
+                int read = channel.read(buffer, offset);
+                if (read <= 0) {
+                    return channel.size();
+                }
+                for (int i = 0; i < read; i++) {
+                    if (buffer.get(i) == '\n') {
+                        return offset + i + 1;
+                    }
+                }
+                offset += read;
+            }
+        }
 
-        for (ShipmentInfo shipmentInfo : shipmentInfos) {
-            totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+        /**
+         * @return the orders of a chunk, sorted by date
+         */
+        static List<Order> parse(Chunk chunk) throws IOException {
+            List<Order> orders = new ArrayList<>();
+            try (FileChannel channel = FileChannel.open(chunk.path);
+                    FastCsvReader reader = new FastCsvReader(new RangeChannel(channel, chunk.start, chunk.end),
+                            (int) Math.min(FastCsvReader.DEFAULT_BUFFER_SIZE, Math.max(chunk.end - chunk.start, 64)))) {
+                reader.readOrders(orders);
+            }
+            // shards are usually already in date order, which the sort only checks
+            orders.sort(Comparator.comparingLong(Order::getOrderEpochMinute));
+            return orders;
         }
-        StringBuilder output = new StringBuilder();
-        output.append(totalShipmentPrice + "\n");
-        for (ShipmentInfo shipmentInfo : shipmentInfos) {
-            output.append(shipmentInfo.toCsvLine() + "\n");
+
+        /**
+         * Merges runs sorted by date into the given list, taking equal dates in the order of the runs.
+         */
+        static void merge(List<List<Order>> runs, List<Order> merged) {
+            int[] heads = new int[runs.size()];
+            PriorityQueue<Integer> queue = new PriorityQueue<>(Math.max(1, runs.size()), (run1, run2) -> {
+                int compare = Long.compare(runs.get(run1).get(heads[run1]).getOrderEpochMinute(),
+                        runs.get(run2).get(heads[run2]).getOrderEpochMinute());
+                return compare != 0 ? compare : Integer.compare(run1, run2);
+            });
+            int size = 0;
+            for (int run = 0; run < runs.size(); run++) {
+                size += runs.get(run).size();
+                if (!runs.get(run).isEmpty()) {
+                    queue.add(run);
+                }
+            }
+            if (merged instanceof ArrayList) {
+                ((ArrayList<Order>) merged).ensureCapacity(merged.size() + size);
+            }
+            while (!queue.isEmpty()) {
+                int run = queue.poll();
+                List<Order> orders = runs.get(run);
+                int head = heads[run];
+                if (queue.isEmpty()) {
+                    merged.addAll(orders.subList(head, orders.size()));
+                    break;
+                }
+                // take every order of the run that comes before the head of the next run
+                int next = queue.peek();
+                long limit = runs.get(next).get(heads[next]).getOrderEpochMinute();
+                do {
+                    merged.add(orders.get(head++));
+                } while (head < orders.size() && (orders.get(head).getOrderEpochMinute() < limit
+                        || (orders.get(head).getOrderEpochMinute() == limit && run < next)));
+                heads[run] = head;
+                if (head < orders.size()) {
+                    queue.add(run);
+                }
+            }
         }
-        bw.write(output.toString());
-        bw.close();
-        System.out.println("Your total shipment price is: " + totalShipmentPrice);
+
+        /**
+         * A byte range of a file channel, read with positional reads so chunks of the same file do not share a
+         * position. Closing it leaves the file open.
+         */
+        static class RangeChannel implements ReadableByteChannel {
+            private final FileChannel file;
+            private long position;
+            private final long end;
+
+            RangeChannel(FileChannel file, long start, long end) {
+                this.file = file;
+                this.position = start;
+                this.end = end;
+            }
+
+            @Override
+            public int read(ByteBuffer destination) throws IOException {
+                if (position >= end) {
+                    return -1;
+                }
+                ByteBuffer window = destination.duplicate();
+                window.limit(window.position() + (int) Math.min(window.remaining(), end - position));
+                int read = file.read(window, position);
+                if (read < 0) {
+                    return -1;
+                }
+                destination.position(window.position());
+                position += read;
+                return read;
+            }
+
+            @Override
+            public boolean isOpen() {
+                return file.isOpen();
+            }
+
+            @Override
+            public void close() {
+            }
+        }
+    }
+
+    /**
+     * Open-addressing table from byte ranges to dense int ids, so that a repeated id or state code only
+     * allocates the first time it is seen. The Strings behind the ids are created on demand.
+     */
+    static class ByteStringInterner {
+        // id + 1 of the key in each slot, 0 for an empty slot
+        private int[] slots = new int[1024];
+        private byte[][] keys = new byte[512][];
+        private int[] hashes = new int[512];
+        private String[] values = new String[512];
+        private int size;
+
+        String intern(byte[] bytes, int start, int end) {
+            return valueOf(internId(bytes, start, end));
+        }
+
+        int internId(byte[] bytes, int start, int end) {
+            int hash = 1;
+            for (int i = start; i < end; i++) {
+                hash = 31 * hash + bytes[i];
+            }
+            int mask = slots.length - 1;
+            int slot = mix(hash) & mask;
+            while (slots[slot] != 0) {
+                int id = slots[slot] - 1;
+                if (hashes[id] == hash && sameBytes(keys[id], bytes, start, end)) {
+                    return id;
+                }
+                slot = (slot + 1) & mask;
+            }
+            if (size == keys.length) {
+                keys = Arrays.copyOf(keys, size * 2);
+                hashes = Arrays.copyOf(hashes, size * 2);
+                values = Arrays.copyOf(values, size * 2);
+            }
+            int id = size++;
+            keys[id] = Arrays.copyOfRange(bytes, start, end);
+            hashes[id] = hash;
+            slots[slot] = id + 1;
+            if (size * 2 > slots.length) {
+                resize();
+            }
+            return id;
+        }
+
+        int internId(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            return internId(bytes, 0, bytes.length);
+        }
+
+        String valueOf(int id) {
+            String value = values[id];
+            if (value == null) {
+                value = new String(keys[id], StandardCharsets.UTF_8);
+                values[id] = value;
+            }
+            return value;
+        }
+
+        int size() {
+            return size;
+        }
+
+        private static int mix(int hash) {
+            return hash ^ (hash >>> 16);
+        }
+
+        private static boolean sameBytes(byte[] key, byte[] bytes, int start, int end) {
+            if (key.length != end - start) {
+                return false;
+            }
+            for (int i = 0; i < key.length; i++) {
+                if (key[i] != bytes[start + i]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        private void resize() {
+            slots = new int[slots.length * 2];
+            int mask = slots.length - 1;
+            for (int id = 0; id < size; id++) {
+                int slot = mix(hashes[id]) & mask;
+                while (slots[slot] != 0) {
+                    slot = (slot + 1) & mask;
+                }
+                slots[slot] = id + 1;
+            }
+        }
+    }
+
+    /**
+     * Orders stored as parallel primitive columns, with item ids and state codes interned into dense ids,
+     * so an order costs a few bytes instead of an object graph.
+     */
+    static class OrderBook {
+        final ByteStringInterner itemIds = new ByteStringInterner();
+        final ByteStringInterner states = new ByteStringInterner();
+        long[] orderId;
+        int[] epochMinute;
+        int[] itemIndex;
+        int[] stateIndex;
+        int size;
+
+        OrderBook(int initialCapacity) {
+            orderId = new long[initialCapacity];
+            epochMinute = new int[initialCapacity];
+            itemIndex = new int[initialCapacity];
+            stateIndex = new int[initialCapacity];
+        }
+
+        void add(long orderId, long epochMinute, int itemIndex, int stateIndex) {
+            if (size == this.orderId.length) {
+                int capacity = Math.max(16, size + (size >> 1));
+                this.orderId = Arrays.copyOf(this.orderId, capacity);
+                this.epochMinute = Arrays.copyOf(this.epochMinute, capacity);
+                this.itemIndex = Arrays.copyOf(this.itemIndex, capacity);
+                this.stateIndex = Arrays.copyOf(this.stateIndex, capacity);
+            }
+            this.orderId[size] = orderId;
+            this.epochMinute[size] = Math.toIntExact(epochMinute);
+            this.itemIndex[size] = itemIndex;
+            this.stateIndex[size] = stateIndex;
+            size++;
+        }
+
+        Order toOrder(int row) {
+            return new Order(orderId[row], epochMinute[row], itemIds.valueOf(itemIndex[row]), null,
+                    states.valueOf(stateIndex[row]));
+        }
+
+        /**
+         * Sorts the rows by order date. Rows with the same date keep their relative order.
+         */
+        void sortByDate() {
+            if (size == 0) {
+                return;
+            }
+            int minMinute = Integer.MAX_VALUE;
+            for (int i = 0; i < size; i++) {
+                minMinute = Math.min(minMinute, epochMinute[i]);
+            }
+            // the row index in the low bits keeps equal dates in input order
+            long[] keys = new long[size];
+            for (int i = 0; i < size; i++) {
+                keys[i] = ((long) (epochMinute[i] - minMinute) << 32) | i;
+            }
+            Arrays.parallelSort(keys);
+            int[] permutation = new int[size];
+            for (int i = 0; i < size; i++) {
+                permutation[i] = (int) keys[i];
+            }
+            keys = null;
+            long[] sortedOrderId = new long[orderId.length];
+            for (int i = 0; i < size; i++) {
+                sortedOrderId[i] = orderId[permutation[i]];
+            }
+            orderId = sortedOrderId;
+            epochMinute = permute(epochMinute, permutation);
+            itemIndex = permute(itemIndex, permutation);
+            stateIndex = permute(stateIndex, permutation);
+        }
+
+        private int[] permute(int[] column, int[] permutation) {
+            int[] sorted = new int[column.length];
+            for (int i = 0; i < size; i++) {
+                sorted[i] = column[permutation[i]];
+            }
+            return sorted;
+        }
+    }
+
+    /**
+     * Allocation results as parallel primitive columns, row i being the result of row i of the order book.
+     * Warehouses are stored by their index in {@link #warehouses} and box types by their index in
+     * {@link #boxTypes}.
+     */
+    static class ColumnarResults {
+        final OrderBook orders;
+        final Warehouse[] warehouses;
+        final String[] boxTypes;
+        final byte[] warehouse;
+        final int[] deliveryEpochMinute;
+        final byte[] boxType;
+        final float[] shippingPrice;
+
+        ColumnarResults(OrderBook orders, Warehouse[] warehouses, String[] boxTypes) {
+            this.orders = orders;
+            this.warehouses = warehouses;
+            this.boxTypes = boxTypes;
+            warehouse = new byte[orders.size];
+            deliveryEpochMinute = new int[orders.size];
+            boxType = new byte[orders.size];
+            shippingPrice = new float[orders.size];
+        }
+
+        int size() {
+            return orders.size;
+        }
+
+        float shippingExperiencePrice(int row) {
+            return ShipmentInfo.experiencePrice(orders.epochMinute[row], deliveryEpochMinute[row]);
+        }
+
+        float totalShipmentPrice() {
+            float totalShipmentPrice = 0.0f;
+            for (int row = 0; row < size(); row++) {
+                totalShipmentPrice += shippingPrice[row] + shippingExperiencePrice(row);
+            }
+            return totalShipmentPrice;
+        }
+
+        String toCsvLine(int row) {
+            return new StringBuilder().append(orders.orderId[row]).append(SEMICOLON)
+                    .append(warehouses[warehouse[row]].toName()).append(SEMICOLON)
+                    .append(DATE_PATTERN.format(EpochMinutes.toLocalDateTime(deliveryEpochMinute[row])))
+                    .append(SEMICOLON).append(boxTypes[boxType[row]]).append(SEMICOLON)
+                    .append(DECIMAL_FORMAT.format(shippingPrice[row])).append(SEMICOLON)
+                    .append(DECIMAL_FORMAT.format(shippingExperiencePrice(row))).toString();
+        }
+    }
+
+    /**
+     * Formats result lines straight into a reusable byte buffer, byte-for-byte like
+     * {@link ShipmentInfo#toCsvLine()}: prices with {@code #.000} (so {@code .400} below one) and dates with
+     * {@code uuuu-MM-dd HH:mm}. An encoder is not thread-safe; every thread formats into its own one and hands
+     * it to a {@link ResultWriter}.
+     */
+    static class CsvLineEncoder {
+        // above this, rounding the scaled double could be off by the error of the multiplication
+        private static final double MAX_FAST_SCALED_PRICE = 1e9;
+        private static final double ROUNDING_MARGIN = 1e-6;
+        // from here on, the thousandths of a price no longer fit in a long
+        private static final float MAX_THOUSANDTHS_PRICE = 1e15f;
+
+        // box type and warehouse names
+        private final Map<String, byte[]> names = new HashMap<>();
+        private byte[] buffer;
+        private int position;
+
+        CsvLineEncoder(int capacity) {
+            buffer = new byte[capacity];
+        }
+
+        void encode(ShipmentInfo shipmentInfo) {
+            encode(shipmentInfo.order.orderId, shipmentInfo.warehouse, shipmentInfo.guaranteedDeliveryEpochMinute,
+                    shipmentInfo.boxType, shipmentInfo.shippingPrice, shipmentInfo.shippingExperiencePrice);
+        }
+
+        void encode(ColumnarResults results, int row) {
+            encode(results.orders.orderId[row], results.warehouses[results.warehouse[row]],
+                    results.deliveryEpochMinute[row], results.boxTypes[results.boxType[row]],
+                    results.shippingPrice[row], results.shippingExperiencePrice(row));
+        }
+
+        void encode(long orderId, Warehouse warehouse, long deliveryEpochMinute, String boxType, float shippingPrice,
+                    float shippingExperiencePrice) {
+            ensureCapacity(128 + boxType.length() * 4);
+            appendLong(orderId);
+            buffer[position++] = ';';
+            appendBytes(warehouse.nameBytes());
+            buffer[position++] = ';';
+            appendDate(deliveryEpochMinute);
+            buffer[position++] = ';';
+            appendBytes(nameBytes(boxType));
+            buffer[position++] = ';';
+            appendPrice(shippingPrice);
+            buffer[position++] = ';';
+            appendPrice(shippingExperiencePrice);
+            buffer[position++] = '\n';
+        }
+
+        /**
+         * The current row of a reader, whose prices are already rounded to thousandths.
+         */
+        void encode(BinaryResultReader reader) {
+            byte[] warehouse = nameBytes(reader.getWarehouse());
+            byte[] boxType = nameBytes(reader.getBoxType());
+            ensureCapacity(96 + warehouse.length + boxType.length);
+            appendLong(reader.getOrderId());
+            buffer[position++] = ';';
+            appendBytes(warehouse);
+            buffer[position++] = ';';
+            appendDate(reader.getDeliveryEpochMinute());
+            buffer[position++] = ';';
+            appendBytes(boxType);
+            buffer[position++] = ';';
+            appendThousandths(reader.getShippingPrice());
+            buffer[position++] = ';';
+            appendThousandths(reader.getShippingExperiencePrice());
+            buffer[position++] = '\n';
+        }
+
+        /**
+         * A rejected order, formatted as in the input followed by the reason.
+         */
+        void encode(Order order, ShipmentsManager.RejectReason reason) {
+            byte[] itemId = order.itemId.getBytes(StandardCharsets.UTF_8);
+            byte[] city = order.city == null ? new byte[0] : order.city.getBytes(StandardCharsets.UTF_8);
+            byte[] targetState = order.targetState.getBytes(StandardCharsets.UTF_8);
+            ensureCapacity(96 + itemId.length + city.length + targetState.length);
+            appendLong(order.orderId);
+            buffer[position++] = ';';
+            appendDate(order.orderEpochMinute);
+            buffer[position++] = ';';
+            appendBytes(itemId);
+            buffer[position++] = ';';
+            appendBytes(city);
+            buffer[position++] = ';';
+            appendBytes(targetState);
+            buffer[position++] = ';';
+            appendBytes(reason.name().getBytes(StandardCharsets.US_ASCII));
+            buffer[position++] = '\n';
+        }
+
+        /**
+         * The header line, formatted like {@code Float.toString}.
+         */
+        void encodeTotal(float totalShipmentPrice) {
+            byte[] total = (totalShipmentPrice + "\n").getBytes(StandardCharsets.US_ASCII);
+            ensureCapacity(total.length);
+            appendBytes(total);
+        }
+
+        void encodeText(String text) {
+            appendBytes(text.getBytes(StandardCharsets.UTF_8));
+        }
+
+        int size() {
+            return position;
+        }
+
+        void clear() {
+            position = 0;
+        }
+
+        private void appendLong(long value) {
+            if (value < 0) {
+                if (value == Long.MIN_VALUE) {
+                    appendBytes(Long.toString(value).getBytes(StandardCharsets.US_ASCII));
+                    return;
+                }
+                buffer[position++] = '-';
+                value = -value;
+            }
+            int digits = 1;
+            for (long remaining = value / 10; remaining > 0; remaining /= 10) {
+                digits++;
+            }
+            for (int i = position + digits - 1; i >= position; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            position += digits;
+        }
+
+        private void appendDigits(int value, int digits) {
+            for (int i = position + digits - 1; i >= position; i--) {
+                buffer[i] = (byte) ('0' + value % 10);
+                value /= 10;
+            }
+            position += digits;
+        }
+
+        /**
+         * @return the price in thousandths, rounded like {@link #appendPrice}
+         */
+        static long thousandths(float price) {
+            double scaled = (double) price * 1000;
+            double floor = Math.floor(scaled);
+            double fraction = scaled - floor;
+            if (Float.floatToRawIntBits(price) < 0 || !(scaled < MAX_FAST_SCALED_PRICE)
+                    || Math.abs(fraction - 0.5) < ROUNDING_MARGIN) {
+                // negative, huge or too close to a tie to round the scaled value
+                return new BigDecimal(price).setScale(3, RoundingMode.HALF_EVEN).unscaledValue().longValueExact();
+            }
+            return (long) floor + (fraction > 0.5 ? 1 : 0);
+        }
+
+        /**
+         * Same as {@code DecimalFormat("#.000")}, which rounds the exact binary value half-even.
+         */
+        private void appendPrice(float price) {
+            if (Float.floatToRawIntBits(price) < 0 || !(price < MAX_THOUSANDTHS_PRICE)) {
+                // negative, where the format keeps the sign of -0, not a number or too large for thousandths
+                appendBytes(((DecimalFormat) DECIMAL_FORMAT.clone()).format(price)
+                        .getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            appendThousandths(thousandths(price));
+        }
+
+        /**
+         * The {@code #.000} rendering of a price rounded to thousandths, which {@link BinaryResultReader} rows
+         * share with the text output.
+         */
+        private void appendThousandths(long thousandths) {
+            if (thousandths < 0) {
+                buffer[position++] = '-';
+                thousandths = -thousandths;
+            }
+            long integerPart = thousandths / 1000;
+            if (integerPart > 0) {
+                appendLong(integerPart);
+            }
+            buffer[position++] = '.';
+            appendDigits((int) (thousandths % 1000), 3);
+        }
+
+        private void appendDate(long epochMinute) {
+            long epochDay = Math.floorDiv(epochMinute, EpochMinutes.MINUTES_PER_DAY);
+            int minuteOfDay = (int) Math.floorMod(epochMinute, (long) EpochMinutes.MINUTES_PER_DAY);
+            // civil from days, with years starting in March
+            long z = epochDay + 719468;
+            long era = Math.floorDiv(z, 146097);
+            int dayOfEra = (int) (z - era * 146097);
+            int yearOfEra = (dayOfEra - dayOfEra / 1460 + dayOfEra / 36524 - dayOfEra / 146096) / 365;
+            int dayOfYear = dayOfEra - (365 * yearOfEra + yearOfEra / 4 - yearOfEra / 100);
+            int shiftedMonth = (5 * dayOfYear + 2) / 153;
+            int day = dayOfYear - (153 * shiftedMonth + 2) / 5 + 1;
+            int month = shiftedMonth < 10 ? shiftedMonth + 3 : shiftedMonth - 9;
+            long year = yearOfEra + era * 400 + (month <= 2 ? 1 : 0);
+            if (year < 0 || year > 9999) {
+                appendBytes(DATE_PATTERN.format(EpochMinutes.toLocalDateTime(epochMinute))
+                        .getBytes(StandardCharsets.US_ASCII));
+                return;
+            }
+            appendDigits((int) year, 4);
+            buffer[position++] = '-';
+            appendDigits(month, 2);
+            buffer[position++] = '-';
+            appendDigits(day, 2);
+            buffer[position++] = ' ';
+            appendDigits(minuteOfDay / 60, 2);
+            buffer[position++] = ':';
+            appendDigits(minuteOfDay % 60, 2);
+        }
+
+        private byte[] nameBytes(String name) {
+            return names.computeIfAbsent(name, key -> key.getBytes(StandardCharsets.UTF_8));
+        }
+
+        private void appendBytes(byte[] bytes) {
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void ensureCapacity(int extra) {
+            if (position + extra > buffer.length) {
+                buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, position + extra));
+            }
+        }
+    }
+
+    /**
+     * Writes result lines to a channel, usually a file, in large chunks. Lines are formatted by an own encoder, or by
+     * encoders of other threads that are handed over with {@link #write(CsvLineEncoder)}.
+     */
+    static class ResultWriter implements Closeable {
+        static final int DEFAULT_CHUNK_SIZE = 1 << 20;
+
+        private final WritableByteChannel channel;
+        private final CsvLineEncoder encoder;
+        private final int chunkSize;
+
+        ResultWriter(WritableByteChannel channel, int chunkSize) {
+            this.channel = channel;
+            this.chunkSize = chunkSize;
+            this.encoder = new CsvLineEncoder(chunkSize + 256);
+        }
+
+        static ResultWriter open(String path) throws IOException {
+            return new ResultWriter(FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), DEFAULT_CHUNK_SIZE);
+        }
+
+        synchronized void writeTotal(float totalShipmentPrice) throws IOException {
+            encoder.encodeTotal(totalShipmentPrice);
+            flushIfFull();
+        }
+
+        synchronized void write(ShipmentInfo shipmentInfo) throws IOException {
+            encoder.encode(shipmentInfo);
+            flushIfFull();
+        }
+
+        synchronized void write(ColumnarResults results, int row) throws IOException {
+            encoder.encode(results, row);
+            flushIfFull();
+        }
+
+        synchronized void write(BinaryResultReader reader) throws IOException {
+            encoder.encode(reader);
+            flushIfFull();
+        }
+
+        synchronized void write(Order order, ShipmentsManager.RejectReason reason) throws IOException {
+            encoder.encode(order, reason);
+            flushIfFull();
+        }
+
+        synchronized void writeText(String text) throws IOException {
+            encoder.encodeText(text);
+            flushIfFull();
+        }
+
+        /**
+         * Writes and clears the lines formatted by the encoder of another thread.
+         */
+        synchronized void write(CsvLineEncoder lines) throws IOException {
+            flush();
+            drain(lines);
+        }
+
+        synchronized void flush() throws IOException {
+            drain(encoder);
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            try {
+                flush();
+            } finally {
+                channel.close();
+            }
+        }
+
+        private void flushIfFull() throws IOException {
+            if (encoder.size() >= chunkSize) {
+                flush();
+            }
+        }
+
+        private void drain(CsvLineEncoder lines) throws IOException {
+            ByteBuffer chunk = ByteBuffer.wrap(lines.buffer, 0, lines.size());
+            while (chunk.hasRemaining()) {
+                channel.write(chunk);
+            }
+            lines.clear();
+        }
+    }
+
+    /**
+     * Writes results in a compact binary layout instead of text lines. Rows are grouped in blocks, and a block
+     * stores each column separately, which suits their values:
+     * <ul>
+     * <li>warehouses and box types as indexes into dictionaries of the names used by the block;</li>
+     * <li>order ids and delivery dates, as epoch minutes, as differences to the previous row, which are small
+     * for rows in date order;</li>
+     * <li>prices as thousandths, the precision of the text output;</li>
+     * </ul>
+     * all as variable-length integers, zigzag encoded when they can be negative. Blocks can be compressed with
+     * {@link Deflater} and are checked with a CRC32, so a reader can find a truncated or corrupted file. The text
+     * output can be recreated with {@link BinaryResultReader}.
+     *
+     * <p>Layout: magic, version, flags and total, then per block its stored length, raw length, CRC32 and
+     * payload, and finally -1 and the number of rows. A payload holds the row count, the two dictionaries and the
+     * columns.
+     */
+    static class BinaryResultWriter implements Closeable {
+        static final int MAGIC = 0x43475242; // "CGRB"
+        static final int VERSION = 1;
+        static final int FLAG_DEFLATE = 1;
+        static final int BLOCK_ROWS = 1 << 16;
+
+        private final WritableByteChannel channel;
+        private final Deflater deflater;
+        private final long[] orderIds = new long[BLOCK_ROWS];
+        private final int[] warehouses = new int[BLOCK_ROWS];
+        private final long[] deliveryEpochMinutes = new long[BLOCK_ROWS];
+        private final int[] boxTypes = new int[BLOCK_ROWS];
+        private final long[] shippingPrices = new long[BLOCK_ROWS];
+        private final long[] shippingExperiencePrices = new long[BLOCK_ROWS];
+        private final Map<Warehouse, Integer> warehouseIds = new LinkedHashMap<>();
+        private final Map<String, Integer> boxTypeIds = new LinkedHashMap<>();
+        private int rows;
+        private long totalRows;
+        private byte[] block = new byte[1 << 16];
+        private int position;
+        private byte[] compressed = new byte[0];
+
+        BinaryResultWriter(WritableByteChannel channel, boolean compress, float totalShipmentPrice)
+                throws IOException {
+            this.channel = channel;
+            this.deflater = compress ? new Deflater(Deflater.BEST_SPEED) : null;
+            ByteBuffer header = ByteBuffer.allocate(4 + 4 + 4 + 4);
+            header.putInt(MAGIC).putInt(VERSION).putInt(compress ? FLAG_DEFLATE : 0).putFloat(totalShipmentPrice);
+            header.flip();
+            writeFully(header);
+        }
+
+        static BinaryResultWriter open(String path, boolean compress, float totalShipmentPrice)
+                throws IOException {
+            return new BinaryResultWriter(FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING), compress, totalShipmentPrice);
+        }
+
+        void write(ShipmentInfo shipmentInfo) throws IOException {
+            write(shipmentInfo.order.orderId, shipmentInfo.warehouse, shipmentInfo.guaranteedDeliveryEpochMinute,
+                    shipmentInfo.boxType, shipmentInfo.shippingPrice, shipmentInfo.shippingExperiencePrice);
+        }
+
+        void write(ColumnarResults results, int row) throws IOException {
+            write(results.orders.orderId[row], results.warehouses[results.warehouse[row]],
+                    results.deliveryEpochMinute[row], results.boxTypes[results.boxType[row]],
+                    results.shippingPrice[row], results.shippingExperiencePrice(row));
+        }
+
+        void write(long orderId, Warehouse warehouse, long deliveryEpochMinute, String boxType, float shippingPrice,
+                   float shippingExperiencePrice) throws IOException {
+            orderIds[rows] = orderId;
+            warehouses[rows] = warehouseIds.computeIfAbsent(warehouse, k -> warehouseIds.size());
+            deliveryEpochMinutes[rows] = deliveryEpochMinute;
+            boxTypes[rows] = boxTypeIds.computeIfAbsent(boxType, k -> boxTypeIds.size());
+            shippingPrices[rows] = CsvLineEncoder.thousandths(shippingPrice);
+            shippingExperiencePrices[rows] = CsvLineEncoder.thousandths(shippingExperiencePrice);
+            if (++rows == BLOCK_ROWS) {
+                writeBlock();
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                if (rows > 0) {
+                    writeBlock();
+                }
+                ByteBuffer trailer = ByteBuffer.allocate(4 + 8);
+                trailer.putInt(-1).putLong(totalRows);
+                trailer.flip();
+                writeFully(trailer);
+            } finally {
+                if (deflater != null) {
+                    deflater.end();
+                }
+                channel.close();
+            }
+        }
+
+        private void writeBlock() throws IOException {
+            position = 0;
+            putVarLong(rows);
+            putVarLong(warehouseIds.size());
+            for (Warehouse warehouse : warehouseIds.keySet()) {
+                putString(warehouse.toName());
+            }
+            putVarLong(boxTypeIds.size());
+            for (String boxType : boxTypeIds.keySet()) {
+                putString(boxType);
+            }
+            putDeltas(orderIds);
+            putIds(warehouses);
+            putDeltas(deliveryEpochMinutes);
+            putIds(boxTypes);
+            for (int row = 0; row < rows; row++) {
+                putVarLong(zigzag(shippingPrices[row]));
+            }
+            for (int row = 0; row < rows; row++) {
+                putVarLong(zigzag(shippingExperiencePrices[row]));
+            }
+
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, position);
+            byte[] stored = block;
+            int storedLength = position;
+            if (deflater != null) {
+                deflater.reset();
+                deflater.setInput(block, 0, position);
+                deflater.finish();
+                storedLength = 0;
+                while (!deflater.finished()) {
+                    if (storedLength == compressed.length) {
+                        compressed = Arrays.copyOf(compressed, Math.max(1 << 16, compressed.length * 2));
+                    }
+                    storedLength += deflater.deflate(compressed, storedLength, compressed.length - storedLength);
+                }
+                stored = compressed;
+            }
+            ByteBuffer header = ByteBuffer.allocate(4 + 4 + 8);
+            header.putInt(storedLength).putInt(position).putLong(crc.getValue());
+            header.flip();
+            writeFully(header);
+            writeFully(ByteBuffer.wrap(stored, 0, storedLength));
+            totalRows += rows;
+            rows = 0;
+            warehouseIds.clear();
+            boxTypeIds.clear();
+        }
+
+        private void putDeltas(long[] column) {
+            long previous = 0;
+            for (int row = 0; row < rows; row++) {
+                putVarLong(zigzag(column[row] - previous));
+                previous = column[row];
+            }
+        }
+
+        private void putIds(int[] column) {
+            for (int row = 0; row < rows; row++) {
+                putVarLong(column[row]);
+            }
+        }
+
+        private void putString(String value) {
+            byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+            putVarLong(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, block, position, bytes.length);
+            position += bytes.length;
+        }
+
+        private void putVarLong(long value) {
+            ensureCapacity(10);
+            while ((value & ~0x7FL) != 0) {
+                block[position++] = (byte) ((value & 0x7F) | 0x80);
+                value >>>= 7;
+            }
+            block[position++] = (byte) value;
+        }
+
+        private static long zigzag(long value) {
+            return (value << 1) ^ (value >> 63);
+        }
+
+        private void ensureCapacity(int extra) {
+            if (position + extra > block.length) {
+                block = Arrays.copyOf(block, Math.max(block.length * 2, position + extra));
+            }
+        }
+
+        private void writeFully(ByteBuffer buffer) throws IOException {
+            while (buffer.hasRemaining()) {
+                channel.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Reads the results written by {@link BinaryResultWriter} one row at a time, decoding a block at once.
+     */
+    static class BinaryResultReader implements Closeable {
+        private final DataInputStream input;
+        private final boolean compressed;
+        private final float totalShipmentPrice;
+        private final Inflater inflater = new Inflater();
+        private long rowsRead;
+        private boolean ended;
+
+        private byte[] stored = new byte[0];
+        private byte[] block = new byte[0];
+        private int position;
+        private String[] warehouseNames;
+        private String[] boxTypeNames;
+        private long[] orderIds = new long[0];
+        private int[] warehouses = new int[0];
+        private long[] deliveryEpochMinutes = new long[0];
+        private int[] boxTypes = new int[0];
+        private long[] shippingPrices = new long[0];
+        private long[] shippingExperiencePrices = new long[0];
+        private int rows;
+        private int row = -1;
+
+        BinaryResultReader(InputStream stream) throws IOException {
+            input = new DataInputStream(new BufferedInputStream(stream, 1 << 16));
+            if (input.readInt() != BinaryResultWriter.MAGIC) {
+                throw new IllegalStateException("Not a binary results file");
+            }
+            int version = input.readInt();
+            if (version != BinaryResultWriter.VERSION) {
+                throw new IllegalStateException("Unsupported results version " + version);
+            }
+            compressed = (input.readInt() & BinaryResultWriter.FLAG_DEFLATE) != 0;
+            totalShipmentPrice = input.readFloat();
+        }
+
+        static BinaryResultReader open(String path) throws IOException {
+            return new BinaryResultReader(Files.newInputStream(Paths.get(path)));
+        }
+
+        float getTotalShipmentPrice() {
+            return totalShipmentPrice;
+        }
+
+        /**
+         * Moves to the next row.
+         *
+         * @return false at the end of the results
+         */
+        boolean next() throws IOException {
+            if (++row < rows) {
+                return true;
+            }
+            while (!ended) {
+                readBlock();
+                if (rows > 0) {
+                    row = 0;
+                    return true;
+                }
+            }
+            return false;
+        }
+
+        long getOrderId() {
+            return orderIds[row];
+        }
+
+        String getWarehouse() {
+            return warehouseNames[warehouses[row]];
+        }
+
+        long getDeliveryEpochMinute() {
+            return deliveryEpochMinutes[row];
+        }
+
+        String getBoxType() {
+            return boxTypeNames[boxTypes[row]];
+        }
+
+        /**
+         * @return the shipping price in thousandths
+         */
+        long getShippingPrice() {
+            return shippingPrices[row];
+        }
+
+        /**
+         * @return the shipping experience price in thousandths
+         */
+        long getShippingExperiencePrice() {
+            return shippingExperiencePrices[row];
+        }
+
+        @Override
+        public void close() throws IOException {
+            inflater.end();
+            input.close();
+        }
+
+        /**
+         * Writes the results of a binary file as the usual text output.
+         *
+         * @return the number of rows
+         */
+        static long decode(String path, String output) throws IOException {
+            long rows = 0;
+            try (BinaryResultReader reader = open(path); ResultWriter writer = ResultWriter.open(output)) {
+                writer.writeTotal(reader.getTotalShipmentPrice());
+                while (reader.next()) {
+                    writer.write(reader);
+                    rows++;
+                }
+            }
+            return rows;
+        }
+
+        private void readBlock() throws IOException {
+            rows = 0;
+            row = -1;
+            int storedLength = input.readInt();
+            if (storedLength < 0) {
+                long totalRows = input.readLong();
+                if (totalRows != rowsRead) {
+                    throw new IllegalStateException("Expected " + totalRows + " rows but read " + rowsRead);
+                }
+                ended = true;
+                return;
+            }
+            int rawLength = input.readInt();
+            long checksum = input.readLong();
+            if (stored.length < storedLength) {
+                stored = new byte[storedLength];
+            }
+            input.readFully(stored, 0, storedLength);
+            if (compressed) {
+                if (block.length < rawLength) {
+                    block = new byte[rawLength];
+                }
+                inflater.reset();
+                inflater.setInput(stored, 0, storedLength);
+                try {
+                    if (inflater.inflate(block, 0, rawLength) != rawLength || !inflater.finished()) {
+                        throw new IllegalStateException("Corrupted results block");
+                    }
+                } catch (DataFormatException e) {
+                    throw new IllegalStateException("Corrupted results block", e);
+                }
+            } else {
+                byte[] swap = block;
+                block = stored;
+                stored = swap;
+            }
+            CRC32 crc = new CRC32();
+            crc.update(block, 0, rawLength);
+            if (crc.getValue() != checksum) {
+                throw new IllegalStateException("Corrupted results block");
+            }
+
+            position = 0;
+            int blockRows = (int) getVarLong();
+            warehouseNames = new String[(int) getVarLong()];
+            for (int i = 0; i < warehouseNames.length; i++) {
+                warehouseNames[i] = getString();
+            }
+            boxTypeNames = new String[(int) getVarLong()];
+            for (int i = 0; i < boxTypeNames.length; i++) {
+                boxTypeNames[i] = getString();
+            }
+            if (orderIds.length < blockRows) {
+                orderIds = new long[blockRows];
+                warehouses = new int[blockRows];
+                deliveryEpochMinutes = new long[blockRows];
+                boxTypes = new int[blockRows];
+                shippingPrices = new long[blockRows];
+                shippingExperiencePrices = new long[blockRows];
+            }
+            getDeltas(orderIds, blockRows);
+            getIds(warehouses, blockRows);
+            getDeltas(deliveryEpochMinutes, blockRows);
+            getIds(boxTypes, blockRows);
+            for (int i = 0; i < blockRows; i++) {
+                shippingPrices[i] = unzigzag(getVarLong());
+            }
+            for (int i = 0; i < blockRows; i++) {
+                shippingExperiencePrices[i] = unzigzag(getVarLong());
+            }
+            rows = blockRows;
+            rowsRead += blockRows;
+        }
+
+        private void getDeltas(long[] column, int count) {
+            long previous = 0;
+            for (int i = 0; i < count; i++) {
+                previous += unzigzag(getVarLong());
+                column[i] = previous;
+            }
+        }
+
+        private void getIds(int[] column, int count) {
+            for (int i = 0; i < count; i++) {
+                column[i] = (int) getVarLong();
+            }
+        }
+
+        private String getString() {
+            int length = (int) getVarLong();
+            String value = new String(block, position, length, StandardCharsets.UTF_8);
+            position += length;
+            return value;
+        }
+
+        private long getVarLong() {
+            long value = 0;
+            for (int shift = 0; ; shift += 7) {
+                byte next = block[position++];
+                value |= (long) (next & 0x7F) << shift;
+                if (next >= 0) {
+                    return value;
+                }
+            }
+        }
+
+        private static long unzigzag(long value) {
+            return (value >>> 1) ^ -(value & 1);
+        }
+    }
+
+    static class ShipmentsManager {
+
+        static final int PACKAGE_PREPARATION_HOURS = 4;
+
+        static final Comparator<Order> BY_ORDER_DATE = Comparator.comparingLong(Order::getOrderEpochMinute);
+
+        static class NoSuitableBoxException extends RuntimeException {
+            private static final long serialVersionUID = 7513400494522133911L;
+
+            public NoSuitableBoxException(String itemId) {
+                super("There is no suitable for item " + itemId);
+            }
+        }
+
+        static class NoSuitableWarehouseException extends RuntimeException {
+            private static final long serialVersionUID = 7513400494522133911L;
+
+            public NoSuitableWarehouseException(String itemId, String targetState) {
+                super("There is no warehouse with stock and deliver options for item " + itemId + " and target state "
+                        + targetState);
+            }
+        }
+
+        /**
+         * Why an order could not be allocated, as recorded by {@link Rejects}.
+         */
+        enum RejectReason {
+            UNKNOWN_ITEM, NO_SUITABLE_BOX, NO_STOCK, NO_ROUTE
+        }
+
+        /**
+         * Orders that could not be allocated with the reason, for runs that skip them instead of failing.
+         * Reasons are shared enum constants, so a reject costs a slot in two arrays and nothing else.
+         */
+        static class Rejects {
+            private Order[] orders = new Order[64];
+            private byte[] reasons = new byte[64];
+            private int size;
+            private final long[] countsByReason = new long[RejectReason.values().length];
+
+            synchronized void add(Order order, RejectReason reason) {
+                if (size == orders.length) {
+                    orders = Arrays.copyOf(orders, size * 2);
+                    reasons = Arrays.copyOf(reasons, size * 2);
+                }
+                orders[size] = order;
+                reasons[size++] = (byte) reason.ordinal();
+                countsByReason[reason.ordinal()]++;
+            }
+
+            synchronized int size() {
+                return size;
+            }
+
+            synchronized Order orderAt(int index) {
+                return orders[index];
+            }
+
+            synchronized RejectReason reasonAt(int index) {
+                return RejectReason.values()[reasons[index]];
+            }
+
+            /**
+             * Sorts the rejects by order date, keeping the order of rejects with the same date.
+             */
+            synchronized void sortByDate() {
+                Integer[] indexes = new Integer[size];
+                for (int i = 0; i < size; i++) {
+                    indexes[i] = i;
+                }
+                Arrays.sort(indexes, Comparator.comparingLong(i -> orders[i].getOrderEpochMinute()));
+                Order[] sortedOrders = new Order[orders.length];
+                byte[] sortedReasons = new byte[reasons.length];
+                for (int i = 0; i < size; i++) {
+                    sortedOrders[i] = orders[indexes[i]];
+                    sortedReasons[i] = reasons[indexes[i]];
+                }
+                orders = sortedOrders;
+                reasons = sortedReasons;
+            }
+
+            /**
+             * Writes one line per reject, the order as in the input followed by the reason.
+             */
+            synchronized void write(String path) throws IOException {
+                try (ResultWriter writer = ResultWriter.open(path)) {
+                    for (int i = 0; i < size; i++) {
+                        writer.write(orders[i], RejectReason.values()[reasons[i]]);
+                    }
+                }
+            }
+
+            @Override
+            public synchronized String toString() {
+                StringBuilder summary = new StringBuilder("rejects: ").append(size);
+                for (RejectReason reason : RejectReason.values()) {
+                    summary.append(", ").append(reason.name().toLowerCase()).append(' ')
+                            .append(countsByReason[reason.ordinal()]);
+                }
+                return summary.toString();
+            }
+        }
+
+        /**
+         * Changes to the stock counts and routes of a manager for a what-if run, see
+         * {@link ShipmentsManager#fork(Scenario)}.
+         */
+        static class Scenario {
+            static class StockKey {
+                final String itemId;
+                final Warehouse warehouse;
+
+                StockKey(String itemId, Warehouse warehouse) {
+                    this.itemId = itemId;
+                    this.warehouse = warehouse;
+                }
+
+                @Override
+                public boolean equals(Object other) {
+                    if (this == other) {
+                        return true;
+                    }
+                    if (!(other instanceof StockKey)) {
+                        return false;
+                    }
+                    StockKey that = (StockKey) other;
+                    return warehouse == that.warehouse && itemId.equals(that.itemId);
+                }
+
+                @Override
+                public int hashCode() {
+                    return 31 * itemId.hashCode() + Objects.hashCode(warehouse);
+                }
+            }
+
+            final String name;
+            // new count of a stock row from its current count
+            private final Map<StockKey, IntUnaryOperator> stocks = new LinkedHashMap<>();
+            private final Map<RouteKey, CarrierPricing> carrierPricings = new LinkedHashMap<>();
+            private final Map<RouteKey, CarrierTime> carrierTimes = new LinkedHashMap<>();
+
+            Scenario(String name) {
+                this.name = name;
+            }
+
+            Scenario setStock(String itemId, Warehouse warehouse, int stock) {
+                stocks.put(new StockKey(itemId, warehouse), current -> stock);
+                return this;
+            }
+
+            /**
+             * Multiplies the stock of an item in a warehouse, rounding to the nearest unit.
+             */
+            Scenario scaleStock(String itemId, Warehouse warehouse, double factor) {
+                stocks.put(new StockKey(itemId, warehouse), current -> (int) Math.round(current * factor));
+                return this;
+            }
+
+            Scenario setCarrierPricing(Warehouse warehouse, String targetState, float volumePrice) {
+                carrierPricings.put(new RouteKey(warehouse, targetState),
+                        new CarrierPricing(warehouse, targetState, volumePrice));
+                return this;
+            }
+
+            Scenario setCarrierTime(Warehouse warehouse, String targetState, int carrierTime) {
+                carrierTimes.put(new RouteKey(warehouse, targetState),
+                        new CarrierTime(warehouse, targetState, carrierTime));
+                return this;
+            }
+
+            @Override
+            public String toString() {
+                return "scenario " + name;
+            }
+        }
+
+        private final CarrierPricingRepository carrierPricingRepository;
+        private final BoxTypeRepository boxTypeRepository;
+        private final ItemRepository itemRepository;
+        private final DepartureTimeRepository departureTimeRepository;
+        private final CarrierTimeRepository carrierTimeRepository;
+        private final StockRepository stockRepository;
+        // routes towards a target state, indexed by warehouse ordinal
+        private final Map<String, Route[]> routesByState = new HashMap<>();
+        // the warehouses of the reference data by index, with the length of every per-warehouse array
+        private final Warehouse[] warehouses;
+        private final int warehouseCount;
+        private final ShippingCostCache shippingCosts;
+        private volatile RunMetrics metrics = new RunMetrics();
+        // scratch space of the orders allocated one at a time, batches hold one per partition
+        private final ThreadLocal<Selection> selections = ThreadLocal.withInitial(Selection::new);
+
+        public ShipmentsManager(List<Item> items, List<BoxType> boxTypes, List<CarrierPricing> carrierPricings,
+                                List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes, List<Stock> initialStocks) {
+            this(items, boxTypes, carrierPricings, departureTimes, carrierTimes, initialStocks,
+                    ShippingCostCache.AUTO_CAPACITY);
+        }
+
+        /**
+         * @param costCacheCapacity the number of (item, state) cost entries kept in an LRU cache, or
+         *                          {@link ShippingCostCache#AUTO_CAPACITY} to precompute all of them when the
+         *                          catalogue is small enough and use a default LRU capacity otherwise
+         */
+        public ShipmentsManager(List<Item> items, List<BoxType> boxTypes, List<CarrierPricing> carrierPricings,
+                                List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes, List<Stock> initialStocks,
+                                int costCacheCapacity) {
+            this(items, boxTypes, carrierPricings, departureTimes, carrierTimes, initialStocks, costCacheCapacity,
+                    null, null);
+        }
+
+        /**
+         * @param boxAssignments the box of every item as saved in a snapshot, see {@link CatalogSnapshot}, or
+         *                       null to compute them
+         * @param costMatrix     the cost entries saved in a snapshot, decoded from it when first used instead of
+         *                       being precomputed, or null to compute them
+         */
+        ShipmentsManager(List<Item> items, List<BoxType> boxTypes, List<CarrierPricing> carrierPricings,
+                         List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes, List<Stock> initialStocks,
+                         int costCacheCapacity, List<BoxType> boxAssignments, CatalogSnapshot.CostMatrix costMatrix) {
+            warehouses = warehousesOf(initialStocks, carrierPricings, departureTimes, carrierTimes);
+            warehouseCount = warehouses.length;
+            carrierPricingRepository = new CarrierPricingRepository(carrierPricings);
+            boxTypeRepository = new BoxTypeRepository(boxTypes, items, boxAssignments);
+            itemRepository = new ItemRepository(items);
+            departureTimeRepository = new DepartureTimeRepository(departureTimes);
+            carrierTimeRepository = new CarrierTimeRepository(carrierTimes);
+            stockRepository = new StockRepository(initialStocks);
+            for (CarrierPricing carrierPricing : carrierPricings) {
+                Warehouse warehouse = carrierPricing.getWarehouse();
+                String state = carrierPricing.getTargetState();
+                Optional<DepartureTime> departureTime = departureTimeRepository.findByWarehouseAndState(warehouse, state);
+                Optional<CarrierTime> carrierTime = carrierTimeRepository.findByWarehouseAndState(warehouse, state);
+                if (departureTime.isPresent() && carrierTime.isPresent()) {
+                    routesByState.computeIfAbsent(state, k -> new Route[warehouseCount])[warehouse.index()] =
+                            new Route(warehouse, carrierPricing, departureTime.get(), carrierTime.get());
+                }
+            }
+            long matrixSize = (long) items.size() * routesByState.size();
+            if (costMatrix != null) {
+                if (costMatrix.warehouseCount != warehouseCount) {
+                    throw new IllegalStateException("Cost matrix of " + costMatrix.warehouseCount
+                            + " warehouses for " + warehouseCount);
+                }
+                BiFunction<String, String, CostEntry> decoder = (itemId, state) ->
+                        costMatrix.entry(itemId, state, this);
+                shippingCosts = costCacheCapacity == ShippingCostCache.AUTO_CAPACITY
+                        ? ShippingCostCache.mapped(decoder, this::computeCostEntry)
+                        : ShippingCostCache.lru(costCacheCapacity, (itemId, state) -> {
+                    CostEntry entry = decoder.apply(itemId, state);
+                    return entry != null ? entry : computeCostEntry(itemId, state);
+                });
+            } else if (costCacheCapacity == ShippingCostCache.AUTO_CAPACITY
+                    && matrixSize <= ShippingCostCache.MAX_EAGER_ENTRIES) {
+                Map<ShippingCostCache.Key, CostEntry> entries = new HashMap<>((int) matrixSize * 2);
+                for (Item item : items) {
+                    if (!boxTypeRepository.hasBoxFor(item.getItemId())) {
+                        continue;
+                    }
+                    for (String state : routesByState.keySet()) {
+                        entries.put(new ShippingCostCache.Key(item.getItemId(), state),
+                                computeCostEntry(item.getItemId(), state));
+                    }
+                }
+                shippingCosts = ShippingCostCache.eager(entries, this::computeCostEntry);
+            } else {
+                shippingCosts = ShippingCostCache.lru(costCacheCapacity == ShippingCostCache.AUTO_CAPACITY
+                        ? ShippingCostCache.DEFAULT_CAPACITY : costCacheCapacity, this::computeCostEntry);
+            }
+        }
+
+        /**
+         * @return the warehouses the reference data refers to, by index, which must all come from the same input
+         */
+        private static Warehouse[] warehousesOf(List<Stock> stocks, List<CarrierPricing> carrierPricings,
+                                                List<DepartureTime> departureTimes, List<CarrierTime> carrierTimes) {
+            List<Warehouse> referenced = new ArrayList<>();
+            stocks.forEach(stock -> referenced.add(stock.getWarehouse()));
+            carrierPricings.forEach(carrierPricing -> referenced.add(carrierPricing.getWarehouse()));
+            departureTimes.forEach(departureTime -> referenced.add(departureTime.getWarehouse()));
+            carrierTimes.forEach(carrierTime -> referenced.add(carrierTime.getWarehouse()));
+            Warehouse[] warehouses = new Warehouse[0];
+            for (Warehouse warehouse : referenced) {
+                if (warehouse == null) {
+                    continue;
+                }
+                if (warehouse.index() >= warehouses.length) {
+                    warehouses = Arrays.copyOf(warehouses, warehouse.index() + 1);
+                }
+                Warehouse known = warehouses[warehouse.index()];
+                if (known != null && known != warehouse) {
+                    throw new IllegalStateException("Warehouses of different inputs: " + known + ", " + warehouse);
+                }
+                warehouses[warehouse.index()] = warehouse;
+            }
+            return warehouses;
+        }
+
+        /**
+         * A manager for a what-if scenario: the reference data is shared with the base manager, the stock
+         * counts are forked from its current ones and the overrides of the scenario applied on top. The metrics
+         * are those of the base manager, so a run records all its scenarios in one place. Cost entries
+         * of states whose routes the scenario does not change come from the cache of the base manager.
+         */
+        private ShipmentsManager(ShipmentsManager base, Scenario scenario) {
+            warehouses = base.warehouses;
+            warehouseCount = base.warehouseCount;
+            carrierPricingRepository = base.carrierPricingRepository;
+            boxTypeRepository = base.boxTypeRepository;
+            itemRepository = base.itemRepository;
+            departureTimeRepository = base.departureTimeRepository;
+            carrierTimeRepository = base.carrierTimeRepository;
+            stockRepository = base.stockRepository.fork();
+            routesByState.putAll(base.routesByState);
+            metrics = base.metrics;
+
+            Set<RouteKey> changedRoutes = new HashSet<>(scenario.carrierPricings.keySet());
+            changedRoutes.addAll(scenario.carrierTimes.keySet());
+            Set<String> changedStates = new HashSet<>();
+            for (RouteKey key : changedRoutes) {
+                if (key.warehouse.index() >= warehouseCount || warehouses[key.warehouse.index()] != key.warehouse) {
+                    throw new IllegalArgumentException("Unknown warehouse " + key.warehouse + " in " + scenario);
+                }
+                CarrierPricing carrierPricing = scenario.carrierPricings.containsKey(key)
+                        ? scenario.carrierPricings.get(key)
+                        : carrierPricingRepository.findByWarehouseAndState(key.warehouse, key.targetState).orElse(null);
+                CarrierTime carrierTime = scenario.carrierTimes.containsKey(key) ? scenario.carrierTimes.get(key)
+                        : carrierTimeRepository.findByWarehouseAndState(key.warehouse, key.targetState).orElse(null);
+                Optional<DepartureTime> departureTime = departureTimeRepository.findByWarehouseAndState(key.warehouse,
+                        key.targetState);
+                Route[] baseRoutes = routesByState.get(key.targetState);
+                Route[] routes = baseRoutes == null ? new Route[warehouseCount] : baseRoutes.clone();
+                routes[key.warehouse.index()] = carrierPricing != null && carrierTime != null
+                        && departureTime.isPresent()
+                        ? new Route(key.warehouse, carrierPricing, departureTime.get(), carrierTime) : null;
+                routesByState.put(key.targetState, routes);
+                changedStates.add(key.targetState);
+            }
+            ShippingCostCache baseCosts = base.shippingCosts;
+            shippingCosts = changedStates.isEmpty() ? baseCosts
+                    : ShippingCostCache.lru(ShippingCostCache.DEFAULT_CAPACITY, (itemId, state) ->
+                    changedStates.contains(state) ? computeCostEntry(itemId, state) : baseCosts.get(itemId, state));
+
+            scenario.stocks.forEach((key, change) -> {
+                int position = stockRepository.positionOf(key.itemId, key.warehouse);
+                if (position < 0) {
+                    throw new IllegalArgumentException("No stock of item " + key.itemId + " in " + key.warehouse
+                            + " for " + scenario);
+                }
+                stockRepository.setStockAt(position, change.applyAsInt(stockRepository.stockAt(position)));
+            });
+        }
+
+        /**
+         * A manager that allocates the scenario from the current stock of this one, which is left as it is. The
+         * reference data is shared, so forks are cheap and many of them can allocate concurrently, but nothing may
+         * be allocated on this manager while it is being forked.
+         */
+        public ShipmentsManager fork(Scenario scenario) {
+            return new ShipmentsManager(this, scenario);
+        }
+
+        public List<String> getItemsWithoutBox() {
+            return boxTypeRepository.getItemsWithoutBox();
+        }
+
+        public String getBoxAssignmentStats() {
+            return "box assignments: " + boxTypeRepository.getCacheHits() + " cache hits, "
+                    + boxTypeRepository.getComputations() + " computations";
+        }
+
+        public String getShippingCostStats() {
+            return shippingCosts.toString();
+        }
+
+        public RunMetrics getMetrics() {
+            return metrics;
+        }
+
+        /**
+         * Records the allocations into the given metrics, typically those that also time the other stages.
+         */
+        public void setMetrics(RunMetrics metrics) {
+            this.metrics = metrics;
+        }
+
+        public ShipmentInfo findBestShipmentInfo(Order order) {
+            return allocate(order, null);
+        }
+
+        /**
+         * @return the shipment, or null if the order was added to the rejects
+         */
+        public ShipmentInfo findBestShipmentInfo(Order order, Rejects rejects) {
+            return allocate(order, rejects);
+        }
+
+        /**
+         * Allocates the orders in date order in a single pass. Orders with the same date keep their relative
+         * order, so the result is the same as calling {@link #findBestShipmentInfo(Order)} on each of them after
+         * a stable sort.
+         */
+        public List<ShipmentInfo> findBestShipmentInfo(List<Order> orders) {
+            return findBestShipmentInfo(orders, 1, null);
+        }
+
+        /**
+         * Allocates the orders on the given number of threads. Orders are partitioned by item, because only
+         * orders of the same item compete for the same stock, and every partition is allocated in date order,
+         * so the result is the same as the sequential run.
+         */
+        public List<ShipmentInfo> findBestShipmentInfo(List<Order> orders, int threads) {
+            return findBestShipmentInfo(orders, threads, null);
+        }
+
+        /**
+         * Allocates the orders like {@link #findBestShipmentInfo(List, int)}, but orders that cannot be
+         * allocated are added to the rejects and left out of the result instead of failing the whole run.
+         *
+         * @param rejects where to collect the orders that cannot be allocated, or null to fail on the first one
+         */
+        public List<ShipmentInfo> findBestShipmentInfo(List<Order> orders, int threads, Rejects rejects) {
+            Order[] sortedOrders = orders.toArray(new Order[0]);
+            Arrays.sort(sortedOrders, BY_ORDER_DATE);
+            if (threads <= 1) {
+                List<ShipmentInfo> shipmentInfos = new ArrayList<>(sortedOrders.length);
+                Selection best = new Selection();
+                for (Order order : sortedOrders) {
+                    ShipmentInfo shipmentInfo = allocate(order, rejects, best);
+                    if (shipmentInfo != null) {
+                        shipmentInfos.add(shipmentInfo);
+                    }
+                }
+                return shipmentInfos;
+            }
+            ShipmentInfo[] shipmentInfos = new ShipmentInfo[sortedOrders.length];
+            forEachItem(sortedOrders, threads, partition -> {
+                Selection best = new Selection();
+                for (int i : partition) {
+                    shipmentInfos[i] = allocate(sortedOrders[i], rejects, best);
+                }
+            });
+            return withoutRejects(shipmentInfos);
+        }
+
+        /**
+         * Allocates the orders like {@link #findBestShipmentInfo(List, int, Rejects)} with the stock held by a
+         * ledger, see {@link StockLedger}, which logs every allocation. Orders whose allocation the ledger
+         * already committed in an earlier run of the same input are taken from the log instead of being
+         * allocated again, so an interrupted run resumes where it stopped.
+         */
+        public List<ShipmentInfo> findBestShipmentInfo(List<Order> orders, int threads, Rejects rejects,
+                                                       StockLedger ledger) throws IOException {
+            Order[] sortedOrders = orders.toArray(new Order[0]);
+            Arrays.sort(sortedOrders, BY_ORDER_DATE);
+            ShipmentInfo[] shipmentInfos = new ShipmentInfo[sortedOrders.length];
+            boolean[] committed = new boolean[sortedOrders.length];
+            ledger.attach(stockRepository, sortedOrders);
+            ledger.replay((orderIndex, position) -> {
+                Order order = sortedOrders[orderIndex];
+                committed[orderIndex] = true;
+                if (position >= 0) {
+                    stockRepository.reduceStockAt(position);
+                    shipmentInfos[orderIndex] = shipmentInfoAt(order, position);
+                } else if (rejects != null) {
+                    rejects.add(order, StockLedger.rejectReason(position));
+                }
+            });
+            forEachItem(sortedOrders, threads, partition -> {
+                Selection best = new Selection();
+                for (int i : partition) {
+                    if (!committed[i]) {
+                        shipmentInfos[i] = allocate(sortedOrders[i], rejects, best);
+                        ledger.append(i, shipmentInfos[i] != null ? best.position
+                                : StockLedger.rejectValue(best.rejectReason));
+                    }
+                }
+            });
+            ledger.commit();
+            return withoutRejects(shipmentInfos);
+        }
+
+        /**
+         * @return the shipment of an order from the given stock row, as {@link #select} prices it
+         */
+        ShipmentInfo shipmentInfoAt(Order order, int position) {
+            CostEntry costs = costEntry(order.getItemId(), order.getTargetState());
+            Warehouse warehouse = stockRepository.warehouseAt(position);
+            long guaranteedDeliveryEpochMinute = costs.timetables[warehouse.index()]
+                    .nextDeparture(order.getOrderEpochMinute()) + costs.carrierMinutes[warehouse.index()];
+            return new ShipmentInfo(order, warehouse, guaranteedDeliveryEpochMinute, costs.boxType.getBoxType(),
+                    costs.shippingPrice[warehouse.index()]);
+        }
+
+        /**
+         * Allocates the orders to minimize the summed total price within every time window, instead of
+         * greedily giving every order the cheapest warehouse left. Every item is a transportation problem
+         * from its orders to its stock rows, see {@link TransportationProblem}, and items are solved in
+         * parallel. Windows of an item are solved in date order, each one with the stock the previous ones
+         * left. Delivery dates and prices follow the same rules as {@link #findBestShipmentInfo(Order)}.
+         *
+         * <p>When the stock of an item does not cover its orders, as many orders as possible are allocated and
+         * the rest are rejected. A stocked warehouse without a route to the state of an order is not a
+         * candidate for that order.
+         *
+         * @param windowMinutes length of the windows from the first order, or 0 for a single window
+         * @param rejects       where to collect the orders that cannot be allocated, or null to fail on the
+         *                      first one
+         */
+        public List<ShipmentInfo> findOptimalShipmentInfo(List<Order> orders, long windowMinutes, int threads,
+                                                          Rejects rejects) {
+            Order[] sortedOrders = orders.toArray(new Order[0]);
+            Arrays.sort(sortedOrders, BY_ORDER_DATE);
+            ShipmentInfo[] shipmentInfos = new ShipmentInfo[sortedOrders.length];
+            long firstEpochMinute = sortedOrders.length == 0 ? 0 : sortedOrders[0].getOrderEpochMinute();
+            forEachItem(sortedOrders, Math.max(1, threads), partition -> {
+                int start = 0;
+                while (start < partition.size()) {
+                    int end = start + 1;
+                    if (windowMinutes > 0) {
+                        long window = (sortedOrders[partition.get(start)].getOrderEpochMinute() - firstEpochMinute)
+                                / windowMinutes;
+                        while (end < partition.size() && (sortedOrders[partition.get(end)].getOrderEpochMinute()
+                                - firstEpochMinute) / windowMinutes == window) {
+                            end++;
+                        }
+                    } else {
+                        end = partition.size();
+                    }
+                    allocateOptimally(sortedOrders, partition.subList(start, end), shipmentInfos, rejects);
+                    start = end;
+                }
+            });
+            return withoutRejects(shipmentInfos);
+        }
+
+        /**
+         * Solves the transportation problem of the orders of one item in one window.
+         */
+        private void allocateOptimally(Order[] sortedOrders, List<Integer> window, ShipmentInfo[] shipmentInfos,
+                                       Rejects rejects) {
+            String itemId = sortedOrders[window.get(0)].getItemId();
+            if (!boxTypeRepository.hasBoxFor(itemId)) {
+                if (rejects == null) {
+                    throw failureWithoutBox(itemId, sortedOrders[window.get(0)].getTargetState());
+                }
+                RejectReason reason = itemRepository.findById(itemId).isPresent() ? RejectReason.NO_SUITABLE_BOX
+                        : RejectReason.UNKNOWN_ITEM;
+                for (int i : window) {
+                    rejects.add(sortedOrders[i], reason);
+                }
+                return;
+            }
+            int[] positions = stockRepository.positionsOf(itemId);
+            int[] capacities = new int[positions.length];
+            for (int j = 0; j < positions.length; j++) {
+                capacities[j] = Math.max(0, stockRepository.stockAt(positions[j]));
+            }
+            TransportationProblem problem = new TransportationProblem(window.size(), capacities);
+            long[][] deliveries = new long[window.size()][positions.length];
+            float[][] carrierPrices = new float[window.size()][positions.length];
+            // orders that only have stock without a route are rejected for the route, like select does
+            boolean[] onlyUnroutedStock = new boolean[window.size()];
+            for (int i = 0; i < window.size(); i++) {
+                Order order = sortedOrders[window.get(i)];
+                CostEntry costs = costEntry(itemId, order.getTargetState());
+                boolean routedStock = false;
+                boolean unroutedStock = false;
+                for (int j = 0; j < positions.length; j++) {
+                    int warehouse = stockRepository.warehouseAt(positions[j]).index();
+                    DepartureTimetable timetable = costs.timetables[warehouse];
+                    routedStock |= timetable != null && capacities[j] > 0;
+                    unroutedStock |= timetable == null && capacities[j] > 0;
+                    if (timetable != null) {
+                        deliveries[i][j] = timetable.nextDeparture(order.getOrderEpochMinute())
+                                + costs.carrierMinutes[warehouse];
+                        carrierPrices[i][j] = costs.shippingPrice[warehouse];
+                        problem.setCost(i, j, carrierPrices[i][j]
+                                + ShipmentInfo.experiencePrice(order.getOrderEpochMinute(), deliveries[i][j]));
+                    }
+                }
+                onlyUnroutedStock[i] = unroutedStock && !routedStock;
+            }
+            int[] assignment = problem.solve();
+            for (int i = 0; i < window.size(); i++) {
+                Order order = sortedOrders[window.get(i)];
+                int j = assignment[i];
+                if (j < 0) {
+                    RejectReason reason = onlyUnroutedStock[i] ? RejectReason.NO_ROUTE : RejectReason.NO_STOCK;
+                    if (rejects == null) {
+                        throw failure(reason, itemId, order.getTargetState());
+                    }
+                    if (reason == RejectReason.NO_STOCK) {
+                        metrics.noSuitableWarehouse.increment();
+                    } else {
+                        metrics.noRoute.increment();
+                    }
+                    rejects.add(order, reason);
+                    continue;
+                }
+                stockRepository.reduceStockAt(positions[j]);
+                shipmentInfos[window.get(i)] = new ShipmentInfo(order, stockRepository.warehouseAt(positions[j]),
+                        deliveries[i][j], costEntry(itemId, order.getTargetState()).boxType.getBoxType(),
+                        carrierPrices[i][j]);
+            }
+        }
+
+        private static List<ShipmentInfo> withoutRejects(ShipmentInfo[] shipmentInfos) {
+            List<ShipmentInfo> allocated = new ArrayList<>(shipmentInfos.length);
+            for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                if (shipmentInfo != null) {
+                    allocated.add(shipmentInfo);
+                }
+            }
+            return allocated;
+        }
+
+        /**
+         * Runs the action on the indexes of the orders of every item, in date order within an item, on the given
+         * number of threads. Only orders of the same item compete for the same stock, so items are independent.
+         */
+        private static void forEachItem(Order[] sortedOrders, int threads, Consumer<List<Integer>> action) {
+            Map<String, List<Integer>> partitions = new LinkedHashMap<>();
+            for (int i = 0; i < sortedOrders.length; i++) {
+                partitions.computeIfAbsent(sortedOrders[i].getItemId(), k -> new ArrayList<>()).add(i);
+            }
+            if (threads <= 1) {
+                partitions.values().forEach(action);
+                return;
+            }
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                pool.submit(() -> partitions.values().parallelStream().forEach(action)).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        /**
+         * Allocates the orders of a columnar order book, which is sorted by date first. Items and states are
+         * resolved once per distinct id instead of once per order, and so is the box of an item.
+         */
+        public ColumnarResults findBestShipmentInfo(OrderBook orders) {
+            orders.sortByDate();
+            List<BoxType> boxTypes = boxTypeRepository.getBoxTypes();
+            if (boxTypes.size() > Byte.MAX_VALUE) {
+                throw new IllegalStateException("Too many box types for columnar results: " + boxTypes.size());
+            }
+            if (warehouseCount > Byte.MAX_VALUE) {
+                throw new IllegalStateException("Too many warehouses for columnar results: " + warehouseCount);
+            }
+            ColumnarResults results = new ColumnarResults(orders, warehouses,
+                    boxTypes.stream().map(BoxType::getBoxType).toArray(String[]::new));
+
+            RunMetrics metrics = this.metrics;
+            Selection best = new Selection();
+            // the box of every item, by item index, once its first order is seen
+            byte[] boxTypeByItem = new byte[orders.itemIds.size()];
+            Arrays.fill(boxTypeByItem, (byte) -1);
+            for (int row = 0; row < orders.size; row++) {
+                long startNanos = System.nanoTime();
+                int itemIndex = orders.itemIndex[row];
+                String itemId = orders.itemIds.valueOf(itemIndex);
+                boolean newItem = boxTypeByItem[itemIndex] < 0;
+                if (newItem && !boxTypeRepository.hasBoxFor(itemId)) {
+                    throw failureWithoutBox(itemId, orders.states.valueOf(orders.stateIndex[row]));
+                }
+                CostEntry costs = costEntry(itemId, orders.states.valueOf(orders.stateIndex[row]));
+                if (newItem) {
+                    boxTypeByItem[itemIndex] = (byte) boxTypes.indexOf(costs.boxType);
+                }
+                RejectReason reason = select(best, orders.epochMinute[row], costs);
+                if (reason != null) {
+                    throw failure(reason, itemId, orders.states.valueOf(orders.stateIndex[row]));
+                }
+                stockRepository.reduceStockAt(best.position);
+                results.warehouse[row] = (byte) stockRepository.warehouseAt(best.position).index();
+                results.deliveryEpochMinute[row] = Math.toIntExact(best.deliveryEpochMinute);
+                results.boxType[row] = boxTypeByItem[itemIndex];
+                results.shippingPrice[row] = best.carrierPrice;
+                metrics.recordOrder(best.candidates, best.pruned, startNanos);
+            }
+            return results;
+        }
+
+        /**
+         * @param rejects where to add the order if it cannot be allocated, or null to throw instead
+         * @return the shipment, or null if the order was rejected
+         */
+        private ShipmentInfo allocate(Order order, Rejects rejects) {
+            return allocate(order, rejects, selections.get());
+        }
+
+        /**
+         * @param best where the chosen stock row, or the reason of a reject, is left
+         */
+        private ShipmentInfo allocate(Order order, Rejects rejects, Selection best) {
+            long startNanos = System.nanoTime();
+            if (!boxTypeRepository.hasBoxFor(order.getItemId())) {
+                if (rejects == null) {
+                    throw failureWithoutBox(order.getItemId(), order.getTargetState());
+                }
+                // checked first so that rejected items do not throw from the cost lookup for every order
+                RejectReason reason = itemRepository.findById(order.getItemId()).isPresent()
+                        ? RejectReason.NO_SUITABLE_BOX : RejectReason.UNKNOWN_ITEM;
+                if (reason == RejectReason.NO_SUITABLE_BOX) {
+                    metrics.noSuitableBox.increment();
+                }
+                best.position = -1;
+                best.rejectReason = reason;
+                rejects.add(order, reason);
+                return null;
+            }
+            CostEntry costs = costEntry(order.getItemId(), order.getTargetState());
+            RejectReason reason = select(best, order.getOrderEpochMinute(), costs);
+            best.rejectReason = reason;
+            if (reason != null) {
+                if (rejects == null) {
+                    throw failure(reason, order.getItemId(), order.getTargetState());
+                }
+                if (reason == RejectReason.NO_STOCK) {
+                    metrics.noSuitableWarehouse.increment();
+                } else {
+                    metrics.noRoute.increment();
+                }
+                rejects.add(order, reason);
+                return null;
+            }
+            stockRepository.reduceStockAt(best.position);
+            ShipmentInfo shipmentInfo = new ShipmentInfo(order, stockRepository.warehouseAt(best.position),
+                    best.deliveryEpochMinute, costs.boxType.getBoxType(), best.carrierPrice);
+            metrics.recordOrder(best.candidates, best.pruned, startNanos);
+            return shipmentInfo;
+        }
+
+        /**
+         * The exception of an order that cannot be allocated, when rejects are not collected.
+         */
+        private RuntimeException failure(RejectReason reason, String itemId, String state) {
+            switch (reason) {
+                case UNKNOWN_ITEM:
+                    return new IllegalStateException("Unknown item " + itemId);
+                case NO_SUITABLE_BOX:
+                    metrics.noSuitableBox.increment();
+                    return new NoSuitableBoxException(itemId);
+                case NO_STOCK:
+                    metrics.noSuitableWarehouse.increment();
+                    return new NoSuitableWarehouseException(itemId, state);
+                default:
+                    metrics.noRoute.increment();
+                    return new IllegalStateException("No route from a stocked warehouse for item " + itemId
+                            + " and target state " + state);
+            }
+        }
+
+        /**
+         * The exception of an order of an item without a box, when rejects are not collected. The stock is
+         * looked at before the box, as the baseline did, so an item with no stock left anywhere fails with
+         * {@link NoSuitableWarehouseException} rather than {@link NoSuitableBoxException}.
+         */
+        private RuntimeException failureWithoutBox(String itemId, String state) {
+            for (int position : stockRepository.positionsOf(itemId)) {
+                if (stockRepository.stockAt(position) > 0) {
+                    return failure(itemRepository.findById(itemId).isPresent() ? RejectReason.NO_SUITABLE_BOX
+                            : RejectReason.UNKNOWN_ITEM, itemId, state);
+                }
+            }
+            return failure(RejectReason.NO_STOCK, itemId, state);
+        }
+
+        private CostEntry costEntry(String itemId, String state) {
+            try {
+                return shippingCosts.get(itemId, state);
+            } catch (NoSuitableBoxException e) {
+                metrics.noSuitableBox.increment();
+                throw e;
+            }
+        }
+
+        /**
+         * Finds the cheapest warehouse with stock among the stock rows of an item. Only the departure depends
+         * on the order, everything else comes from the cost entry of the item and target state.
+         *
+         * <p>Stock rows are visited by ascending lower bound of their total price, and the search stops at the
+         * first bound above the best total found, as no later row can beat it. The winner does not depend on
+         * the visiting order: the lowest total price, then the most stock left, then the first stock row, which
+         * is the one {@code Stream.min} picked when every row was evaluated in stock order.
+         *
+         * <p>The choice is remembered in the cost entry, see {@link AllocationMemo}, when it is strictly the
+         * cheapest, and reused for the next orders of the same item and state that fall in the same range of
+         * minutes, as long as the winner has stock left and no row that had none got some back.
+         *
+         * <p>Stocked rows of warehouses without a route to the state are skipped; the order is only rejected for
+         * the lack of a route when no stocked row has one.
+         *
+         * @return null if a warehouse was found, in which case it is described by best, otherwise why not
+         */
+        private RejectReason select(Selection best, long orderEpochMinute, CostEntry costs) {
+            best.position = -1;
+            best.candidates = 0;
+            best.pruned = 0;
+            AllocationMemo memo = costs.memo;
+            if (memo != null && memo.appliesTo(orderEpochMinute, stockRepository)) {
+                best.position = memo.position;
+                best.deliveryEpochMinute = memo.deliveryEpochMinute;
+                best.carrierPrice = memo.carrierPrice;
+                best.totalPrice = memo.totalPrice;
+                metrics.memoHits.increment();
+                return null;
+            }
+            metrics.memoMisses.increment();
+            // the minutes around the order for which every evaluated row keeps its departure and whole hours
+            long validFrom = Long.MIN_VALUE;
+            long validUntil = Long.MAX_VALUE;
+            float runnerUpTotalPrice = Float.POSITIVE_INFINITY;
+            int unstocked = 0;
+            boolean unroutedStock = false;
+            int[] positions = costs.positions;
+            for (int i = 0; i < positions.length; i++) {
+                if (best.position >= 0 && costs.lowerBounds[i] > best.totalPrice) {
+                    best.pruned = positions.length - i;
+                    break;
+                }
+                int position = positions[i];
+                int stock = stockRepository.stockAt(position);
+                if (stock <= 0) {
+                    if (unstocked == best.unstocked.length) {
+                        best.unstocked = Arrays.copyOf(best.unstocked, unstocked * 2 + 4);
+                    }
+                    best.unstocked[unstocked++] = position;
+                    continue;
+                }
+                int warehouse = stockRepository.warehouseAt(position).index();
+                DepartureTimetable timetable = costs.timetables[warehouse];
+                if (timetable == null) {
+                    // never a candidate whatever its stock, so the memo does not need to watch it
+                    unroutedStock = true;
+                    continue;
+                }
+                best.candidates++;
+                float carrierPrice = costs.shippingPrice[warehouse];
+                long guaranteedDeliveryEpochMinute = timetable.nextDeparture(orderEpochMinute)
+                        + costs.carrierMinutes[warehouse];
+                float totalPrice = carrierPrice
+                        + ShipmentInfo.experiencePrice(orderEpochMinute, guaranteedDeliveryEpochMinute);
+                validFrom = Math.max(validFrom, Math.max(timetable.sameDepartureFrom(orderEpochMinute),
+                        guaranteedDeliveryEpochMinute - Math.floorDiv(guaranteedDeliveryEpochMinute - orderEpochMinute,
+                                60) * 60 - 59));
+                validUntil = Math.min(validUntil, Math.min(timetable.sameDepartureUntil(orderEpochMinute),
+                        guaranteedDeliveryEpochMinute - Math.floorDiv(guaranteedDeliveryEpochMinute - orderEpochMinute,
+                                60) * 60));
+                int compareTotalPrice = best.position < 0 ? 1 : Float.compare(best.totalPrice, totalPrice);
+                if (compareTotalPrice > 0 || (compareTotalPrice == 0
+                        && (stock > best.stock || (stock == best.stock && position < best.position)))) {
+                    if (best.position >= 0) {
+                        runnerUpTotalPrice = Math.min(runnerUpTotalPrice, best.totalPrice);
+                    }
+                    best.position = position;
+                    best.stock = stock;
+                    best.deliveryEpochMinute = guaranteedDeliveryEpochMinute;
+                    best.carrierPrice = carrierPrice;
+                    best.totalPrice = totalPrice;
+                } else {
+                    runnerUpTotalPrice = Math.min(runnerUpTotalPrice, totalPrice);
+                }
+            }
+            if (best.position < 0) {
+                return unroutedStock ? RejectReason.NO_ROUTE : RejectReason.NO_STOCK;
+            }
+            // rows beyond the pruning point have a bound above the best total, so only a tie with an evaluated
+            // row could let stock decide
+            if (best.totalPrice < runnerUpTotalPrice) {
+                costs.memo = new AllocationMemo(validFrom, validUntil, best, Arrays.copyOf(best.unstocked, unstocked));
+            }
+            return null;
+        }
+
+        /**
+         * The choice of {@link #select} for the orders of an item and state between two minutes, in which the
+         * departure and the whole hours to the delivery of every evaluated row stay the same, so every total
+         * price does too. It holds while the winner, which was strictly the cheapest, has stock left, and the
+         * rows that had none still have none; rows that ran out since only leave fewer competitors.
+         */
+        static class AllocationMemo {
+            final long validFrom;
+            final long validUntil;
+            final int position;
+            final long deliveryEpochMinute;
+            final float carrierPrice;
+            final float totalPrice;
+            final int[] unstockedPositions;
+
+            AllocationMemo(long validFrom, long validUntil, Selection best, int[] unstockedPositions) {
+                this.validFrom = validFrom;
+                this.validUntil = validUntil;
+                this.position = best.position;
+                this.deliveryEpochMinute = best.deliveryEpochMinute;
+                this.carrierPrice = best.carrierPrice;
+                this.totalPrice = best.totalPrice;
+                this.unstockedPositions = unstockedPositions;
+            }
+
+            boolean appliesTo(long orderEpochMinute, StockRepository stockRepository) {
+                if (orderEpochMinute < validFrom || orderEpochMinute > validUntil
+                        || stockRepository.stockAt(position) <= 0) {
+                    return false;
+                }
+                for (int unstockedPosition : unstockedPositions) {
+                    if (stockRepository.stockAt(unstockedPosition) > 0) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        }
+
+        private CostEntry computeCostEntry(String itemId, String state) {
+            Item item = itemRepository.findById(itemId).orElseThrow(IllegalStateException::new);
+            BoxType boxType = boxTypeRepository.findByItem(item);
+            Route[] routes = routesByState.get(state);
+            int warehouses = warehouseCount;
+            float[] shippingPrice = new float[warehouses];
+            int[] carrierMinutes = new int[warehouses];
+            DepartureTimetable[] timetables = new DepartureTimetable[warehouses];
+            for (int warehouse = 0; routes != null && warehouse < warehouses; warehouse++) {
+                Route route = routes[warehouse];
+                if (route != null) {
+                    shippingPrice[warehouse] = route.carrierPricing.getVolumePrice() * boxType.getVolume();
+                    carrierMinutes[warehouse] = route.carrierTime.getCarrierTime() * 60;
+                    timetables[warehouse] = route.timetable;
+                }
+            }
+            // the package leaves at least PACKAGE_PREPARATION_HOURS and 1 minute after the order, so the delivery
+            // is at least that many whole hours plus the carrier time away; floats round monotonically, so the
+            // bound computed like the total price never exceeds it
+            int[] positions = stockRepository.positionsOf(itemId).clone();
+            float[] lowerBoundByPosition = new float[positions.length];
+            for (int i = 0; i < positions.length; i++) {
+                Warehouse warehouse = stockRepository.warehouseAt(positions[i]);
+                // rows without a route come last, where they are pruned once a row with a route was found, and
+                // only visited to tell why an order cannot be allocated
+                lowerBoundByPosition[i] = warehouse == null || timetables[warehouse.index()] == null
+                        ? Float.POSITIVE_INFINITY
+                        : shippingPrice[warehouse.index()] + (long) (PACKAGE_PREPARATION_HOURS
+                        + carrierMinutes[warehouse.index()] / 60) * EXPERIENCE_PRICE_BY_HOUR;
+            }
+            Integer[] order = new Integer[positions.length];
+            for (int i = 0; i < order.length; i++) {
+                order[i] = i;
+            }
+            Arrays.sort(order, Comparator.<Integer>comparingDouble(i -> lowerBoundByPosition[i])
+                    .thenComparingInt(i -> positions[i]));
+            int[] sortedPositions = new int[positions.length];
+            float[] lowerBounds = new float[positions.length];
+            for (int i = 0; i < order.length; i++) {
+                sortedPositions[i] = positions[order[i]];
+                lowerBounds[i] = lowerBoundByPosition[order[i]];
+            }
+            return new CostEntry(boxType, shippingPrice, carrierMinutes, timetables, sortedPositions, lowerBounds);
+        }
+
+        /**
+         * Everything about shipping an item to a state that does not depend on the order: the box, and per
+         * warehouse ordinal the shipping price, the carrier time and the departure timetable, which is null
+         * where the warehouse has no route to the state. The stock rows of the item come sorted by the lower
+         * bound of their total price. Apart from the memo, entries never change, so they are shared by forks
+         * and threads.
+         */
+        static class CostEntry {
+            final BoxType boxType;
+            final float[] shippingPrice;
+            final int[] carrierMinutes;
+            final DepartureTimetable[] timetables;
+            final int[] positions;
+            final float[] lowerBounds;
+            // the last choice made with this entry, replaced by every choice that can be remembered
+            volatile AllocationMemo memo;
+
+            CostEntry(BoxType boxType, float[] shippingPrice, int[] carrierMinutes, DepartureTimetable[] timetables,
+                      int[] positions, float[] lowerBounds) {
+                this.boxType = boxType;
+                this.shippingPrice = shippingPrice;
+                this.carrierMinutes = carrierMinutes;
+                this.timetables = timetables;
+                this.positions = positions;
+                this.lowerBounds = lowerBounds;
+            }
+        }
+
+        /**
+         * Cost entries per (item, state), either all precomputed when the manager is built, decoded on first use
+         * from the cost matrix of a snapshot and kept, or computed on demand and kept in a bounded LRU map, which
+         * is synchronized as LRU reads reorder it.
+         */
+        static class ShippingCostCache {
+            static final int AUTO_CAPACITY = -1;
+            static final int DEFAULT_CAPACITY = 100_000;
+            static final long MAX_EAGER_ENTRIES = 1_000_000;
+
+            static class Key {
+                final String itemId;
+                final String state;
+                final int hash;
+
+                Key(String itemId, String state) {
+                    this.itemId = itemId;
+                    this.state = state;
+                    this.hash = 31 * itemId.hashCode() + state.hashCode();
+                }
+
+                @Override
+                public boolean equals(Object other) {
+                    if (this == other) {
+                        return true;
+                    }
+                    if (!(other instanceof Key)) {
+                        return false;
+                    }
+                    Key that = (Key) other;
+                    return hash == that.hash && itemId.equals(that.itemId) && state.equals(that.state);
+                }
+
+                @Override
+                public int hashCode() {
+                    return hash;
+                }
+            }
+
+            private final Map<Key, CostEntry> entries;
+            private final boolean bounded;
+            // entries of a snapshot, null when the entries are not mapped
+            private final BiFunction<String, String, CostEntry> decoder;
+            private final BiFunction<String, String, CostEntry> loader;
+            private final LongAdder hits = new LongAdder();
+            private final LongAdder misses = new LongAdder();
+            private final LongAdder evictions = new LongAdder();
+
+            private ShippingCostCache(Map<Key, CostEntry> entries, boolean bounded,
+                                      BiFunction<String, String, CostEntry> decoder,
+                                      BiFunction<String, String, CostEntry> loader) {
+                this.entries = entries;
+                this.bounded = bounded;
+                this.decoder = decoder;
+                this.loader = loader;
+            }
+
+            /**
+             * Entries missing from the precomputed map are computed on every request, which only happens for
+             * states without any route.
+             */
+            static ShippingCostCache eager(Map<Key, CostEntry> entries, BiFunction<String, String, CostEntry> loader) {
+                return new ShippingCostCache(entries, false, null, loader);
+            }
+
+            /**
+             * @param decoder the entry of the snapshot for an (item, state), or null when the snapshot has
+             *                none, in which case the entry is computed on every request like a precomputed one
+             */
+            static ShippingCostCache mapped(BiFunction<String, String, CostEntry> decoder,
+                                            BiFunction<String, String, CostEntry> loader) {
+                return new ShippingCostCache(new ConcurrentHashMap<>(), false, decoder, loader);
+            }
+
+            static ShippingCostCache lru(int capacity, BiFunction<String, String, CostEntry> loader) {
+                ShippingCostCache[] cache = new ShippingCostCache[1];
+                cache[0] = new ShippingCostCache(new LinkedHashMap<Key, CostEntry>(16, 0.75f, true) {
+                    private static final long serialVersionUID = 1L;
+
+                    @Override
+                    protected boolean removeEldestEntry(Entry<Key, CostEntry> eldest) {
+                        if (size() > capacity) {
+                            cache[0].evictions.increment();
+                            return true;
+                        }
+                        return false;
+                    }
+                }, true, null, loader);
+                return cache[0];
+            }
+
+            CostEntry get(String itemId, String state) {
+                Key key = new Key(itemId, state);
+                CostEntry entry;
+                if (bounded) {
+                    synchronized (entries) {
+                        entry = entries.get(key);
+                    }
+                } else {
+                    entry = entries.get(key);
+                }
+                if (entry != null) {
+                    hits.increment();
+                    return entry;
+                }
+                misses.increment();
+                if (decoder != null) {
+                    entry = decoder.apply(itemId, state);
+                    if (entry != null) {
+                        // threads decoding the same entry at once keep the first one, which holds the memo
+                        CostEntry previous = entries.putIfAbsent(key, entry);
+                        return previous != null ? previous : entry;
+                    }
+                }
+                entry = loader.apply(itemId, state);
+                if (bounded) {
+                    synchronized (entries) {
+                        entries.put(key, entry);
+                    }
+                }
+                return entry;
+            }
+
+            @Override
+            public String toString() {
+                String kind = bounded ? "lru" : decoder != null ? "mapped" : "precomputed";
+                return "shipping costs (" + kind + "): " + hits.sum() + " hits, " + misses.sum() + " misses, "
+                        + evictions.sum() + " evictions";
+            }
+        }
+
+        /**
+         * The best candidate found for an order, reused across the orders of a thread or a partition.
+         */
+        static class Selection {
+            int position;
+            int stock;
+            long deliveryEpochMinute;
+            float carrierPrice;
+            float totalPrice;
+            // stocked warehouses evaluated, and stock rows skipped by their lower bound
+            int candidates;
+            int pruned;
+            // stock rows found empty, scratch space for the memo
+            int[] unstocked = new int[4];
+            // why the last order given to allocate was rejected
+            RejectReason rejectReason;
+        }
+
+        /**
+         * Assignment of orders to stock rows of one item that minimizes the summed cost, with at most the stock of
+         * a row assigned to it and as many orders assigned as the stock allows. Unassigned orders go to a reject
+         * column of unlimited capacity whose cost outweighs any real one, which makes the number of assigned
+         * orders the first objective.
+         *
+         * <p>Orders are added one at a time along the shortest augmenting path, which keeps the assignment of
+         * the orders added so far optimal. As there are few columns, the path runs over columns: moving from
+         * column u to column v costs the cheapest change of column of an order assigned to u, which heaps of the
+         * orders of every column pair keep at hand. A path is found by Bellman-Ford over the columns and costs
+         * a number of heap operations proportional to its length, so a problem is solved in
+         * O(orders * columns^2 * log orders) plus O(orders * columns^3) for the paths.
+         */
+        static class TransportationProblem {
+            private static final double REJECT_COST = 1e9;
+            private static final double EPSILON = 1e-6;
+
+            private final int orders;
+            private final int columns;
+            private final int[] capacities;
+            private final double[][] costs;
+            private final int[] assignment;
+            // orders are re-added to the heaps when they move, older entries are skipped
+            private final int[] moves;
+            private final int[] counts;
+            private final PriorityQueue<double[]>[][] heaps;
+
+            /**
+             * @param capacities the capacity of every column, to which the reject column is added
+             */
+            @SuppressWarnings({"unchecked", "rawtypes"})
+            TransportationProblem(int orders, int[] capacities) {
+                this.orders = orders;
+                this.columns = capacities.length + 1;
+                this.capacities = Arrays.copyOf(capacities, columns);
+                this.capacities[columns - 1] = Integer.MAX_VALUE;
+                costs = new double[orders][columns];
+                for (double[] orderCosts : costs) {
+                    Arrays.fill(orderCosts, Double.POSITIVE_INFINITY);
+                    orderCosts[columns - 1] = REJECT_COST;
+                }
+                assignment = new int[orders];
+                moves = new int[orders];
+                counts = new int[columns];
+                heaps = new PriorityQueue[columns][columns];
+                for (int u = 0; u < columns; u++) {
+                    for (int v = 0; v < columns; v++) {
+                        if (u != v) {
+                            heaps[u][v] = new PriorityQueue<>(Comparator.comparingDouble(entry -> entry[0]));
+                        }
+                    }
+                }
+            }
+
+            void setCost(int order, int column, double cost) {
+                costs[order][column] = cost;
+            }
+
+            /**
+             * @return the column of every order, -1 for rejected orders
+             */
+            int[] solve() {
+                int reject = columns - 1;
+                double[] distance = new double[columns];
+                int[] previous = new int[columns];
+                int[] mover = new int[columns];
+                for (int order = 0; order < orders; order++) {
+                    for (int v = 0; v < columns; v++) {
+                        distance[v] = costs[order][v];
+                        previous[v] = -1;
+                    }
+                    for (int round = 0; round < columns; round++) {
+                        boolean relaxed = false;
+                        for (int u = 0; u < columns; u++) {
+                            if (distance[u] == Double.POSITIVE_INFINITY) {
+                                continue;
+                            }
+                            for (int v = 0; v < columns; v++) {
+                                if (u == v) {
+                                    continue;
+                                }
+                                double[] cheapest = peek(u, v);
+                                // a strict improvement beyond rounding, so that paths cannot cycle
+                                if (cheapest != null && distance[u] + cheapest[0] < distance[v] - EPSILON) {
+                                    distance[v] = distance[u] + cheapest[0];
+                                    previous[v] = u;
+                                    mover[v] = (int) cheapest[1];
+                                    relaxed = true;
+                                }
+                            }
+                        }
+                        if (!relaxed) {
+                            break;
+                        }
+                    }
+                    int target = reject;
+                    for (int v = 0; v < reject; v++) {
+                        if (counts[v] < capacities[v] && distance[v] < distance[target]) {
+                            target = v;
+                        }
+                    }
+                    // shift the orders along the path, the last one first, then assign the new order; only the
+                    // target gains an order, every other column on the path loses one and gains one
+                    int column = target;
+                    counts[target]++;
+                    for (int steps = 0; previous[column] >= 0; steps++) {
+                        if (steps == columns) {
+                            throw new IllegalStateException("Cycle in the augmenting path");
+                        }
+                        int moved = mover[column];
+                        int from = previous[column];
+                        assign(moved, column);
+                        column = from;
+                    }
+                    assign(order, column);
+                }
+                int[] result = new int[orders];
+                for (int order = 0; order < orders; order++) {
+                    result[order] = assignment[order] == reject ? -1 : assignment[order];
+                }
+                return result;
+            }
+
+            private void assign(int order, int column) {
+                assignment[order] = column;
+                moves[order]++;
+                for (int v = 0; v < columns; v++) {
+                    if (v != column && costs[order][v] != Double.POSITIVE_INFINITY) {
+                        heaps[column][v].add(new double[]{costs[order][v] - costs[order][column], order,
+                                moves[order]});
+                    }
+                }
+            }
+
+            /**
+             * @return the cheapest entry of an order still assigned to u for a move to v, or null
+             */
+            private double[] peek(int u, int v) {
+                PriorityQueue<double[]> heap = heaps[u][v];
+                while (!heap.isEmpty()) {
+                    double[] entry = heap.peek();
+                    int order = (int) entry[1];
+                    if (assignment[order] == u && moves[order] == (int) entry[2]) {
+                        return entry;
+                    }
+                    heap.poll();
+                }
+                return null;
+            }
+        }
+
+        /**
+         * Pricing, departure times and carrier time between a warehouse and a target state, resolved once when
+         * the manager is built.
+         */
+        static class Route {
+            final Warehouse warehouse;
+            final CarrierPricing carrierPricing;
+            final DepartureTime departureTime;
+            final CarrierTime carrierTime;
+            final DepartureTimetable timetable;
+
+            Route(Warehouse warehouse, CarrierPricing carrierPricing, DepartureTime departureTime,
+                  CarrierTime carrierTime) {
+                this.warehouse = warehouse;
+                this.carrierPricing = carrierPricing;
+                this.departureTime = departureTime;
+                this.carrierTime = carrierTime;
+                this.timetable = new DepartureTimetable(departureTime.getShippingHours(), warehouse.getZone());
+            }
+        }
+
+        /**
+         * Departures of a route as sorted minutes of the week in UTC, one table per offset of the warehouse time
+         * zone, so that the next departure is a binary search instead of date arithmetic per shipping hour.
+         *
+         * <p>A package is prepared {@link #PACKAGE_PREPARATION_HOURS} after the order, and only the hours are
+         * compared when deciding whether a departure on the day the package is ready can still be taken: it can
+         * if its hour is later than the hour the package is ready at. That makes the first possible departure the
+         * first one at or after the start of the warehouse hour following the ready time. When the offset changes
+         * before that departure, the search starts over at the change with the table of the new offset.
+         */
+        static class DepartureTimetable {
+            private final ZoneTransitions zone;
+            // indexed by the offset index of the zone
+            private final int[][] departures;
+
+            DepartureTimetable(List<ShippingHour> shippingHours, ZoneTransitions zone) {
+                this.zone = zone;
+                departures = new int[zone.offsetMinutes.length][shippingHours.size()];
+                for (int offset = 0; offset < departures.length; offset++) {
+                    for (int i = 0; i < shippingHours.size(); i++) {
+                        ShippingHour shippingHour = shippingHours.get(i);
+                        int localMinuteOfWeek = (shippingHour.getDay().getValue() - 1) * EpochMinutes.MINUTES_PER_DAY
+                                + shippingHour.getTime().getHour() * 60 + shippingHour.getTime().getMinute();
+                        departures[offset][i] = Math.floorMod(localMinuteOfWeek - zone.offsetMinutes[offset],
+                                EpochMinutes.MINUTES_PER_WEEK);
+                    }
+                    Arrays.sort(departures[offset]);
+                }
+            }
+
+            long nextDeparture(long orderEpochMinute) {
+                if (departures[0].length == 0) {
+                    throw new IllegalStateException();
+                }
+                int period = zone.periodOf(orderEpochMinute);
+                int offsetMinutes = zone.offsetMinutes[zone.offsetIndexes[period]];
+                long earliest = orderEpochMinute - Math.floorMod(orderEpochMinute + offsetMinutes, 60)
+                        + (PACKAGE_PREPARATION_HOURS + 1) * 60;
+                while (true) {
+                    period = zone.periodOf(earliest);
+                    long departure = firstAtOrAfter(departures[zone.offsetIndexes[period]], earliest);
+                    if (period + 1 == zone.starts.length || departure < zone.starts[period + 1]) {
+                        return departure;
+                    }
+                    earliest = zone.starts[period + 1];
+                }
+            }
+
+            /**
+             * @return the first minute from which orders get the same departure as this one
+             */
+            long sameDepartureFrom(long orderEpochMinute) {
+                int period = zone.periodOf(orderEpochMinute);
+                long hourStart = orderEpochMinute
+                        - Math.floorMod(orderEpochMinute + zone.offsetMinutes[zone.offsetIndexes[period]], 60);
+                return Math.max(hourStart, zone.starts[period]);
+            }
+
+            /**
+             * @return the last minute until which orders get the same departure as this one
+             */
+            long sameDepartureUntil(long orderEpochMinute) {
+                int period = zone.periodOf(orderEpochMinute);
+                long hourEnd = orderEpochMinute
+                        - Math.floorMod(orderEpochMinute + zone.offsetMinutes[zone.offsetIndexes[period]], 60) + 59;
+                return period + 1 == zone.starts.length ? hourEnd : Math.min(hourEnd, zone.starts[period + 1] - 1);
+            }
+
+            private static long firstAtOrAfter(int[] departures, long earliest) {
+                int minuteOfWeek = EpochMinutes.minuteOfWeek(earliest);
+                int index = Arrays.binarySearch(departures, minuteOfWeek);
+                if (index < 0) {
+                    index = -index - 1;
+                } else {
+                    // the first of equal entries is as good as any
+                    while (index > 0 && departures[index - 1] == minuteOfWeek) {
+                        index--;
+                    }
+                }
+                int departure = index < departures.length ? departures[index]
+                        : departures[0] + EpochMinutes.MINUTES_PER_WEEK;
+                return earliest - minuteOfWeek + departure;
+            }
+        }
+
+        static class RouteKey {
+            final Warehouse warehouse;
+            final String targetState;
+
+            RouteKey(Warehouse warehouse, String targetState) {
+                this.warehouse = warehouse;
+                this.targetState = targetState;
+            }
+
+            @Override
+            public boolean equals(Object other) {
+                if (this == other) {
+                    return true;
+                }
+                if (!(other instanceof RouteKey)) {
+                    return false;
+                }
+                RouteKey that = (RouteKey) other;
+                return warehouse == that.warehouse && targetState.equals(that.targetState);
+            }
+
+            @Override
+            public int hashCode() {
+                return 31 * warehouse.hashCode() + targetState.hashCode();
+            }
+        }
+
+        /**
+         * Indexes values by a unique key, failing on the first duplicate the same way the former
+         * scanning lookups did, but once at build time instead of on every call.
+         */
+        static <K, V> Map<K, V> indexUnique(List<V> values, Function<V, K> key, String duplicateMessage) {
+            Map<K, V> index = new HashMap<>(values.size() * 2);
+            for (V value : values) {
+                V previous = index.put(key.apply(value), value);
+                if (previous != null) {
+                    throw new IllegalStateException(duplicateMessage + previous + ", " + value);
+                }
+            }
+            return index;
+        }
+
+        static class CarrierPricingRepository {
+            private final Map<RouteKey, CarrierPricing> carrierPricings;
+
+            CarrierPricingRepository(List<CarrierPricing> carrierPricings) {
+                this.carrierPricings = indexUnique(carrierPricings,
+                        cp -> new RouteKey(cp.getWarehouse(), cp.getTargetState()),
+                        "Multiple carrier prices between warehouse and state: ");
+            }
+
+            Optional<CarrierPricing> findByWarehouseAndState(Warehouse warehouse, String state) {
+                return Optional.ofNullable(carrierPricings.get(new RouteKey(warehouse, state)));
+            }
+        }
+
+        static class ItemRepository {
+            private final Map<String, Item> items;
+
+            ItemRepository(List<Item> items) {
+                this.items = indexUnique(items, Item::getItemId, "Multiple items for the same itemId: ");
+            }
+
+            Optional<Item> findById(String itemId) {
+                return Optional.ofNullable(items.get(itemId));
+            }
+        }
+
+        static class BoxTypeRepository {
+            private final List<BoxType> boxTypesByVolume;
+            // smallest fitting box of every known item, resolved once when the repository is built
+            private final Map<String, BoxType> boxTypesByItemId;
+            private final List<String> itemsWithoutBox = new ArrayList<>();
+            private final LongAdder cacheHits = new LongAdder();
+            private final LongAdder computations = new LongAdder();
+
+            /**
+             * @param assignments the box of every item, null for items without a box, as saved in a snapshot;
+             *                    null to compute them
+             */
+            BoxTypeRepository(List<BoxType> boxTypes, List<Item> items, List<BoxType> assignments) {
+                boxTypesByVolume = new ArrayList<>(boxTypes);
+                boxTypesByVolume.sort(Comparator.comparing(BoxType::getVolume));
+                boxTypesByItemId = new HashMap<>(items.size() * 2);
+                for (int i = 0; i < items.size(); i++) {
+                    Item item = items.get(i);
+                    BoxType boxType = assignments == null ? computeFor(item) : assignments.get(i);
+                    if (boxType == null) {
+                        itemsWithoutBox.add(item.getItemId());
+                    } else {
+                        boxTypesByItemId.put(item.getItemId(), boxType);
+                    }
+                }
+            }
+
+            BoxType findByItem(Item item) {
+                BoxType boxType = boxTypesByItemId.get(item.getItemId());
+                if (boxType != null) {
+                    cacheHits.increment();
+                    return boxType;
+                }
+                boxType = computeFor(item);
+                if (boxType == null) {
+                    throw new NoSuitableBoxException(item.getItemId());
+                }
+                return boxType;
+            }
+
+            List<String> getItemsWithoutBox() {
+                return itemsWithoutBox;
+            }
+
+            boolean hasBoxFor(String itemId) {
+                return boxTypesByItemId.containsKey(itemId);
+            }
+
+            List<BoxType> getBoxTypes() {
+                return boxTypesByVolume;
+            }
+
+            long getCacheHits() {
+                return cacheHits.sum();
+            }
+
+            long getComputations() {
+                return computations.sum();
+            }
+
+            private BoxType computeFor(Item item) {
+                computations.increment();
+                // sorted by volume, so the first fitting box is the smallest one
+                for (BoxType bt : boxTypesByVolume) {
+                    if (fits(bt, item)) {
+                        return bt;
+                    }
+                }
+                return null;
+            }
+
+            static boolean fits(BoxType bt, Item item) {
+                return bt.getHeight() >= item.getHeight() &&
+                        ((bt.getLength() >= item.getLength() && bt.getWidth() >= item.getWidth()) ||
+                                (bt.getLength() >= item.getWidth() && bt.getWidth() >= item.getLength())) &&
+                        bt.getMaxWeight() >= item.getWeight();
+            }
+        }
+
+        static class DepartureTimeRepository {
+            private final Map<RouteKey, DepartureTime> departureTimes;
+
+            DepartureTimeRepository(List<DepartureTime> departureTimes) {
+                this.departureTimes = indexUnique(departureTimes,
+                        dp -> new RouteKey(dp.getWarehouse(), dp.getTargetState()),
+                        "Multiple departure times between warehouse and state: ");
+            }
+
+            Optional<DepartureTime> findByWarehouseAndState(Warehouse warehouse, String state) {
+                return Optional.ofNullable(departureTimes.get(new RouteKey(warehouse, state)));
+            }
+        }
+
+        static class CarrierTimeRepository {
+            private final Map<RouteKey, CarrierTime> carrierTimes;
+
+            CarrierTimeRepository(List<CarrierTime> carrierTimes) {
+                this.carrierTimes = indexUnique(carrierTimes,
+                        ct -> new RouteKey(ct.getWarehouse(), ct.getTargetState()),
+                        "Multiple carrier times between warehouse and state: ");
+            }
+
+            Optional<CarrierTime> findByWarehouseAndState(Warehouse warehouse, String state) {
+                return Optional.ofNullable(carrierTimes.get(new RouteKey(warehouse, state)));
+            }
+        }
+
+        /**
+         * Stock rows as read from the input, with the remaining units kept in an atomic counter per row. Rows of
+         * different items never share a counter, so orders of different items can be allocated concurrently.
+         * A fork shares the rows and starts from the same counts, which are copied on write.
+         */
+        static class StockRepository {
+            private static final int[] NO_POSITIONS = new int[0];
+
+            private final List<Stock> stocks;
+            private StockCounters counts;
+            // positions in stocks of every row of an item, in input order
+            private final Map<String, int[]> positionsByItemId;
+
+            private StockRepository(StockRepository source) {
+                stocks = source.stocks;
+                counts = source.counts.fork();
+                positionsByItemId = source.positionsByItemId;
+            }
+
+            StockRepository(List<Stock> stocks) {
+                this.stocks = new ArrayList<>(stocks);
+                this.counts = new StockCounters(stocks.size());
+                Map<String, List<Integer>> positions = new LinkedHashMap<>(stocks.size() * 2);
+                for (int i = 0; i < stocks.size(); i++) {
+                    Stock stock = stocks.get(i);
+                    List<Integer> itemPositions = positions.computeIfAbsent(stock.getItemId(), k -> new ArrayList<>(2));
+                    for (Integer position : itemPositions) {
+                        if (stocks.get(position).getWarehouse() == stock.getWarehouse()) {
+                            throw new IllegalStateException("Multiple stocks for the same item and warehouse: "
+                                    + stocks.get(position) + ", " + stock);
+                        }
+                    }
+                    itemPositions.add(i);
+                    counts.set(i, stock.getStock());
+                }
+                positionsByItemId = new HashMap<>(positions.size() * 2);
+                positions.forEach((itemId, itemPositions) ->
+                        positionsByItemId.put(itemId, itemPositions.stream().mapToInt(Integer::intValue).toArray()));
+            }
+
+            int[] positionsOf(String itemId) {
+                return positionsByItemId.getOrDefault(itemId, NO_POSITIONS);
+            }
+
+            Warehouse warehouseAt(int position) {
+                return stocks.get(position).getWarehouse();
+            }
+
+            int stockAt(int position) {
+                return counts.get(position);
+            }
+
+            int size() {
+                return stocks.size();
+            }
+
+            String itemIdAt(int position) {
+                return stocks.get(position).getItemId();
+            }
+
+            Optional<Stock> findByItemIdAndWareHouse(String itemId, Warehouse warehouse) {
+                int position = positionOf(itemId, warehouse);
+                return position < 0 ? Optional.empty() : Optional.of(new Stock(itemId, warehouse, counts.get(position)));
+            }
+
+            int reduceStockByItemIdAndWareHouse(String itemId, Warehouse warehouse) {
+                int position = positionOf(itemId, warehouse);
+                if (position < 0) {
+                    throw new IllegalStateException();
+                }
+                return reduceStockAt(position);
+            }
+
+            int reduceStockAt(int position) {
+                return counts.decrementAndGet(position);
+            }
+
+            void setStockAt(int position, int stock) {
+                counts.set(position, stock);
+            }
+
+            /**
+             * Replaces the counters, which must hold as many rows, for instance by those of a ledger. Nothing may
+             * be allocated on this repository meanwhile.
+             */
+            void useCounts(StockCounters counts) {
+                this.counts = counts;
+            }
+
+            /**
+             * A repository over the same rows whose counts start as the current ones and then change
+             * independently. Nothing may be allocated on this repository while it is forked.
+             */
+            StockRepository fork() {
+                return new StockRepository(this);
+            }
+
+            int positionOf(String itemId, Warehouse warehouse) {
+                for (int position : positionsOf(itemId)) {
+                    if (stocks.get(position).getWarehouse() == warehouse) {
+                        return position;
+                    }
+                }
+                return -1;
+            }
+        }
+
+    }
+
+    /**
+     * Runs what-if scenarios against a baseline allocation of the same orders. The input is parsed once into
+     * a base manager that is never allocated on; the baseline and every scenario allocate on forks of it, see
+     * {@link ShipmentsManager#fork}, so scenarios run concurrently on the shared reference data.
+     *
+     * <p>Scenario files hold a {@code scenario <name>} line followed by its changes, one per line:
+     * {@code stock <item>;<warehouse>;<count>} or {@code ;*<factor>}, {@code pricing <warehouse>;<state>;<price>}
+     * and {@code carriertime <warehouse>;<state>;<hours>}. Lines starting with {@code #} are ignored.
+     */
+    static class WhatIfSimulator {
+        private final ShipmentsManager base;
+        private final List<Order> orders;
+        private final ScenarioResult baseline;
+
+        static class ScenarioResult {
+            final String name;
+            final float totalShipmentPrice;
+            final List<ShipmentInfo> shipmentInfos;
+            final ShipmentsManager.Rejects rejects;
+            // every order allocated differently than in the baseline: the baseline shipment then the scenario
+            // one, null where the order was rejected; they are formatted by the writer, on one thread, as
+            // ShipmentInfo.toCsvLine shares a DecimalFormat
+            final List<ShipmentInfo[]> changes = new ArrayList<>();
+
+            ScenarioResult(String name, List<ShipmentInfo> shipmentInfos, ShipmentsManager.Rejects rejects) {
+                this.name = name;
+                this.shipmentInfos = shipmentInfos;
+                this.rejects = rejects;
+                float totalShipmentPrice = 0.0f;
+                for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                    totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+                }
+                this.totalShipmentPrice = totalShipmentPrice;
+            }
+        }
+
+        WhatIfSimulator(InputData input, int costCacheCapacity, RunMetrics metrics) {
+            base = input.newShipmentsManager(costCacheCapacity);
+            base.setMetrics(metrics);
+            orders = new ArrayList<>(input.orders);
+            orders.sort(ShipmentsManager.BY_ORDER_DATE);
+            baseline = allocate(new ShipmentsManager.Scenario("baseline"));
+        }
+
+        ScenarioResult getBaseline() {
+            return baseline;
+        }
+
+        ScenarioResult run(ShipmentsManager.Scenario scenario) {
+            ScenarioResult result = allocate(scenario);
+            Map<Long, ShipmentInfo> baselineByOrderId = new HashMap<>(baseline.shipmentInfos.size() * 2);
+            for (ShipmentInfo shipmentInfo : baseline.shipmentInfos) {
+                baselineByOrderId.put(shipmentInfo.getOrder().getOrderId(), shipmentInfo);
+            }
+            for (ShipmentInfo shipmentInfo : result.shipmentInfos) {
+                ShipmentInfo before = baselineByOrderId.remove(shipmentInfo.getOrder().getOrderId());
+                if (before == null || before.warehouse != shipmentInfo.warehouse
+                        || before.guaranteedDeliveryEpochMinute != shipmentInfo.guaranteedDeliveryEpochMinute
+                        || !before.boxType.equals(shipmentInfo.boxType)
+                        || before.shippingPrice != shipmentInfo.shippingPrice) {
+                    result.changes.add(new ShipmentInfo[]{before, shipmentInfo});
+                }
+            }
+            // allocated in the baseline only
+            for (ShipmentInfo before : baselineByOrderId.values()) {
+                result.changes.add(new ShipmentInfo[]{before, null});
+            }
+            return result;
+        }
+
+        /**
+         * Runs the scenarios on the given number of threads.
+         *
+         * @return the results in the order of the scenarios
+         */
+        List<ScenarioResult> runAll(List<ShipmentsManager.Scenario> scenarios, int threads) {
+            ForkJoinPool pool = new ForkJoinPool(Math.max(1, threads));
+            try {
+                return pool.submit(() -> scenarios.parallelStream().map(this::run).collect(Collectors.toList())).get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new IllegalStateException(e);
+            } catch (ExecutionException e) {
+                if (e.getCause() instanceof RuntimeException) {
+                    throw (RuntimeException) e.getCause();
+                }
+                throw new IllegalStateException(e.getCause());
+            } finally {
+                pool.shutdown();
+            }
+        }
+
+        private ScenarioResult allocate(ShipmentsManager.Scenario scenario) {
+            ShipmentsManager.Rejects rejects = new ShipmentsManager.Rejects();
+            List<ShipmentInfo> shipmentInfos = base.fork(scenario).findBestShipmentInfo(orders, 1, rejects);
+            return new ScenarioResult(scenario.name, shipmentInfos, rejects);
+        }
+
+        /**
+         * @param warehouses the warehouses of the input the scenarios apply to
+         */
+        static List<ShipmentsManager.Scenario> readScenarios(String path, Warehouses warehouses) throws IOException {
+            List<ShipmentsManager.Scenario> scenarios = new ArrayList<>();
+            ShipmentsManager.Scenario scenario = null;
+            for (String line : Files.readAllLines(Paths.get(path))) {
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                String keyword = space < 0 ? line : line.substring(0, space);
+                String[] fields = space < 0 ? new String[0] : line.substring(space + 1).split(SEMICOLON);
+                if ("scenario".equals(keyword)) {
+                    scenario = new ShipmentsManager.Scenario(line.substring(space + 1).trim());
+                    scenarios.add(scenario);
+                    continue;
+                }
+                if (scenario == null || fields.length != 3) {
+                    throw new IllegalArgumentException("Unexpected line in " + path + ": " + line);
+                }
+                Warehouse warehouse = warehouses.fromName(fields[keyword.equals("stock") ? 1 : 0]);
+                if (warehouse == null) {
+                    throw new IllegalArgumentException("Unknown warehouse in " + path + ": " + line);
+                }
+                switch (keyword) {
+                    case "stock":
+                        if (fields[2].startsWith("*")) {
+                            scenario.scaleStock(fields[0], warehouse, Double.parseDouble(fields[2].substring(1)));
+                        } else {
+                            scenario.setStock(fields[0], warehouse, Integer.parseInt(fields[2]));
+                        }
+                        break;
+                    case "pricing":
+                        scenario.setCarrierPricing(warehouse, fields[1], Float.parseFloat(fields[2]));
+                        break;
+                    case "carriertime":
+                        scenario.setCarrierTime(warehouse, fields[1], Integer.parseInt(fields[2]));
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unexpected line in " + path + ": " + line);
+                }
+            }
+            return scenarios;
+        }
+
+        /**
+         * Runs the scenarios of a file and writes, for each one, its total against the baseline and the orders
+         * it allocates differently.
+         */
+        static void run(RunOptions options, RunMetrics metrics) throws IOException {
+            if (options.scenarios == null) {
+                throw new IllegalArgumentException("--scenarios=<file> is required");
+            }
+            String output = options.requiredOutput();
+            InputData input = FastCsvReader.readInput(options.input);
+            WhatIfSimulator simulator = new WhatIfSimulator(input, options.costCacheCapacity, metrics);
+            List<ScenarioResult> results = simulator.runAll(readScenarios(options.scenarios, input.warehouses),
+                    options.threads);
+            float baselineTotal = simulator.getBaseline().totalShipmentPrice;
+            System.out.println("baseline: " + baselineTotal + " (" + simulator.getBaseline().rejects + ")");
+            try (ResultWriter writer = ResultWriter.open(output)) {
+                for (ScenarioResult result : results) {
+                    String summary = result.name + ": " + result.totalShipmentPrice + " ("
+                            + (result.totalShipmentPrice - baselineTotal) + " against the baseline), "
+                            + result.changes.size() + " orders changed, " + result.rejects;
+                    System.out.println(summary);
+                    writer.writeText("---Scenario " + result.name + "---\n" + summary + "\n");
+                    for (ShipmentInfo[] change : result.changes) {
+                        writer.writeText((change[0] == null ? "REJECTED" : change[0].toCsvLine()) + " => "
+                                + (change[1] == null ? "REJECTED" : change[1].toCsvLine()) + "\n");
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Keeps the allocation of a set of orders up to date as orders are inserted or cancelled, without
+     * allocating everything again. Only orders of the same item compete for stock, so the orders of every
+     * item form their own timeline in date order, with a checkpoint of the stock of the item every
+     * {@code checkpointInterval} orders. A change replays the timeline of its item from the last checkpoint
+     * before it, so it costs the orders of that item from there on instead of all orders.
+     *
+     * <p>Orders with the same date are allocated in the order they were added, as with the stable sort of a
+     * batch run, so the allocation always equals a batch run of the current orders in the order they arrived.
+     */
+    static class IncrementalAllocator {
+        static final int DEFAULT_CHECKPOINT_INTERVAL = 64;
+
+        /**
+         * A change of the allocation of an order: its new shipment, or null with the reject reason, or
+         * cancelled.
+         */
+        static class Change {
+            final Order order;
+            final ShipmentInfo shipmentInfo;
+            final ShipmentsManager.RejectReason rejectReason;
+            final boolean cancelled;
+
+            Change(Order order, ShipmentInfo shipmentInfo, ShipmentsManager.RejectReason rejectReason,
+                   boolean cancelled) {
+                this.order = order;
+                this.shipmentInfo = shipmentInfo;
+                this.rejectReason = rejectReason;
+                this.cancelled = cancelled;
+            }
+
+            /**
+             * {@code U;} and the result line of an allocated order, {@code R;<order id>;<reason>} for a reject
+             * and {@code D;<order id>} for a cancellation.
+             */
+            String toCsvLine() {
+                if (cancelled) {
+                    return "D" + SEMICOLON + order.getOrderId();
+                }
+                if (shipmentInfo == null) {
+                    return "R" + SEMICOLON + order.getOrderId() + SEMICOLON + rejectReason;
+                }
+                return "U" + SEMICOLON + shipmentInfo.toCsvLine();
+            }
+        }
+
+        private static class Timeline {
+            final int[] positions;
+            final List<Order> orders = new ArrayList<>();
+            // shipment of every order, null where it was rejected
+            final List<ShipmentInfo> shipmentInfos = new ArrayList<>();
+            final List<ShipmentsManager.RejectReason> rejectReasons = new ArrayList<>();
+            // stock of the positions before the orders from index * checkpointInterval on
+            final List<int[]> checkpoints = new ArrayList<>();
+
+            Timeline(int[] positions) {
+                this.positions = positions;
+            }
+        }
+
+        private final ShipmentsManager shipmentsManager;
+        private final int checkpointInterval;
+        private final Map<String, Timeline> timelines = new HashMap<>();
+        private final Map<Long, String> itemIdByOrderId = new HashMap<>();
+        // arrival sequence of every order, which orders the shipments of the same date
+        private final Map<Order, Long> arrivals = new IdentityHashMap<>();
+        private long nextArrival;
+        private long replayedOrders;
+
+        /**
+         * @param shipmentsManager a manager nothing was allocated on yet, which the allocator then owns
+         */
+        IncrementalAllocator(ShipmentsManager shipmentsManager, int checkpointInterval) {
+            this.shipmentsManager = shipmentsManager;
+            this.checkpointInterval = checkpointInterval;
+        }
+
+        /**
+         * Adds the orders, in the order they arrived, and allocates them. The orders are sorted by date first,
+         * keeping the arrival order of orders of the same date, so they are appended to their timelines rather
+         * than inserted one at a time.
+         */
+        synchronized void addAll(List<Order> orders) {
+            for (Order order : orders) {
+                checkNew(order);
+                arrivals.put(order, nextArrival++);
+            }
+            Order[] sortedOrders = orders.toArray(new Order[0]);
+            Arrays.sort(sortedOrders, ShipmentsManager.BY_ORDER_DATE);
+            Map<Timeline, Integer> firstChanges = new HashMap<>();
+            for (Order order : sortedOrders) {
+                Timeline timeline = timelineOf(order.getItemId());
+                int index = timeline.orders.isEmpty() || timeline.orders.get(timeline.orders.size() - 1)
+                        .getOrderEpochMinute() <= order.getOrderEpochMinute() ? timeline.orders.size()
+                        : insertionIndex(timeline, order);
+                add(timeline, index, order);
+                firstChanges.merge(timeline, index, Math::min);
+            }
+            firstChanges.forEach((timeline, index) -> replay(timeline, index, null, null));
+        }
+
+        /**
+         * Adds a late order and reallocates the orders of its item from it on.
+         *
+         * @return the new allocation of the order and of the orders of its item it changes
+         * @throws IllegalArgumentException if an order with the same id was added and not cancelled
+         */
+        synchronized List<Change> insert(Order order) {
+            checkNew(order);
+            arrivals.put(order, nextArrival++);
+            Timeline timeline = timelineOf(order.getItemId());
+            int index = insertionIndex(timeline, order);
+            add(timeline, index, order);
+            List<Change> changes = new ArrayList<>();
+            replay(timeline, index, changes, order);
+            return changes;
+        }
+
+        /**
+         * Cancels an order and reallocates the orders of its item after it.
+         *
+         * @return the cancellation and the orders of the item whose allocation it changes, nothing for an unknown
+         * order
+         */
+        synchronized List<Change> cancel(long orderId) {
+            String itemId = itemIdByOrderId.remove(orderId);
+            List<Change> changes = new ArrayList<>();
+            if (itemId == null) {
+                return changes;
+            }
+            Timeline timeline = timelines.get(itemId);
+            int index = 0;
+            while (timeline.orders.get(index).getOrderId() != orderId) {
+                index++;
+            }
+            changes.add(new Change(timeline.orders.remove(index), null, null, true));
+            timeline.shipmentInfos.remove(index);
+            timeline.rejectReasons.remove(index);
+            arrivals.remove(changes.get(0).order);
+            replay(timeline, index, changes, null);
+            return changes;
+        }
+
+        /**
+         * @return the shipments of all allocated orders in date order, then arrival order
+         */
+        synchronized List<ShipmentInfo> getShipmentInfos() {
+            List<ShipmentInfo> shipmentInfos = new ArrayList<>(itemIdByOrderId.size());
+            for (Timeline timeline : timelines.values()) {
+                for (ShipmentInfo shipmentInfo : timeline.shipmentInfos) {
+                    if (shipmentInfo != null) {
+                        shipmentInfos.add(shipmentInfo);
+                    }
+                }
+            }
+            shipmentInfos.sort(Comparator.<ShipmentInfo>comparingLong(shipmentInfo -> shipmentInfo.getOrder()
+                    .getOrderEpochMinute()).thenComparingLong(shipmentInfo -> arrivals.get(shipmentInfo.getOrder())));
+            return shipmentInfos;
+        }
+
+        /**
+         * @return the orders that were added and not cancelled, in the order they arrived
+         */
+        synchronized List<Order> getOrders() {
+            List<Order> orders = new ArrayList<>(arrivals.keySet());
+            orders.sort(Comparator.comparingLong(arrivals::get));
+            return orders;
+        }
+
+        /**
+         * @return the number of orders allocated since the allocator was created, replays included
+         */
+        synchronized long getReplayedOrders() {
+            return replayedOrders;
+        }
+
+        private void checkNew(Order order) {
+            if (itemIdByOrderId.putIfAbsent(order.getOrderId(), order.getItemId()) != null) {
+                throw new IllegalArgumentException("Duplicate order id " + order.getOrderId());
+            }
+        }
+
+        private static void add(Timeline timeline, int index, Order order) {
+            timeline.orders.add(index, order);
+            timeline.shipmentInfos.add(index, null);
+            timeline.rejectReasons.add(index, null);
+        }
+
+        private Timeline timelineOf(String itemId) {
+            return timelines.computeIfAbsent(itemId, id -> {
+                Timeline timeline = new Timeline(shipmentsManager.stockRepository.positionsOf(id));
+                timeline.checkpoints.add(stockOf(timeline));
+                return timeline;
+            });
+        }
+
+        /**
+         * After the orders of the same date or earlier, which is where a stable sort puts an order that
+         * arrives last.
+         */
+        private static int insertionIndex(Timeline timeline, Order order) {
+            int low = 0;
+            int high = timeline.orders.size();
+            while (low < high) {
+                int middle = (low + high) >>> 1;
+                if (timeline.orders.get(middle).getOrderEpochMinute() <= order.getOrderEpochMinute()) {
+                    low = middle + 1;
+                } else {
+                    high = middle;
+                }
+            }
+            return low;
+        }
+
+        /**
+         * Allocates the orders of the timeline again from the last checkpoint at or before the index, and adds
+         * the orders whose allocation changed to the changes, as well as the inserted order if any.
+         */
+        private void replay(Timeline timeline, int fromIndex, List<Change> changes, Order inserted) {
+            int checkpoint = fromIndex / checkpointInterval;
+            int[] stock = timeline.checkpoints.get(checkpoint);
+            for (int i = 0; i < timeline.positions.length; i++) {
+                shipmentsManager.stockRepository.setStockAt(timeline.positions[i], stock[i]);
+            }
+            timeline.checkpoints.subList(checkpoint + 1, timeline.checkpoints.size()).clear();
+            ShipmentsManager.Rejects rejects = new ShipmentsManager.Rejects();
+            int start = checkpoint * checkpointInterval;
+            for (int index = start; ; index++) {
+                // also at the end of the timeline, where the next order of the item is appended
+                if (index > start && index % checkpointInterval == 0) {
+                    timeline.checkpoints.add(stockOf(timeline));
+                }
+                if (index == timeline.orders.size()) {
+                    break;
+                }
+                Order order = timeline.orders.get(index);
+                ShipmentInfo before = timeline.shipmentInfos.get(index);
+                ShipmentsManager.RejectReason reasonBefore = timeline.rejectReasons.get(index);
+                int rejected = rejects.size();
+                ShipmentInfo after = shipmentsManager.findBestShipmentInfo(order, rejects);
+                ShipmentsManager.RejectReason reasonAfter = rejects.size() > rejected ? rejects.reasonAt(rejected)
+                        : null;
+                timeline.shipmentInfos.set(index, after);
+                timeline.rejectReasons.set(index, reasonAfter);
+                replayedOrders++;
+                if (changes != null && (order == inserted || !sameAllocation(before, after)
+                        || reasonBefore != reasonAfter)) {
+                    changes.add(new Change(order, after, reasonAfter, false));
+                }
+            }
+        }
+
+        private int[] stockOf(Timeline timeline) {
+            int[] stock = new int[timeline.positions.length];
+            for (int i = 0; i < stock.length; i++) {
+                stock[i] = shipmentsManager.stockRepository.stockAt(timeline.positions[i]);
+            }
+            return stock;
+        }
+
+        private static boolean sameAllocation(ShipmentInfo before, ShipmentInfo after) {
+            if (before == null || after == null) {
+                return before == after;
+            }
+            return before.warehouse == after.warehouse
+                    && before.guaranteedDeliveryEpochMinute == after.guaranteedDeliveryEpochMinute
+                    && before.boxType.equals(after.boxType) && before.shippingPrice == after.shippingPrice;
+        }
+
+        /**
+         * Allocates the orders of the input, then applies the changes of a file, {@code +<order line>} to insert
+         * and {@code -<order id>} to cancel, writing the changes of the allocation to the output. The total of
+         * the final allocation is printed. With {@code --verify=true} the final allocation is then checked against
+         * a batch run of the final orders.
+         */
+        static void run(RunOptions options, RunMetrics metrics) throws IOException {
+            if (options.changes == null) {
+                throw new IllegalArgumentException("--changes=<file> is required");
+            }
+            String output = options.requiredOutput();
+            InputData input = FastCsvReader.readInput(options.input);
+            ShipmentsManager shipmentsManager = input.newShipmentsManager(options.costCacheCapacity);
+            shipmentsManager.setMetrics(metrics);
+            IncrementalAllocator allocator = new IncrementalAllocator(shipmentsManager, options.checkpointInterval);
+            allocator.addAll(input.orders);
+            long initialOrders = allocator.getReplayedOrders();
+            int changedLines = 0;
+            try (ResultWriter writer = ResultWriter.open(output)) {
+                for (String line : Files.readAllLines(Paths.get(options.changes))) {
+                    if (line.isEmpty()) {
+                        continue;
+                    }
+                    List<Change> changes;
+                    if (line.charAt(0) == '+') {
+                        changes = allocator.insert(CsvParser.parseOrder(line.substring(1)));
+                    } else if (line.charAt(0) == '-') {
+                        changes = allocator.cancel(Long.parseLong(line.substring(1).trim()));
+                    } else {
+                        throw new IllegalArgumentException("Expected +<order> or -<order id> but got " + line);
+                    }
+                    for (Change change : changes) {
+                        writer.writeText(change.toCsvLine() + "\n");
+                    }
+                    changedLines += changes.size();
+                }
+            }
+            float totalShipmentPrice = 0.0f;
+            for (ShipmentInfo shipmentInfo : allocator.getShipmentInfos()) {
+                totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+            }
+            System.out.println("Your total shipment price is: " + totalShipmentPrice);
+            System.out.println(changedLines + " changed allocations, " + (allocator.getReplayedOrders()
+                    - initialOrders) + " orders replayed for the changes, " + initialOrders + " initially");
+            if (options.verify) {
+                allocator.verify(input.newShipmentsManager(options.costCacheCapacity));
+                System.out.println("verified against a batch run of the final orders");
+            }
+        }
+
+        /**
+         * Checks that the allocation equals the one of a batch run of the current orders, in arrival order, on
+         * the given manager.
+         *
+         * @throws IllegalStateException at the first order allocated differently
+         */
+        synchronized void verify(ShipmentsManager batchManager) {
+            List<ShipmentInfo> expected = batchManager.findBestShipmentInfo(getOrders(), 1,
+                    new ShipmentsManager.Rejects());
+            List<ShipmentInfo> actual = getShipmentInfos();
+            for (int i = 0; i < Math.max(expected.size(), actual.size()); i++) {
+                String expectedLine = i < expected.size() ? expected.get(i).toCsvLine() : null;
+                String actualLine = i < actual.size() ? actual.get(i).toCsvLine() : null;
+                if (!Objects.equals(expectedLine, actualLine)) {
+                    throw new IllegalStateException("Shipment " + i + " is " + actualLine + " but a batch run gives "
+                            + expectedLine);
+                }
+            }
+        }
+    }
+
+    /**
+     * Counters in fixed-size chunks that forks share until they write to them. A fork only copies the chunk
+     * references, and the first write to a shared chunk, by either side, copies that chunk, so a scenario that
+     * touches a few items costs a few chunks whatever the number of stock rows. Writes to a chunk owned by the
+     * instance are atomic in place, as in an {@link AtomicIntegerArray}.
+     */
+    static class StockCounters {
+        private static final int CHUNK_BITS = 10;
+        private static final int CHUNK_SIZE = 1 << CHUNK_BITS;
+        private static final int CHUNK_MASK = CHUNK_SIZE - 1;
+
+        private final AtomicReferenceArray<AtomicIntegerArray> chunks;
+        // 1 where the chunk is not shared with another instance and can be written in place
+        private final AtomicIntegerArray owned;
+        // the counters of a stock ledger instead of the chunks, see #mapped
+        private final ByteBuffer mapped;
+
+        StockCounters(int size) {
+            int chunkCount = (size + CHUNK_SIZE - 1) >>> CHUNK_BITS;
+            chunks = new AtomicReferenceArray<>(chunkCount);
+            owned = new AtomicIntegerArray(chunkCount);
+            for (int chunk = 0; chunk < chunkCount; chunk++) {
+                chunks.set(chunk, new AtomicIntegerArray(CHUNK_SIZE));
+                owned.set(chunk, 1);
+            }
+            mapped = null;
+        }
+
+        private StockCounters(ByteBuffer mapped) {
+            chunks = null;
+            owned = null;
+            this.mapped = mapped;
+        }
+
+        /**
+         * Counters kept in a buffer, usually mapped from a file, four bytes each. They are read and written
+         * without atomic operations, which is enough for allocations partitioned by item, as a counter then
+         * only changes on the thread of its item.
+         */
+        static StockCounters mapped(ByteBuffer buffer) {
+            return new StockCounters(buffer);
+        }
+
+        private StockCounters(StockCounters source) {
+            chunks = new AtomicReferenceArray<>(source.chunks.length());
+            owned = new AtomicIntegerArray(source.chunks.length());
+            for (int chunk = 0; chunk < chunks.length(); chunk++) {
+                chunks.set(chunk, source.chunks.get(chunk));
+            }
+            mapped = null;
+        }
+
+        int get(int index) {
+            if (mapped != null) {
+                return mapped.getInt(index << 2);
+            }
+            return chunks.get(index >>> CHUNK_BITS).get(index & CHUNK_MASK);
+        }
+
+        void set(int index, int value) {
+            if (mapped != null) {
+                mapped.putInt(index << 2, value);
+                return;
+            }
+            writable(index >>> CHUNK_BITS).set(index & CHUNK_MASK, value);
+        }
+
+        int decrementAndGet(int index) {
+            if (mapped != null) {
+                int value = mapped.getInt(index << 2) - 1;
+                mapped.putInt(index << 2, value);
+                return value;
+            }
+            return writable(index >>> CHUNK_BITS).decrementAndGet(index & CHUNK_MASK);
+        }
+
+        /**
+         * Counters that start as these ones. Both sides copy a chunk before writing to it from now on. Mapped
+         * counters are copied to the heap at once, a fork never writes to a ledger.
+         */
+        synchronized StockCounters fork() {
+            if (mapped != null) {
+                int size = mapped.capacity() >>> 2;
+                StockCounters copy = new StockCounters(size);
+                for (int i = 0; i < size; i++) {
+                    copy.set(i, mapped.getInt(i << 2));
+                }
+                return copy;
+            }
+            for (int chunk = 0; chunk < owned.length(); chunk++) {
+                owned.set(chunk, 0);
+            }
+            return new StockCounters(this);
+        }
+
+        private AtomicIntegerArray writable(int chunk) {
+            if (owned.get(chunk) == 1) {
+                return chunks.get(chunk);
+            }
+            synchronized (this) {
+                if (owned.get(chunk) == 0) {
+                    AtomicIntegerArray shared = chunks.get(chunk);
+                    AtomicIntegerArray copy = new AtomicIntegerArray(CHUNK_SIZE);
+                    for (int i = 0; i < CHUNK_SIZE; i++) {
+                        copy.set(i, shared.get(i));
+                    }
+                    chunks.set(chunk, copy);
+                    owned.set(chunk, 1);
+                }
+                return chunks.get(chunk);
+            }
+        }
+    }
+
+    /**
+     * Keeps the stock of a batch run off the heap and makes the run resumable. Two files in a directory:
+     * <ul>
+     * <li>{@code stock.bin} maps a counter per stock row, that is per item and warehouse, which the stock
+     * repository uses instead of its own counters, see {@link StockCounters#mapped};</li>
+     * <li>{@code reservations.log} maps a record per allocated order: its index in date order and the stock row
+     * it took, or the reason it was rejected.</li>
+     * </ul>
+     * Records are appended to the mapped log and committed in groups: the log is forced to disk, then the number
+     * of committed records in its header. Records past that number may be lost by a crash and are ignored.
+     *
+     * <p>The log is the record of what was reserved. A restarted run over the same input, which the header of the
+     * log identifies by a checksum of the orders and of the initial stock, starts the counters from the initial
+     * stock, replays the committed records and only allocates the orders left, so it ends as an uninterrupted run.
+     * The counters themselves are not forced, as they are rebuilt from the log.
+     */
+    static class StockLedger implements Closeable {
+        static final int MAGIC = 0x43474c47; // "CGLG"
+        static final int VERSION = 1;
+        static final int HEADER_SIZE = 64;
+        static final int RECORD_SIZE = 8;
+        static final int DEFAULT_GROUP_SIZE = 1 << 14;
+        // records of a mapped window of the log, forced as a whole
+        static final int SEGMENT_RECORDS = 1 << 17;
+        private static final int FINGERPRINT_OFFSET = 8;
+        static final int COMMITTED_OFFSET = 16;
+
+        /**
+         * Receives the committed records of a log.
+         */
+        interface Reservations {
+            /**
+             * @param value the stock row, or a negative value for a reject, see {@link #rejectReason}
+             */
+            void accept(int orderIndex, int value);
+        }
+
+        private final Path directory;
+        private final int groupSize;
+        private FileChannel log;
+        private MappedByteBuffer header;
+        private MappedByteBuffer segment;
+        private int segmentIndex = -1;
+        private long capacity;
+        private long records;
+        private long committed;
+        private long resumed;
+        private long commits;
+
+        StockLedger(Path directory, int groupSize) {
+            if (groupSize <= 0) {
+                throw new IllegalArgumentException("Group commit size must be positive: " + groupSize);
+            }
+            this.directory = directory;
+            this.groupSize = groupSize;
+        }
+
+        static int rejectValue(ShipmentsManager.RejectReason reason) {
+            return -1 - reason.ordinal();
+        }
+
+        static ShipmentsManager.RejectReason rejectReason(int value) {
+            return ShipmentsManager.RejectReason.values()[-1 - value];
+        }
+
+        /**
+         * Maps the files for the given orders, sorted by date, and moves the stock of the repository to the
+         * ledger, starting from its current counts. An existing log must belong to the same orders and stock.
+         */
+        void attach(ShipmentsManager.StockRepository stockRepository, Order[] sortedOrders) throws IOException {
+            if (log != null) {
+                throw new IllegalStateException("Ledger already attached");
+            }
+            Files.createDirectories(directory);
+            CRC32 crc = new CRC32();
+            ByteBuffer bytes = ByteBuffer.allocate(16);
+            for (Order order : sortedOrders) {
+                bytes.clear();
+                bytes.putLong(order.getOrderId()).putLong(order.getOrderEpochMinute());
+                crc.update(bytes.array(), 0, 16);
+            }
+            for (int position = 0; position < stockRepository.size(); position++) {
+                bytes.clear();
+                bytes.putInt(stockRepository.stockAt(position));
+                crc.update(bytes.array(), 0, 4);
+            }
+            long fingerprint = crc.getValue() ^ ((long) sortedOrders.length << 32);
+
+            MappedByteBuffer counters;
+            try (FileChannel channel = FileChannel.open(directory.resolve("stock.bin"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+                counters = channel.map(FileChannel.MapMode.READ_WRITE, 0,
+                        HEADER_SIZE + (long) stockRepository.size() * 4);
+            }
+            counters.putInt(0, MAGIC).putInt(4, VERSION).putInt(8, stockRepository.size());
+            counters.position(HEADER_SIZE);
+            StockCounters ledgerCounts = StockCounters.mapped(counters.slice());
+            for (int position = 0; position < stockRepository.size(); position++) {
+                ledgerCounts.set(position, stockRepository.stockAt(position));
+            }
+            stockRepository.useCounts(ledgerCounts);
+
+            capacity = sortedOrders.length;
+            if (HEADER_SIZE + capacity * RECORD_SIZE > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException("Too many orders for one ledger: " + capacity);
+            }
+            log = FileChannel.open(directory.resolve("reservations.log"), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            boolean existing = log.size() >= HEADER_SIZE;
+            header = log.map(FileChannel.MapMode.READ_WRITE, 0, HEADER_SIZE);
+            if (existing) {
+                if (header.getInt(0) != MAGIC || header.getInt(4) != VERSION) {
+                    throw new IllegalStateException("Not a reservation log: " + directory.resolve("reservations.log"));
+                }
+                if (header.getLong(FINGERPRINT_OFFSET) != fingerprint) {
+                    throw new IllegalStateException("The ledger in " + directory
+                            + " belongs to other orders or stock, remove it to start over");
+                }
+                committed = header.getLong(COMMITTED_OFFSET);
+            } else {
+                header.putInt(0, MAGIC).putInt(4, VERSION).putLong(FINGERPRINT_OFFSET, fingerprint)
+                        .putLong(COMMITTED_OFFSET, 0);
+                header.force();
+            }
+            records = committed;
+            resumed = committed;
+        }
+
+        /**
+         * Hands the committed records to the consumer, in the order they were appended.
+         */
+        void replay(Reservations reservations) throws IOException {
+            for (long start = 0; start < committed; start += SEGMENT_RECORDS) {
+                int count = (int) Math.min(SEGMENT_RECORDS, committed - start);
+                MappedByteBuffer records = log.map(FileChannel.MapMode.READ_ONLY,
+                        HEADER_SIZE + start * RECORD_SIZE, (long) count * RECORD_SIZE);
+                for (int i = 0; i < count; i++) {
+                    reservations.accept(records.getInt(i * RECORD_SIZE), records.getInt(i * RECORD_SIZE + 4));
+                }
+            }
+        }
+
+        /**
+         * Appends the allocation of an order, committing the log every group of records.
+         *
+         * @param value the stock row, or {@link #rejectValue} of the reason the order was rejected
+         */
+        synchronized void append(int orderIndex, int value) {
+            if (records == capacity) {
+                throw new IllegalStateException("Reservation log full: " + capacity + " records");
+            }
+            int index = (int) (records % SEGMENT_RECORDS);
+            if (segmentIndex != records / SEGMENT_RECORDS) {
+                commit();
+                segmentIndex = (int) (records / SEGMENT_RECORDS);
+                long start = (long) segmentIndex * SEGMENT_RECORDS;
+                try {
+                    segment = log.map(FileChannel.MapMode.READ_WRITE, HEADER_SIZE + start * RECORD_SIZE,
+                            Math.min(SEGMENT_RECORDS, capacity - start) * RECORD_SIZE);
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }
+            segment.putInt(index * RECORD_SIZE, orderIndex);
+            segment.putInt(index * RECORD_SIZE + 4, value);
+            records++;
+            if (records - committed >= groupSize) {
+                commit();
+            }
+        }
+
+        /**
+         * Forces the appended records, then their number, to disk.
+         */
+        synchronized void commit() {
+            if (records == committed) {
+                return;
+            }
+            segment.force();
+            header.putLong(COMMITTED_OFFSET, records);
+            header.force();
+            committed = records;
+            commits++;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if (log != null) {
+                try {
+                    commit();
+                } finally {
+                    log.close();
+                }
+            }
+        }
+
+        @Override
+        public synchronized String toString() {
+            return "stock ledger: " + resumed + " orders resumed, " + (records - resumed) + " appended in "
+                    + commits + " group commits";
+        }
+    }
+
+    /**
+     * Allocates orders as they are read instead of loading and sorting all of them first. The order feed only
+     * needs to be nearly time-ordered: orders wait in a heap keyed on order date until no order that is more
+     * than {@code latenessMinutes} older than the newest one seen can still arrive, so memory is bounded by the
+     * orders within that window. Output lines are written as soon as their order is allocated and the total
+     * price, which is only known at the end, is written as a trailer line or to a separate file.
+     */
+    static class StreamingAllocator {
+
+        private static class PendingOrder {
+            final Order order;
+            final long sequence;
+
+            PendingOrder(Order order, long sequence) {
+                this.order = order;
+                this.sequence = sequence;
+            }
+        }
+
+        private final ShipmentsManager shipmentsManager;
+        private final ResultWriter output;
+        private final long latenessMinutes;
+        // orders with the same date leave in arrival order, as with the stable sort of the batch run
+        private final PriorityQueue<PendingOrder> window = new PriorityQueue<>(
+                Comparator.comparingLong((PendingOrder pending) -> pending.order.getOrderEpochMinute())
+                        .thenComparingLong(pending -> pending.sequence));
+        private long newestOrderEpochMinute = Long.MIN_VALUE;
+        private long lastAllocatedOrderEpochMinute = Long.MIN_VALUE;
+        private long sequence;
+        private long allocatedOrders;
+        private long lateOrders;
+        private float totalShipmentPrice;
+
+        StreamingAllocator(ShipmentsManager shipmentsManager, ResultWriter output, long latenessMinutes) {
+            this.shipmentsManager = shipmentsManager;
+            this.output = output;
+            this.latenessMinutes = latenessMinutes;
+        }
+
+        static StreamingAllocator run(RunOptions options, RunMetrics metrics) throws IOException {
+            long startNanos = System.nanoTime();
+            try (FastCsvReader reader = new FastCsvReader(FileChannel.open(Paths.get(options.input)),
+                    FastCsvReader.DEFAULT_BUFFER_SIZE);
+                 ResultWriter writer = ResultWriter.open(options.output)) {
+                InputData referenceData = new InputData();
+                boolean hasOrders = reader.readUntil(FastCsvReader.Section.ORDERS, referenceData);
+                startNanos = metrics.stage(RunMetrics.Stage.PARSE, startNanos);
+                ShipmentsManager shipmentsManager = referenceData.newShipmentsManager(options.costCacheCapacity);
+                shipmentsManager.setMetrics(metrics);
+                startNanos = metrics.stage(RunMetrics.Stage.BUILD, startNanos);
+                StreamingAllocator allocator = new StreamingAllocator(shipmentsManager, writer, options.latenessMinutes);
+                while (hasOrders && reader.nextLine()) {
+                    if (reader.header() != null) {
+                        throw new IllegalStateException("Reference sections must precede the orders in stream mode");
+                    }
+                    if (!reader.isBlankLine()) {
+                        allocator.accept(reader.parseOrder());
+                    }
+                }
+                allocator.finish();
+                // the orders are parsed and written as they are allocated, all of which counts as allocation
+                metrics.stage(RunMetrics.Stage.ALLOCATE, startNanos);
+                if (options.totalOutput == null) {
+                    writer.writeTotal(allocator.getTotalShipmentPrice());
+                } else {
+                    try (BufferedWriter totalWriter = new BufferedWriter(new FileWriter(options.totalOutput))) {
+                        totalWriter.write(allocator.getTotalShipmentPrice() + "\n");
+                    }
+                }
+                return allocator;
+            }
+        }
+
+        void accept(Order order) throws IOException {
+            if (order.getOrderEpochMinute() < lastAllocatedOrderEpochMinute) {
+                // arrived after its window was released, allocate it right away
+                lateOrders++;
+                allocate(order);
+                return;
+            }
+            newestOrderEpochMinute = Math.max(newestOrderEpochMinute, order.getOrderEpochMinute());
+            window.add(new PendingOrder(order, sequence++));
+            long releaseUntil = newestOrderEpochMinute - latenessMinutes;
+            while (!window.isEmpty() && window.peek().order.getOrderEpochMinute() <= releaseUntil) {
+                allocate(window.poll().order);
+            }
+        }
+
+        void finish() throws IOException {
+            while (!window.isEmpty()) {
+                allocate(window.poll().order);
+            }
+            output.flush();
+        }
+
+        private void allocate(Order order) throws IOException {
+            ShipmentInfo shipmentInfo = shipmentsManager.findBestShipmentInfo(order);
+            totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+            output.write(shipmentInfo);
+            lastAllocatedOrderEpochMinute = Math.max(lastAllocatedOrderEpochMinute, order.getOrderEpochMinute());
+            allocatedOrders++;
+        }
+
+        float getTotalShipmentPrice() {
+            return totalShipmentPrice;
+        }
+
+        long getAllocatedOrders() {
+            return allocatedOrders;
+        }
+
+        long getLateOrders() {
+            return lateOrders;
+        }
+    }
+
+    /**
+     * Scales a sample input to a synthetic one with the given number of orders, items and warehouses. Box types
+     * and route tables are copied from the sample. Warehouses beyond the two of the sample are declared in a
+     * {@code ---Warehouses---} section with a real time zone, and take the routes of New York or San Francisco
+     * with their prices and carrier times varied. Item dimensions, (city, state) pairs and their frequencies are
+     * drawn from the sample, item popularity follows a Zipf distribution, and every item gets enough stock, split
+     * between the warehouses, to serve all its orders. Orders are mostly in date order, a few minutes apart,
+     * with occasional late arrivals like in the sample.
+     */
+    static class SyntheticInputGenerator {
+        private static final double ZIPF_EXPONENT = 1.1;
+        private static final double LATE_ORDER_RATIO = 0.005;
+        private static final String[] SAMPLE_WAREHOUSES = {"New York", "San Francisco"};
+        // name and time zone of the warehouses added to those of the sample, numbered once all are used
+        private static final String[][] EXTRA_WAREHOUSES = {{"Chicago", "America/Chicago"},
+                {"Denver", "America/Denver"}, {"Atlanta", "America/New_York"}, {"Seattle", "America/Los_Angeles"},
+                {"Phoenix", "America/Phoenix"}, {"Dallas", "America/Chicago"}, {"Anchorage", "America/Anchorage"},
+                {"Honolulu", "Pacific/Honolulu"}, {"St. John's", "America/St_Johns"}};
+
+        static void generate(String samplePath, String outputPath, int orderCount, int itemCount, int warehouseCount,
+                             long seed) throws IOException {
+            if (warehouseCount < SAMPLE_WAREHOUSES.length) {
+                throw new IllegalArgumentException("--warehouses must be at least " + SAMPLE_WAREHOUSES.length);
+            }
+            Map<String, List<String>> sections = new HashMap<>();
+            List<String> section = null;
+            for (String line : Files.readAllLines(Paths.get(samplePath))) {
+                if (line.startsWith("---")) {
+                    section = sections.computeIfAbsent(line, k -> new ArrayList<>());
+                } else if (section != null && !line.isEmpty()) {
+                    section.add(line);
+                }
+            }
+            List<String> sampleItems = sections.getOrDefault("---Items---", Collections.emptyList());
+            List<String> sampleOrders = sections.getOrDefault("---Orders---", Collections.emptyList());
+            if (sampleItems.isEmpty() || sampleOrders.isEmpty()) {
+                throw new IllegalArgumentException("The sample needs items and orders: " + samplePath);
+            }
+            Random random = new Random(seed);
+
+            double[] cumulativeWeights = new double[itemCount];
+            double totalWeight = 0;
+            for (int i = 0; i < itemCount; i++) {
+                totalWeight += 1 / Math.pow(i + 1, ZIPF_EXPONENT);
+                cumulativeWeights[i] = totalWeight;
+            }
+            int[] orderedItems = new int[orderCount];
+            int[] demand = new int[itemCount];
+            for (int i = 0; i < orderCount; i++) {
+                int index = Arrays.binarySearch(cumulativeWeights, random.nextDouble() * totalWeight);
+                int item = Math.min(index < 0 ? -index - 1 : index, itemCount - 1);
+                orderedItems[i] = item;
+                demand[item]++;
+            }
+
+            String[] warehouses = Arrays.copyOf(SAMPLE_WAREHOUSES, warehouseCount);
+            try (BufferedWriter bw = new BufferedWriter(new FileWriter(outputPath), 1 << 20)) {
+                if (warehouseCount > SAMPLE_WAREHOUSES.length) {
+                    bw.write("---Warehouses---\n");
+                    for (int warehouse = SAMPLE_WAREHOUSES.length; warehouse < warehouseCount; warehouse++) {
+                        int extra = warehouse - SAMPLE_WAREHOUSES.length;
+                        String[] nameAndZone = EXTRA_WAREHOUSES[extra % EXTRA_WAREHOUSES.length];
+                        warehouses[warehouse] = extra < EXTRA_WAREHOUSES.length ? nameAndZone[0]
+                                : nameAndZone[0] + " " + (extra / EXTRA_WAREHOUSES.length + 1);
+                        bw.write(warehouses[warehouse] + SEMICOLON + nameAndZone[1] + "\n");
+                    }
+                }
+                bw.write("---Stocks---\n");
+                for (int item = 0; item < itemCount; item++) {
+                    int stock = demand[item] + random.nextInt(3 + demand[item] / 4);
+                    // every warehouse takes a random part of what the previous ones left, starting from a
+                    // different one for every item so that the stock is spread evenly
+                    int first = warehouseCount > SAMPLE_WAREHOUSES.length ? item % warehouseCount : 0;
+                    int[] parts = new int[warehouseCount];
+                    for (int i = 0; i < warehouseCount; i++) {
+                        int part = i == warehouseCount - 1 ? stock : random.nextInt(stock + 1);
+                        parts[(first + i) % warehouseCount] = part;
+                        stock -= part;
+                    }
+                    for (int warehouse = 0; warehouse < warehouseCount; warehouse++) {
+                        bw.write(itemId(item) + SEMICOLON + warehouses[warehouse] + SEMICOLON + parts[warehouse]
+                                + "\n");
+                    }
+                }
+                bw.write("---BoxTypes---\n");
+                for (String line : sections.getOrDefault("---BoxTypes---", Collections.emptyList())) {
+                    bw.write(line + "\n");
+                }
+                for (String name : new String[]{"---CarrierPricing---", "---DepartureTimes---", "---CarrierTimes---"}) {
+                    bw.write(name + "\n");
+                    List<String> lines = sections.getOrDefault(name, Collections.emptyList());
+                    for (String line : lines) {
+                        bw.write(line + "\n");
+                    }
+                    for (int warehouse = SAMPLE_WAREHOUSES.length; warehouse < warehouseCount; warehouse++) {
+                        String template = SAMPLE_WAREHOUSES[warehouse % SAMPLE_WAREHOUSES.length] + SEMICOLON;
+                        for (String line : lines) {
+                            if (line.startsWith(template)) {
+                                bw.write(warehouses[warehouse] + SEMICOLON
+                                        + varyRoute(name, line.substring(template.length()), random) + "\n");
+                            }
+                        }
+                    }
+                }
+                bw.write("---Items---\n");
+                for (int item = 0; item < itemCount; item++) {
+                    String sample = sampleItems.get(random.nextInt(sampleItems.size()));
+                    bw.write(itemId(item) + sample.substring(sample.indexOf(';')) + "\n");
+                }
+                bw.write("---Orders---\n");
+                LocalDateTime start = CsvParser.parseOrder(sampleOrders.get(0)).getOrderDate();
+                long minute = EpochMinutes.of(start);
+                for (int i = 0; i < orderCount; i++) {
+                    minute += random.nextInt(3);
+                    long orderMinute = random.nextDouble() < LATE_ORDER_RATIO ? minute - random.nextInt(180) : minute;
+                    String[] sample = sampleOrders.get(random.nextInt(sampleOrders.size())).split(SEMICOLON);
+                    bw.write((50000000L + i) + SEMICOLON + DATE_PATTERN.format(EpochMinutes.toLocalDateTime(orderMinute))
+                            + SEMICOLON + itemId(orderedItems[i]) + SEMICOLON + sample[3] + SEMICOLON + sample[4] + "\n");
+                }
+            }
+        }
+
+        private static String itemId(int item) {
+            return String.format("%013d", 1000000000000L + item);
+        }
+
+        /**
+         * @param route the fields of a route line after the warehouse
+         * @return the fields with the price scaled by up to 20% or the carrier time moved by up to 2 hours
+         */
+        private static String varyRoute(String section, String route, Random random) {
+            String[] fields = route.split(SEMICOLON);
+            switch (section) {
+                case "---CarrierPricing---":
+                    float price = Float.parseFloat(fields[1].replace(',', '.')) * (0.8f + 0.4f * random.nextFloat());
+                    return fields[0] + SEMICOLON + String.format(Locale.ROOT, "%.2f", price).replace('.', ',');
+                case "---CarrierTimes---":
+                    int hours = Integer.parseInt(fields[1].split(" ")[0]) + random.nextInt(5) - 2;
+                    return fields[0] + SEMICOLON + Math.max(1, hours) + " hours";
+                default:
+                    return route;
+            }
+        }
+    }
+
+    /**
+     * Stage timers, allocation counters and a latency histogram of a run. Recording is lock-free and, once
+     * warm, allocation-free, so it stays on: counters, and every bucket of the histograms, are
+     * {@link LongAdder}s, which threads recording at once update without contending on a shared cache line.
+     */
+    static class RunMetrics implements Closeable {
+        enum Stage {
+            PARSE, SORT, BUILD, ALLOCATE, SORT_RESULTS, WRITE
+        }
+
+        // orders are counted by number of stocked warehouses evaluated, the last bucket takes all above
+        static final int MAX_CANDIDATES = 8;
+
+        private final AtomicLongArray stageNanos = new AtomicLongArray(Stage.values().length);
+        final LongAdder ordersProcessed = new LongAdder();
+        final LongAdder noSuitableWarehouse = new LongAdder();
+        final LongAdder noSuitableBox = new LongAdder();
+        final LongAdder noRoute = new LongAdder();
+        final LongAdder memoHits = new LongAdder();
+        final LongAdder memoMisses = new LongAdder();
+        private final LongAdder[] candidates = newAdders(MAX_CANDIDATES + 1);
+        private final LongAdder evaluated = new LongAdder();
+        private final LongAdder pruned = new LongAdder();
+        final LatencyHistogram allocationLatency = new LatencyHistogram();
+        private ScheduledExecutorService exporter;
+
+        /**
+         * @return new metrics, which {@code --metrics-interval} exports to {@code --metrics} until they are closed
+         */
+        static RunMetrics open(RunOptions options) {
+            RunMetrics metrics = new RunMetrics();
+            if (options.metrics != null && options.metricsIntervalSeconds > 0) {
+                metrics.exportEvery(options.metrics, options.metricsIntervalSeconds);
+            }
+            return metrics;
+        }
+
+        /**
+         * Adds the time since start to the stage.
+         *
+         * @return the current time, which starts the next stage
+         */
+        long stage(Stage stage, long startNanos) {
+            long now = System.nanoTime();
+            stageNanos.addAndGet(stage.ordinal(), now - startNanos);
+            return now;
+        }
+
+        void recordOrder(int candidatesEvaluated, int candidatesPruned, long startNanos) {
+            allocationLatency.record(System.nanoTime() - startNanos);
+            candidates[Math.min(candidatesEvaluated, MAX_CANDIDATES)].increment();
+            evaluated.add(candidatesEvaluated);
+            if (candidatesPruned > 0) {
+                pruned.add(candidatesPruned);
+            }
+            ordersProcessed.increment();
+        }
+
+        private static LongAdder[] newAdders(int size) {
+            LongAdder[] adders = new LongAdder[size];
+            for (int i = 0; i < size; i++) {
+                adders[i] = new LongAdder();
+            }
+            return adders;
+        }
+
+        /**
+         * @return the share of stock rows that were skipped by their lower bound instead of being evaluated
+         */
+        double pruningRatio() {
+            long skipped = pruned.sum();
+            long total = skipped + evaluated.sum();
+            return total == 0 ? 0 : (double) skipped / total;
+        }
+
+        /**
+         * @return the share of selections answered by the memo of their cost entry instead of a search
+         */
+        double memoHitRate() {
+            long hits = memoHits.sum();
+            long total = hits + memoMisses.sum();
+            return total == 0 ? 0 : (double) hits / total;
+        }
+
+        /**
+         * Writes the summary to the file every given number of seconds, until the metrics are closed.
+         */
+        void exportEvery(String path, long seconds) {
+            exporter = Executors.newSingleThreadScheduledExecutor(task -> {
+                Thread thread = new Thread(task, "metrics-export");
+                thread.setDaemon(true);
+                return thread;
+            });
+            exporter.scheduleAtFixedRate(() -> {
+                try {
+                    export(path);
+                } catch (IOException e) {
+                    System.err.println("Cannot export metrics to " + path + ": " + e);
+                }
+            }, seconds, seconds, TimeUnit.SECONDS);
+        }
+
+        /**
+         * Writes the summary to a temporary file that then replaces the file, so readers never see a
+         * partial summary.
+         */
+        synchronized void export(String path) throws IOException {
+            Path target = Paths.get(path).toAbsolutePath();
+            Path temporary = target.resolveSibling(target.getFileName() + ".tmp");
+            Files.write(temporary, toJson().getBytes(StandardCharsets.UTF_8));
+            Files.move(temporary, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        }
+
+        /**
+         * Stops the periodic export, waiting for an export that is being written.
+         */
+        @Override
+        public void close() {
+            if (exporter != null) {
+                exporter.shutdown();
+                try {
+                    exporter.awaitTermination(1, TimeUnit.MINUTES);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+
+        String toJson() {
+            StringBuilder json = new StringBuilder(1024).append("{\n  \"stagesMillis\": {");
+            for (Stage stage : Stage.values()) {
+                json.append(stage.ordinal() == 0 ? "" : ",").append("\n    \"").append(stage.name().toLowerCase())
+                        .append("\": ").append(stageNanos.get(stage.ordinal()) / 1_000_000.0);
+            }
+            json.append("\n  },\n  \"ordersProcessed\": ").append(ordersProcessed.sum())
+                    .append(",\n  \"noSuitableWarehouse\": ").append(noSuitableWarehouse.sum())
+                    .append(",\n  \"noSuitableBox\": ").append(noSuitableBox.sum())
+                    .append(",\n  \"noRoute\": ").append(noRoute.sum())
+                    .append(",\n  \"candidatesEvaluated\": [");
+            for (int i = 0; i <= MAX_CANDIDATES; i++) {
+                json.append(i == 0 ? "" : ", ").append(candidates[i].sum());
+            }
+            json.append("],\n  \"candidatesPruned\": ").append(pruned.sum())
+                    .append(",\n  \"pruningRatio\": ").append(pruningRatio())
+                    .append(",\n  \"memoHits\": ").append(memoHits.sum())
+                    .append(",\n  \"memoHitRate\": ").append(memoHitRate())
+                    .append(",\n  \"allocationLatencyNanos\": {\"count\": ").append(allocationLatency.count())
+                    .append(", \"p50\": ").append(allocationLatency.percentile(50))
+                    .append(", \"p90\": ").append(allocationLatency.percentile(90))
+                    .append(", \"p99\": ").append(allocationLatency.percentile(99))
+                    .append(", \"p999\": ").append(allocationLatency.percentile(99.9))
+                    .append(", \"max\": ").append(allocationLatency.max()).append("}\n}\n");
+            return json.toString();
+        }
+
+        @Override
+        public String toString() {
+            StringBuilder stages = new StringBuilder();
+            for (Stage stage : Stage.values()) {
+                stages.append(stage.name().toLowerCase()).append(' ')
+                        .append(stageNanos.get(stage.ordinal()) / 1_000_000).append(" ms, ");
+            }
+            return "stages: " + stages + ordersProcessed.sum() + " orders, "
+                    + String.format("%.1f%% candidates pruned, %.1f%% memo hits", pruningRatio() * 100,
+                    memoHitRate() * 100) + ", allocation p50 "
+                    + allocationLatency.percentile(50) + " ns, p99 " + allocationLatency.percentile(99) + " ns";
+        }
+
+        /**
+         * Histogram of positive longs in log-linear buckets, in the manner of HdrHistogram: values below 128
+         * have their own bucket, larger ones share a bucket with values of the same 7 leading bits, so
+         * percentiles are within 1.6% of the recorded values.
+         */
+        static class LatencyHistogram {
+            private static final int SUB_BUCKET_BITS = 7;
+            private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+            private static final int HALF_SUB_BUCKETS = SUB_BUCKETS / 2;
+
+            private final LongAdder[] counts =
+                    newAdders(SUB_BUCKETS + (Long.SIZE - SUB_BUCKET_BITS) * HALF_SUB_BUCKETS);
+            private final LongAccumulator max = new LongAccumulator(Math::max, 0);
+
+            void record(long value) {
+                value = Math.max(0, value);
+                counts[bucketOf(value)].increment();
+                max.accumulate(value);
+            }
+
+            static int bucketOf(long value) {
+                if (value < SUB_BUCKETS) {
+                    return (int) value;
+                }
+                int shift = Long.SIZE - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+                return SUB_BUCKETS + (shift - 1) * HALF_SUB_BUCKETS + (int) (value >>> shift) - HALF_SUB_BUCKETS;
+            }
+
+            /**
+             * @return the highest value that falls in the bucket
+             */
+            static long highestValueOf(int bucket) {
+                if (bucket < SUB_BUCKETS) {
+                    return bucket;
+                }
+                int shift = (bucket - SUB_BUCKETS) / HALF_SUB_BUCKETS + 1;
+                long subBucket = (bucket - SUB_BUCKETS) % HALF_SUB_BUCKETS + HALF_SUB_BUCKETS;
+                return ((subBucket + 1) << shift) - 1;
+            }
+
+            long count() {
+                long count = 0;
+                for (LongAdder bucket : counts) {
+                    count += bucket.sum();
+                }
+                return count;
+            }
+
+            long max() {
+                return max.get();
+            }
+
+            long percentile(double percentile) {
+                long count = count();
+                if (count == 0) {
+                    return 0;
+                }
+                long rank = Math.max(1, (long) Math.ceil(count * percentile / 100));
+                long seen = 0;
+                for (int bucket = 0; bucket < counts.length; bucket++) {
+                    seen += counts[bucket].sum();
+                    if (seen >= rank) {
+                        return Math.min(highestValueOf(bucket), max());
+                    }
+                }
+                return max();
+            }
+        }
+    }
+
+    /**
+     * Micro benchmarks of every stage of a run over an input file. A stage is a pass over its part of the input
+     * and a setup, which is not measured, that prepares every pass, for instance a manager with all its stock.
+     * {@code --mode=benchmark} times the stages with plain loops, warming each one up first, and prints the
+     * average time per operation. The JMH module of the build measures the same stages, see
+     * {@link CodeGo2019#benchmarkStages}.
+     */
+    static class Benchmarks {
+        private final int warmupIterations;
+        private final int iterations;
+        // consumes results so that the JIT cannot drop the measured work
+        private long sink;
+
+        /**
+         * A measured stage: the number of operations of a pass, and the setup that returns a pass.
+         */
+        static class Stage {
+            final int operations;
+            final Supplier<LongSupplier> setup;
+
+            Stage(int operations, Supplier<LongSupplier> setup) {
+                this.operations = operations;
+                this.setup = setup;
+            }
+        }
+
+        Benchmarks(int warmupIterations, int iterations) {
+            this.warmupIterations = warmupIterations;
+            this.iterations = iterations;
+        }
+
+        static void run(RunOptions options) throws IOException {
+            Benchmarks benchmarks = new Benchmarks(Math.max(1, options.iterations / 2), options.iterations);
+            System.out.println(String.format("%-48s %14s %14s", "stage", "ns/op", "ops"));
+            stages(options.input).forEach(benchmarks::measure);
+            System.out.println("(sink " + benchmarks.sink + ")");
+        }
+
+        /**
+         * @return the stages over the input, by name, in the order of a run
+         */
+        static Map<String, Stage> stages(String path) throws IOException {
+            List<String> lines = Files.readAllLines(Paths.get(path));
+            Map<String, List<String>> sections = new HashMap<>();
+            List<String> section = null;
+            for (String line : lines) {
+                if (line.startsWith("---")) {
+                    section = sections.computeIfAbsent(line, k -> new ArrayList<>());
+                } else if (section != null && !line.isEmpty()) {
+                    section.add(line);
+                }
+            }
+            InputData input = FastCsvReader.readInput(path);
+            Map<String, Stage> stages = new LinkedHashMap<>();
+
+            addLines(stages, "CsvParser.parseOrder", sections.get("---Orders---"), CsvParser::parseOrder);
+            addLines(stages, "CsvParser.parseStock", sections.get("---Stocks---"), CsvParser::parseStock);
+            addLines(stages, "CsvParser.parseItem", sections.get("---Items---"), CsvParser::parseItem);
+            addLines(stages, "CsvParser.parseBoxType", sections.get("---BoxTypes---"), CsvParser::parseBoxType);
+            addLines(stages, "CsvParser.parseCarrierPricings", sections.get("---CarrierPricing---"),
+                    CsvParser::parseCarrierPricings);
+            addLines(stages, "CsvParser.parseDepartureTime", sections.get("---DepartureTimes---"),
+                    CsvParser::parseDepartureTime);
+            addLines(stages, "CsvParser.parseCarrierTime", sections.get("---CarrierTimes---"),
+                    CsvParser::parseCarrierTime);
+            add(stages, "CsvParser.readInput (per line)", lines.size(), () -> {
+                try {
+                    return CsvParser.readInput(path).orders.size();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            add(stages, "FastCsvReader.readInput (per line)", lines.size(), () -> {
+                try {
+                    return FastCsvReader.readInput(path).orders.size();
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+
+            ShipmentsManager manager = input.newShipmentsManager();
+            add(stages, "BoxTypeRepository.findByItem", input.items.size(), () -> {
+                long hash = 0;
+                for (Item item : input.items) {
+                    hash += manager.boxTypeRepository.findByItem(item).hashCode();
+                }
+                return hash;
+            });
+            add(stages, "ItemRepository.findById", input.orders.size(), () -> {
+                long hash = 0;
+                for (Order order : input.orders) {
+                    hash += manager.itemRepository.findById(order.getItemId()).map(Object::hashCode).orElse(0);
+                }
+                return hash;
+            });
+            Warehouse newYork = input.warehouses.fromName(Warehouse.NEW_YORK.toName());
+            add(stages, "CarrierPricingRepository.findByWarehouseAndState", input.orders.size(), () -> {
+                long hash = 0;
+                for (Order order : input.orders) {
+                    hash += manager.carrierPricingRepository
+                            .findByWarehouseAndState(newYork, order.getTargetState())
+                            .map(Object::hashCode).orElse(0);
+                }
+                return hash;
+            });
+            add(stages, "StockRepository.findByItemIdAndWareHouse", input.orders.size(), () -> {
+                long hash = 0;
+                for (Order order : input.orders) {
+                    hash += manager.stockRepository.findByItemIdAndWareHouse(order.getItemId(), newYork)
+                            .map(Stock::getStock).orElse(0);
+                }
+                return hash;
+            });
+
+            List<Order> sortedOrders = new ArrayList<>(input.orders);
+            sortedOrders.sort(ShipmentsManager.BY_ORDER_DATE);
+            // allocation consumes stock, so every pass runs on a fresh manager, built by the setup
+            stages.put("ShipmentsManager.findBestShipmentInfo(Order)", new Stage(sortedOrders.size(), () -> {
+                ShipmentsManager freshManager = input.newShipmentsManager();
+                return () -> {
+                    long hash = 0;
+                    for (Order order : sortedOrders) {
+                        hash += freshManager.findBestShipmentInfo(order).getWarehouse().index();
+                    }
+                    return hash;
+                };
+            }));
+            stages.put("sort orders by date", new Stage(input.orders.size(), () -> {
+                List<Order> orders = new ArrayList<>(input.orders);
+                return () -> {
+                    orders.sort(ShipmentsManager.BY_ORDER_DATE);
+                    return orders.get(0).getOrderId();
+                };
+            }));
+            List<ShipmentInfo> shipmentInfos = input.newShipmentsManager().findBestShipmentInfo(input.orders);
+            stages.put("sort shipment infos by order date", new Stage(shipmentInfos.size(), () -> {
+                List<ShipmentInfo> infos = new ArrayList<>(shipmentInfos);
+                Collections.shuffle(infos, new Random(infos.size()));
+                return () -> {
+                    infos.sort(Comparator.comparingLong(info -> info.getOrder().getOrderEpochMinute()));
+                    return infos.get(0).getOrder().getOrderId();
+                };
+            }));
+            add(stages, "ShipmentInfo.toCsvLine", shipmentInfos.size(), () -> {
+                long length = 0;
+                for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                    length += shipmentInfo.toCsvLine().length();
+                }
+                return length;
+            });
+            CsvLineEncoder encoder = new CsvLineEncoder(1 << 16);
+            add(stages, "CsvLineEncoder.encode", shipmentInfos.size(), () -> {
+                encoder.clear();
+                for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                    encoder.encode(shipmentInfo);
+                }
+                return encoder.size();
+            });
+            return stages;
+        }
+
+        /**
+         * Adds a stage whose passes need no setup.
+         */
+        private static void add(Map<String, Stage> stages, String name, int operations, LongSupplier pass) {
+            stages.put(name, new Stage(operations, () -> pass));
+        }
+
+        private static <T> void addLines(Map<String, Stage> stages, String name, List<String> lines,
+                                         Function<String, T> parser) {
+            if (lines == null || lines.isEmpty()) {
+                return;
+            }
+            add(stages, name, lines.size(), () -> {
+                long hash = 0;
+                for (String line : lines) {
+                    hash += parser.apply(line).hashCode();
+                }
+                return hash;
+            });
+        }
+
+        private void measure(String name, Stage stage) {
+            if (stage.operations == 0) {
+                return;
+            }
+            for (int i = 0; i < warmupIterations; i++) {
+                sink += stage.setup.get().getAsLong();
+            }
+            long elapsed = 0;
+            for (int i = 0; i < iterations; i++) {
+                LongSupplier pass = stage.setup.get();
+                long start = System.nanoTime();
+                sink += pass.getAsLong();
+                elapsed += System.nanoTime() - start;
+            }
+            double nanosPerOperation = (double) elapsed / iterations / stage.operations;
+            System.out.println(String.format("%-48s %14.1f %14d", name, nanosPerOperation, stage.operations));
+        }
+    }
+
+    /**
+     * Compact binary snapshot of the reference catalogue: warehouses with their time zone, interned ids, box
+     * types and the box of every item, the route tables, the stock counts and the cost matrix. A cold start maps
+     * the file and rebuilds the manager from it without any text parsing, box computation or precomputation of
+     * cost entries: the entries are served from the mapping as orders ask for them. Item names are not kept, as
+     * nothing uses them.
+     *
+     * <p>The file starts with a header of magic number, format version, payload length and CRC32 of the
+     * payload, all checked on load. The payload is big-endian, strings are referenced by their index in a
+     * string table that comes first.
+     */
+    static class CatalogSnapshot {
+        static final int MAGIC = 0x43473139; // "CG19"
+        static final int VERSION = 3;
+        static final int HEADER_SIZE = 4 + 4 + 8 + 8;
+
+        static void write(InputData referenceData, String path) throws IOException {
+            write(referenceData, referenceData.newShipmentsManager(), path);
+        }
+
+        /**
+         * Writes the reference data with the box assignments and the current stock counts of the manager.
+         */
+        static void write(InputData referenceData, ShipmentsManager shipmentsManager, String path)
+                throws IOException {
+            Map<String, Integer> strings = new LinkedHashMap<>();
+            Function<String, Integer> stringId = value -> strings.computeIfAbsent(value, k -> strings.size());
+            Payload body = new Payload();
+
+            // warehouses first, the sections below refer to them by index
+            body.putInt(referenceData.warehouses.count());
+            for (Warehouse warehouse : referenceData.warehouses.values()) {
+                body.putInt(stringId.apply(warehouse.toName()));
+                body.putInt(stringId.apply(warehouse.getZone().zoneId.getId()));
+            }
+            List<BoxType> boxTypes = referenceData.boxTypes;
+            body.putInt(boxTypes.size());
+            for (BoxType boxType : boxTypes) {
+                body.putInt(stringId.apply(boxType.getBoxType()));
+                body.putInt(boxType.getMaxWeight());
+                body.putInt(boxType.getLength());
+                body.putInt(boxType.getWidth());
+                body.putInt(boxType.getHeight());
+                body.putFloat(boxType.getVolume());
+            }
+            body.putInt(referenceData.items.size());
+            for (Item item : referenceData.items) {
+                body.putInt(stringId.apply(item.getItemId()));
+                body.putInt(item.getWeight());
+                body.putInt(item.getLength());
+                body.putInt(item.getWidth());
+                body.putInt(item.getHeight());
+                body.putInt(shipmentsManager.boxTypeRepository.hasBoxFor(item.getItemId())
+                        ? boxTypes.indexOf(shipmentsManager.boxTypeRepository.findByItem(item)) : -1);
+            }
+            body.putInt(referenceData.carrierPricings.size());
+            for (CarrierPricing carrierPricing : referenceData.carrierPricings) {
+                body.putInt(warehouseId(carrierPricing.getWarehouse()));
+                body.putInt(stringId.apply(carrierPricing.getTargetState()));
+                body.putFloat(carrierPricing.getVolumePrice());
+            }
+            body.putInt(referenceData.departureTimes.size());
+            for (DepartureTime departureTime : referenceData.departureTimes) {
+                body.putInt(warehouseId(departureTime.getWarehouse()));
+                body.putInt(stringId.apply(departureTime.getTargetState()));
+                body.putInt(departureTime.getShippingHours().size());
+                for (ShippingHour shippingHour : departureTime.getShippingHours()) {
+                    body.putInt(shippingHour.getDay().getValue());
+                    body.putInt(shippingHour.getTime().getHour() * 60 + shippingHour.getTime().getMinute());
+                }
+            }
+            body.putInt(referenceData.carrierTimes.size());
+            for (CarrierTime carrierTime : referenceData.carrierTimes) {
+                body.putInt(warehouseId(carrierTime.getWarehouse()));
+                body.putInt(stringId.apply(carrierTime.getTargetState()));
+                body.putInt(carrierTime.getCarrierTime());
+            }
+            ShipmentsManager.StockRepository stockRepository = shipmentsManager.stockRepository;
+            body.putInt(stockRepository.size());
+            for (int position = 0; position < stockRepository.size(); position++) {
+                body.putInt(stringId.apply(stockRepository.itemIdAt(position)));
+                body.putInt(warehouseId(stockRepository.warehouseAt(position)));
+                body.putInt(stockRepository.stockAt(position));
+            }
+            // the cost matrix comes last, so that a load maps it without reading it; like the precomputed cost
+            // entries it is only kept for catalogues small enough
+            Set<String> states = shipmentsManager.routesByState.keySet();
+            boolean withCosts = (long) referenceData.items.size() * states.size()
+                    <= ShipmentsManager.ShippingCostCache.MAX_EAGER_ENTRIES;
+            body.putInt(withCosts ? states.size() : 0);
+            if (withCosts && !states.isEmpty()) {
+                body.putInt(shipmentsManager.warehouseCount);
+                for (String state : states) {
+                    body.putInt(stringId.apply(state));
+                }
+                // the stock rows of every item, -1 for the items without a box, which have no entries
+                for (Item item : referenceData.items) {
+                    body.putInt(shipmentsManager.boxTypeRepository.hasBoxFor(item.getItemId())
+                            ? stockRepository.positionsOf(item.getItemId()).length : -1);
+                }
+                for (Item item : referenceData.items) {
+                    if (!shipmentsManager.boxTypeRepository.hasBoxFor(item.getItemId())) {
+                        continue;
+                    }
+                    for (String state : states) {
+                        ShipmentsManager.CostEntry entry = shipmentsManager.computeCostEntry(item.getItemId(), state);
+                        for (int warehouse = 0; warehouse < entry.shippingPrice.length; warehouse++) {
+                            body.putFloat(entry.shippingPrice[warehouse]);
+                            body.putInt(entry.carrierMinutes[warehouse]);
+                        }
+                        for (int i = 0; i < entry.positions.length; i++) {
+                            body.putInt(entry.positions[i]);
+                            body.putFloat(entry.lowerBounds[i]);
+                        }
+                    }
+                }
+            }
+
+            Payload payload = new Payload();
+            payload.putInt(strings.size());
+            for (String value : strings.keySet()) {
+                byte[] bytes = value.getBytes(StandardCharsets.UTF_8);
+                payload.putInt(bytes.length);
+                payload.put(bytes);
+            }
+            payload.put(body.buffer.array(), body.buffer.position());
+            ByteBuffer content = payload.buffer;
+            content.flip();
+            CRC32 crc = new CRC32();
+            crc.update(content.duplicate());
+
+            ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE);
+            header.putInt(MAGIC).putInt(VERSION).putLong(content.remaining()).putLong(crc.getValue()).flip();
+            try (FileChannel channel = FileChannel.open(Paths.get(path), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+                while (header.hasRemaining()) {
+                    channel.write(header);
+                }
+                while (content.hasRemaining()) {
+                    channel.write(content);
+                }
+            }
+        }
+
+        static boolean isSnapshot(String path) throws IOException {
+            try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+                ByteBuffer magic = ByteBuffer.allocate(4);
+                return channel.read(magic) == 4 && magic.getInt(0) == MAGIC;
+            }
+        }
+
+        /**
+         * @return the reference data of a snapshot, with the box of every item, and no orders
+         */
+        static InputData read(String path) throws IOException {
+            MappedByteBuffer mapped;
+            try (FileChannel channel = FileChannel.open(Paths.get(path))) {
+                mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (mapped.remaining() < HEADER_SIZE || mapped.getInt() != MAGIC) {
+                throw new IllegalStateException("Not a catalogue snapshot: " + path);
+            }
+            int version = mapped.getInt();
+            if (version != VERSION) {
+                throw new IllegalStateException("Unsupported snapshot version " + version + " in " + path);
+            }
+            long length = mapped.getLong();
+            long checksum = mapped.getLong();
+            if (length != mapped.remaining()) {
+                throw new IllegalStateException("Truncated snapshot " + path);
+            }
+            CRC32 crc = new CRC32();
+            crc.update(mapped.duplicate());
+            if (crc.getValue() != checksum) {
+                throw new IllegalStateException("Corrupted snapshot " + path);
+            }
+
+            String[] strings = new String[mapped.getInt()];
+            byte[] bytes = new byte[64];
+            for (int i = 0; i < strings.length; i++) {
+                int size = mapped.getInt();
+                if (size > bytes.length) {
+                    bytes = new byte[size];
+                }
+                mapped.get(bytes, 0, size);
+                strings[i] = new String(bytes, 0, size, StandardCharsets.UTF_8);
+            }
+            InputData input = new InputData();
+            Warehouse[] warehouses = new Warehouse[mapped.getInt()];
+            for (int i = 0; i < warehouses.length; i++) {
+                warehouses[i] = input.warehouses.register(strings[mapped.getInt()],
+                        ZoneId.of(strings[mapped.getInt()]));
+            }
+            int boxTypeCount = mapped.getInt();
+            for (int i = 0; i < boxTypeCount; i++) {
+                input.boxTypes.add(new BoxType(strings[mapped.getInt()], mapped.getInt(), mapped.getInt(),
+                        mapped.getInt(), mapped.getInt(), mapped.getFloat()));
+            }
+            int itemCount = mapped.getInt();
+            input.boxAssignments = new ArrayList<>(itemCount);
+            for (int i = 0; i < itemCount; i++) {
+                input.items.add(new Item(strings[mapped.getInt()], mapped.getInt(), mapped.getInt(), mapped.getInt(),
+                        mapped.getInt()));
+                int boxType = mapped.getInt();
+                input.boxAssignments.add(boxType < 0 ? null : input.boxTypes.get(boxType));
+            }
+            int carrierPricingCount = mapped.getInt();
+            for (int i = 0; i < carrierPricingCount; i++) {
+                input.carrierPricings.add(new CarrierPricing(warehouse(warehouses, mapped.getInt()), strings[mapped.getInt()],
+                        mapped.getFloat()));
+            }
+            int departureTimeCount = mapped.getInt();
+            for (int i = 0; i < departureTimeCount; i++) {
+                Warehouse warehouse = warehouse(warehouses, mapped.getInt());
+                String targetState = strings[mapped.getInt()];
+                List<ShippingHour> shippingHours = new ArrayList<>();
+                for (int hours = mapped.getInt(); hours > 0; hours--) {
+                    DayOfWeek day = DayOfWeek.of(mapped.getInt());
+                    int minuteOfDay = mapped.getInt();
+                    shippingHours.add(new ShippingHour(day, LocalTime.of(minuteOfDay / 60, minuteOfDay % 60)));
+                }
+                input.departureTimes.add(new DepartureTime(warehouse, targetState, shippingHours));
+            }
+            int carrierTimeCount = mapped.getInt();
+            for (int i = 0; i < carrierTimeCount; i++) {
+                input.carrierTimes.add(new CarrierTime(warehouse(warehouses, mapped.getInt()), strings[mapped.getInt()],
+                        mapped.getInt()));
+            }
+            int stockCount = mapped.getInt();
+            for (int i = 0; i < stockCount; i++) {
+                input.stocks.add(new Stock(strings[mapped.getInt()], warehouse(warehouses, mapped.getInt()), mapped.getInt()));
+            }
+            String[] states = new String[mapped.getInt()];
+            if (states.length > 0) {
+                int warehouseCount = mapped.getInt();
+                for (int i = 0; i < states.length; i++) {
+                    states[i] = strings[mapped.getInt()];
+                }
+                int[] rows = new int[itemCount];
+                for (int i = 0; i < itemCount; i++) {
+                    rows[i] = mapped.getInt();
+                }
+                input.costMatrix = new CostMatrix(warehouseCount, input.items, input.boxAssignments, states, rows,
+                        mapped.slice());
+            }
+            return input;
+        }
+
+        /**
+         * The cost entries of a snapshot, read from its mapping when first asked for. Entries are stored per item
+         * then per state, each one the shipping price and carrier minutes of every warehouse of the snapshot
+         * followed by the stock rows of the item with their lower bound, in the order of the entry. The timetables
+         * are those of the routes of the manager, which the snapshot was written with.
+         */
+        static class CostMatrix {
+            // the warehouses of the manager the snapshot was written with
+            final int warehouseCount;
+            private final List<BoxType> boxAssignments;
+            private final Map<String, Integer> itemIndexes;
+            private final Map<String, Integer> stateIndexes;
+            private final int[] rows;
+            private final int[] offsets;
+            private final ByteBuffer entries;
+
+            CostMatrix(int warehouseCount, List<Item> items, List<BoxType> boxAssignments, String[] states,
+                       int[] rows, ByteBuffer entries) {
+                this.warehouseCount = warehouseCount;
+                this.boxAssignments = boxAssignments;
+                this.rows = rows;
+                this.entries = entries;
+                itemIndexes = new HashMap<>(items.size() * 2);
+                offsets = new int[items.size()];
+                int offset = 0;
+                for (int i = 0; i < items.size(); i++) {
+                    itemIndexes.put(items.get(i).getItemId(), i);
+                    offsets[i] = offset;
+                    if (rows[i] >= 0) {
+                        offset += states.length * entrySize(rows[i]);
+                    }
+                }
+                if (offset != entries.remaining()) {
+                    throw new IllegalStateException("Cost matrix of " + offset + " bytes expected, "
+                            + entries.remaining() + " found");
+                }
+                stateIndexes = new HashMap<>(states.length * 2);
+                for (int i = 0; i < states.length; i++) {
+                    stateIndexes.put(states[i], i);
+                }
+            }
+
+            private int entrySize(int rowCount) {
+                return (warehouseCount + rowCount) * 8;
+            }
+
+            /**
+             * @return the entry of the item and state, or null when the snapshot has none
+             */
+            ShipmentsManager.CostEntry entry(String itemId, String state, ShipmentsManager shipmentsManager) {
+                Integer item = itemIndexes.get(itemId);
+                Integer stateIndex = stateIndexes.get(state);
+                if (item == null || stateIndex == null || rows[item] < 0) {
+                    return null;
+                }
+                int rowCount = rows[item];
+                int offset = offsets[item] + stateIndex * entrySize(rowCount);
+                ShipmentsManager.Route[] routes = shipmentsManager.routesByState.get(state);
+                float[] shippingPrice = new float[warehouseCount];
+                int[] carrierMinutes = new int[warehouseCount];
+                ShipmentsManager.DepartureTimetable[] timetables =
+                        new ShipmentsManager.DepartureTimetable[warehouseCount];
+                for (int warehouse = 0; warehouse < warehouseCount; warehouse++) {
+                    shippingPrice[warehouse] = entries.getFloat(offset);
+                    carrierMinutes[warehouse] = entries.getInt(offset + 4);
+                    offset += 8;
+                    if (routes != null && routes[warehouse] != null) {
+                        timetables[warehouse] = routes[warehouse].timetable;
+                    }
+                }
+                int[] positions = new int[rowCount];
+                float[] lowerBounds = new float[rowCount];
+                for (int i = 0; i < rowCount; i++) {
+                    positions[i] = entries.getInt(offset);
+                    lowerBounds[i] = entries.getFloat(offset + 4);
+                    offset += 8;
+                }
+                return new ShipmentsManager.CostEntry(boxAssignments.get(item), shippingPrice, carrierMinutes,
+                        timetables, positions, lowerBounds);
+            }
+        }
+
+        /**
+         * Reference data of either a snapshot or the text sections of an input file.
+         */
+        static InputData readReferenceData(String path) throws IOException {
+            if (isSnapshot(path)) {
+                return read(path);
+            }
+            InputData referenceData = new InputData();
+            try (FastCsvReader reader = new FastCsvReader(FileChannel.open(Paths.get(path)),
+                    FastCsvReader.DEFAULT_BUFFER_SIZE)) {
+                reader.readUntil(FastCsvReader.Section.ORDERS, referenceData);
+            }
+            return referenceData;
+        }
+
+        private static int warehouseId(Warehouse warehouse) {
+            return warehouse == null ? -1 : warehouse.index();
+        }
+
+        private static Warehouse warehouse(Warehouse[] warehouses, int id) {
+            return id < 0 ? null : warehouses[id];
+        }
+
+        /**
+         * Growable heap buffer the payload is assembled in before it is written.
+         */
+        private static class Payload {
+            ByteBuffer buffer = ByteBuffer.allocate(1 << 16);
+
+            void putInt(int value) {
+                ensureCapacity(4);
+                buffer.putInt(value);
+            }
+
+            void putFloat(float value) {
+                ensureCapacity(4);
+                buffer.putFloat(value);
+            }
+
+            void put(byte[] bytes) {
+                put(bytes, bytes.length);
+            }
+
+            void put(byte[] bytes, int length) {
+                ensureCapacity(length);
+                buffer.put(bytes, 0, length);
+            }
+
+            private void ensureCapacity(int extra) {
+                if (buffer.remaining() < extra) {
+                    ByteBuffer larger = ByteBuffer.allocate(Math.max(buffer.capacity() * 2,
+                            buffer.position() + extra));
+                    buffer.flip();
+                    larger.put(buffer);
+                    buffer = larger;
+                }
+            }
+        }
+    }
+
+    /**
+     * Resident allocation service that keeps a {@link ShipmentsManager} and its indexes warm and allocates
+     * order batches received on stdin or on a local socket, so that a batch does not pay for JVM startup and
+     * reference data parsing. The protocol is line based:
+     * <ul>
+     * <li>order lines, in the format of the {@code ---Orders---} section, are collected into a batch;</li>
+     * <li>{@code END} allocates the batch and answers with the usual output (total, then one line per order),
+     * then an {@code ERROR rejected} line per order that could not be allocated, as in a rejects file,
+     * followed by {@code END};</li>
+     * <li>{@code RELOAD <path>} parses the reference sections of a file into a new snapshot and swaps it in. The
+     * path is resolved in the directory given by {@code --reload-dir}, and must stay in it; without that option
+     * reloads are refused;</li>
+     * <li>{@code STATS} answers with the statistics of the current snapshot;</li>
+     * <li>{@code QUIT} closes the connection and {@code SHUTDOWN} also stops a socket service.</li>
+     * </ul>
+     * Every line of an answer that is not a result starts with {@code OK} or {@code ERROR}.
+     *
+     * <p>Snapshots are copy-on-write: a reload builds a complete new manager, including the stock of the
+     * reloaded file, and publishes it atomically. Batches that already started finish on the snapshot they
+     * started with, so a reload never pauses them. Batches on the same snapshot are allocated one at a time,
+     * as they compete for its stock. Batches are allocated in rejects mode, so an order that cannot be allocated
+     * never undoes the stock taken by the orders before it without the client knowing.
+     */
+    static class AllocationService {
+        private final AtomicReference<ShipmentsManager> snapshot = new AtomicReference<>();
+        private final int costCacheCapacity;
+        // where RELOAD may read from, null to refuse reloads
+        private final Path reloadDirectory;
+        // shared by the snapshots, so the counters carry over reloads
+        private final RunMetrics metrics;
+        private volatile boolean running = true;
+
+        AllocationService(int costCacheCapacity, Path reloadDirectory, RunMetrics metrics) throws IOException {
+            this.costCacheCapacity = costCacheCapacity;
+            this.reloadDirectory = reloadDirectory == null ? null : reloadDirectory.toRealPath();
+            this.metrics = metrics;
+        }
+
+        static void run(RunOptions options, RunMetrics metrics) throws IOException {
+            AllocationService service = new AllocationService(options.costCacheCapacity,
+                    options.reloadDirectory == null ? null : Paths.get(options.reloadDirectory), metrics);
+            service.reload(options.reference != null ? options.reference : options.input);
+            if (options.port < 0) {
+                service.serve(Channels.newChannel(System.in), Channels.newChannel(System.out));
+                return;
+            }
+            ExecutorService connections = Executors.newCachedThreadPool();
+            try (ServerSocket serverSocket = new ServerSocket(options.port, 50, InetAddress.getLoopbackAddress())) {
+                System.err.println("Allocation service listening on " + serverSocket.getLocalSocketAddress());
+                serverSocket.setSoTimeout(1000);
+                while (service.running) {
+                    Socket socket;
+                    try {
+                        socket = serverSocket.accept();
+                    } catch (SocketTimeoutException e) {
+                        continue;
+                    }
+                    connections.execute(() -> {
+                        try (Socket connection = socket) {
+                            service.serve(Channels.newChannel(connection.getInputStream()),
+                                    Channels.newChannel(connection.getOutputStream()));
+                        } catch (IOException e) {
+                            System.err.println("Connection failed: " + e);
+                        }
+                    });
+                }
+            } finally {
+                connections.shutdown();
+            }
+        }
+
+        /**
+         * Reads the reference data of a text file or of a {@link CatalogSnapshot} into a new snapshot and
+         * publishes it.
+         */
+        ShipmentsManager reload(String path) throws IOException {
+            InputData referenceData = CatalogSnapshot.readReferenceData(path);
+            ShipmentsManager shipmentsManager = referenceData.newShipmentsManager(costCacheCapacity);
+            shipmentsManager.setMetrics(metrics);
+            snapshot.set(shipmentsManager);
+            return shipmentsManager;
+        }
+
+        /**
+         * Reloads a file of the reload directory, as requested by a client.
+         */
+        ShipmentsManager reloadRequested(String name) throws IOException {
+            if (reloadDirectory == null) {
+                throw new IllegalArgumentException("RELOAD is disabled, start the service with --reload-dir");
+            }
+            Path path = reloadDirectory.resolve(name).normalize();
+            if (!path.startsWith(reloadDirectory) || !path.toRealPath().startsWith(reloadDirectory)) {
+                throw new IllegalArgumentException("RELOAD path outside of the reload directory: " + name);
+            }
+            return reload(path.toString());
+        }
+
+        ShipmentsManager current() {
+            return snapshot.get();
+        }
+
+        /**
+         * Handles the requests of one connection until it is closed or quits.
+         */
+        void serve(ReadableByteChannel in, WritableByteChannel out) throws IOException {
+            FastCsvReader reader = new FastCsvReader(in, 1 << 16);
+            ResultWriter writer = new ResultWriter(out, 1 << 16);
+            List<Order> batch = new ArrayList<>();
+            while (running && reader.nextLine()) {
+                if (reader.isBlankLine()) {
+                    continue;
+                }
+                String line = null;
+                try {
+                    if (!reader.startsWithLetter()) {
+                        batch.add(reader.parseOrder());
+                        continue;
+                    }
+                    line = reader.line();
+                    String[] command = line.split(" ", 2);
+                    switch (command[0]) {
+                        case "END":
+                            allocate(batch, writer);
+                            break;
+                        case "RELOAD":
+                            if (command.length < 2) {
+                                throw new IllegalArgumentException("RELOAD needs a path");
+                            }
+                            ShipmentsManager reloaded = reloadRequested(command[1].trim());
+                            respond(writer, "OK reloaded " + reloaded.getShippingCostStats());
+                            break;
+                        case "STATS":
+                            respond(writer, "OK " + current().getBoxAssignmentStats() + "; "
+                                    + current().getShippingCostStats());
+                            break;
+                        case "QUIT":
+                            writer.flush();
+                            return;
+                        case "SHUTDOWN":
+                            running = false;
+                            respond(writer, "OK shutting down");
+                            return;
+                        default:
+                            throw new IllegalArgumentException("Unknown command " + command[0]);
+                    }
+                } catch (RuntimeException | IOException e) {
+                    batch.clear();
+                    respond(writer, "ERROR " + e.getMessage());
+                }
+            }
+            writer.flush();
+        }
+
+        private void allocate(List<Order> batch, ResultWriter writer) throws IOException {
+            ShipmentsManager shipmentsManager = current();
+            ShipmentsManager.Rejects rejects = new ShipmentsManager.Rejects();
+            List<ShipmentInfo> shipmentInfos;
+            try {
+                synchronized (shipmentsManager) {
+                    shipmentInfos = shipmentsManager.findBestShipmentInfo(batch, 1, rejects);
+                }
+            } finally {
+                batch.clear();
+            }
+            float totalShipmentPrice = 0.0f;
+            for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+            }
+            writer.writeTotal(totalShipmentPrice);
+            for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                writer.write(shipmentInfo);
+            }
+            for (int i = 0; i < rejects.size(); i++) {
+                writer.writeText("ERROR rejected ");
+                writer.write(rejects.orderAt(i), rejects.reasonAt(i));
+            }
+            respond(writer, "END");
+        }
+
+        private void respond(ResultWriter writer, String line) throws IOException {
+            writer.writeText(line + "\n");
+            writer.flush();
+        }
+    }
+
+    /**
+     * Command line options, given as {@code --name=value}. Without any option the tool reads input001.txt and
+     * writes output002.txt sequentially.
+     */
+    static class RunOptions {
+        String input = "input001.txt";
+        String output = "output002.txt";
+        // whether --output was given, as modes that write something else than results may not default
+        boolean outputGiven;
+        int threads = 1;
+        boolean legacyParser = false;
+        String mode = "batch";
+        long latenessMinutes = 60;
+        String totalOutput;
+        int orders = 10_000;
+        int items = 1_000;
+        int warehouses = 2;
+        long seed = 2019;
+        int iterations = 10;
+        int costCacheCapacity = ShipmentsManager.ShippingCostCache.AUTO_CAPACITY;
+        String reference;
+        String snapshot;
+        int port = -1;
+        String metrics;
+        long metricsIntervalSeconds;
+        String rejects;
+        long windowMinutes;
+        String scenarios;
+        String changes;
+        String shards;
+        String outputFormat = "csv";
+        String ledger;
+        String reloadDirectory;
+        int ledgerGroupSize = StockLedger.DEFAULT_GROUP_SIZE;
+        int checkpointInterval = IncrementalAllocator.DEFAULT_CHECKPOINT_INTERVAL;
+        boolean verify;
+
+        static RunOptions parse(String[] args) {
+            RunOptions options = new RunOptions();
+            for (String arg : args) {
+                int separator = arg.indexOf('=');
+                if (!arg.startsWith("--") || separator < 0) {
+                    throw new IllegalArgumentException("Expected --name=value but got " + arg);
+                }
+                String value = arg.substring(separator + 1);
+                switch (arg.substring(2, separator)) {
+                    case "input":
+                        options.input = value;
+                        break;
+                    case "output":
+                        options.output = value;
+                        options.outputGiven = true;
+                        break;
+                    case "threads":
+                        options.threads = Integer.parseInt(value);
+                        break;
+                    case "mode":
+                        options.mode = value;
+                        break;
+                    case "lateness":
+                        options.latenessMinutes = Long.parseLong(value);
+                        break;
+                    case "total-output":
+                        options.totalOutput = value;
+                        break;
+                    case "orders":
+                        options.orders = Integer.parseInt(value);
+                        break;
+                    case "items":
+                        options.items = Integer.parseInt(value);
+                        break;
+                    case "warehouses":
+                        options.warehouses = Integer.parseInt(value);
+                        break;
+                    case "seed":
+                        options.seed = Long.parseLong(value);
+                        break;
+                    case "iterations":
+                        options.iterations = Integer.parseInt(value);
+                        break;
+                    case "cost-cache":
+                        options.costCacheCapacity = Integer.parseInt(value);
+                        break;
+                    case "reference":
+                        options.reference = value;
+                        break;
+                    case "port":
+                        options.port = Integer.parseInt(value);
+                        break;
+                    case "snapshot":
+                        options.snapshot = value;
+                        break;
+                    case "metrics":
+                        options.metrics = value;
+                        break;
+                    case "reload-dir":
+                        options.reloadDirectory = value;
+                        break;
+                    case "ledger":
+                        options.ledger = value;
+                        break;
+                    case "ledger-group-size":
+                        options.ledgerGroupSize = Integer.parseInt(value);
+                        break;
+                    case "output-format":
+                        options.outputFormat = value;
+                        break;
+                    case "shards":
+                        options.shards = value;
+                        break;
+                    case "changes":
+                        options.changes = value;
+                        break;
+                    case "verify":
+                        options.verify = Boolean.parseBoolean(value);
+                        break;
+                    case "checkpoint-interval":
+                        options.checkpointInterval = Integer.parseInt(value);
+                        break;
+                    case "scenarios":
+                        options.scenarios = value;
+                        break;
+                    case "window":
+                        options.windowMinutes = Long.parseLong(value);
+                        break;
+                    case "rejects":
+                        options.rejects = value;
+                        break;
+                    case "metrics-interval":
+                        options.metricsIntervalSeconds = Long.parseLong(value);
+                        break;
+                    case "parser":
+                        options.legacyParser = "legacy".equals(value);
+                        break;
+                    default:
+                        throw new IllegalArgumentException("Unknown option " + arg);
+                }
+            }
+            return options;
+        }
+
+        /**
+         * @return whether results are written by {@link BinaryResultWriter}, with {@code --output-format=binary}
+         * or {@code binary-deflate}, rather than as text
+         */
+        boolean isBinaryOutput() {
+            if (!outputFormat.equals("csv") && !outputFormat.equals("binary")
+                    && !outputFormat.equals("binary-deflate")) {
+                throw new IllegalArgumentException("Unknown output format " + outputFormat);
+            }
+            return outputFormat.startsWith("binary");
+        }
+
+        /**
+         * @return the output of a mode that does not write results, which must not overwrite output002.txt
+         */
+        String requiredOutput() {
+            if (!outputGiven) {
+                throw new IllegalArgumentException("--output=<file> is required with --mode=" + mode);
+            }
+            return output;
+        }
+
+        boolean isCompressedOutput() {
+            return outputFormat.equals("binary-deflate");
+        }
+    }
+
+    /**
+     * Reads the orders into a columnar order book and allocates them over its columns.
+     *
+     * @return the total shipment price
+     */
+    static float runColumnar(RunOptions options, RunMetrics metrics) throws IOException {
+        long startNanos = System.nanoTime();
+        ShipmentsManager shipmentsManager;
+        OrderBook orders = new OrderBook(1 << 16);
+        try (FastCsvReader reader = new FastCsvReader(FileChannel.open(Paths.get(options.input)),
+                FastCsvReader.DEFAULT_BUFFER_SIZE)) {
+            InputData referenceData = new InputData();
+            boolean hasOrders = reader.readUntil(FastCsvReader.Section.ORDERS, referenceData);
+            startNanos = metrics.stage(RunMetrics.Stage.PARSE, startNanos);
+            shipmentsManager = referenceData.newShipmentsManager(options.costCacheCapacity);
+            shipmentsManager.setMetrics(metrics);
+            startNanos = metrics.stage(RunMetrics.Stage.BUILD, startNanos);
+            if (hasOrders) {
+                reader.readOrders(orders);
+            }
+        }
+        startNanos = metrics.stage(RunMetrics.Stage.PARSE, startNanos);
+        // the order book is sorted as part of the allocation
+        ColumnarResults results = shipmentsManager.findBestShipmentInfo(orders);
+        startNanos = metrics.stage(RunMetrics.Stage.ALLOCATE, startNanos);
+        float totalShipmentPrice = results.totalShipmentPrice();
+        if (options.isBinaryOutput()) {
+            try (BinaryResultWriter writer = BinaryResultWriter.open(options.output, options.isCompressedOutput(),
+                    totalShipmentPrice)) {
+                for (int row = 0; row < results.size(); row++) {
+                    writer.write(results, row);
+                }
+            }
+        } else {
+            try (ResultWriter writer = ResultWriter.open(options.output)) {
+                writer.writeTotal(totalShipmentPrice);
+                for (int row = 0; row < results.size(); row++) {
+                    writer.write(results, row);
+                }
+            }
+        }
+        metrics.stage(RunMetrics.Stage.WRITE, startNanos);
+        System.out.println(metrics);
+        return totalShipmentPrice;
+    }
+
+    /**
+     * Allocates the orders with {@link ShipmentsManager#findOptimalShipmentInfo} and reports the gap to the
+     * greedy allocation of the same input.
+     *
+     * @return the total shipment price
+     */
+    static float runOptimal(RunOptions options, RunMetrics metrics) throws IOException {
+        InputData input = FastCsvReader.readInput(options.input);
+        ShipmentsManager.Rejects rejects = new ShipmentsManager.Rejects();
+        ShipmentsManager shipmentsManager = input.newShipmentsManager(options.costCacheCapacity);
+        // the optimal allocation records its rejects, the greedy one is only there for comparison
+        shipmentsManager.setMetrics(metrics);
+        List<ShipmentInfo> shipmentInfos = shipmentsManager.findOptimalShipmentInfo(input.orders,
+                options.windowMinutes, options.threads, rejects);
+        ShipmentsManager.Rejects greedyRejects = new ShipmentsManager.Rejects();
+        List<ShipmentInfo> greedyShipmentInfos = input.newShipmentsManager(options.costCacheCapacity)
+                .findBestShipmentInfo(input.orders, options.threads, greedyRejects);
+
+        shipmentInfos.sort(Comparator.comparingLong(shipmentInfo -> shipmentInfo.getOrder().getOrderEpochMinute()));
+        float totalShipmentPrice = 0.0f;
+        for (ShipmentInfo shipmentInfo : shipmentInfos) {
+            totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+        }
+        greedyShipmentInfos.sort(
+                Comparator.comparingLong(shipmentInfo -> shipmentInfo.getOrder().getOrderEpochMinute()));
+        float greedyTotalShipmentPrice = 0.0f;
+        for (ShipmentInfo shipmentInfo : greedyShipmentInfos) {
+            greedyTotalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+        }
+        try (ResultWriter writer = ResultWriter.open(options.output)) {
+            writer.writeTotal(totalShipmentPrice);
+            for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                writer.write(shipmentInfo);
+            }
+        }
+        if (options.rejects != null) {
+            rejects.sortByDate();
+            rejects.write(options.rejects);
+        }
+        System.out.println("optimal: " + totalShipmentPrice + " for " + shipmentInfos.size() + " orders, greedy: "
+                + greedyTotalShipmentPrice + " for " + greedyShipmentInfos.size() + " orders, gap "
+                + (greedyTotalShipmentPrice - totalShipmentPrice) + String.format(" (%.2f%%)",
+                greedyTotalShipmentPrice == 0 ? 0
+                        : (greedyTotalShipmentPrice - totalShipmentPrice) * 100 / greedyTotalShipmentPrice));
+        System.out.println(rejects);
+        return totalShipmentPrice;
+    }
+
+    /**
+     * The stages of {@link Benchmarks} over an input, by name, for the JMH module of the build, whose benchmarks
+     * live in a package and so cannot name the classes of this file: a call of the supplier is the setup of a
+     * pass, and the pass returns a hash of its results.
+     */
+    public static Map<String, Supplier<LongSupplier>> benchmarkStages(String path) throws IOException {
+        Map<String, Supplier<LongSupplier>> stages = new LinkedHashMap<>();
+        Benchmarks.stages(path).forEach((name, stage) -> stages.put(name, stage.setup));
+        return stages;
+    }
+
+    /**
+     * @return the number of operations of a pass of every stage of {@link #benchmarkStages}, by name
+     */
+    public static Map<String, Integer> benchmarkOperations(String path) throws IOException {
+        Map<String, Integer> operations = new LinkedHashMap<>();
+        Benchmarks.stages(path).forEach((name, stage) -> operations.put(name, stage.operations));
+        return operations;
+    }
+
+    public static void main(String[] args) throws IOException {
+        RunOptions options = RunOptions.parse(args);
+        if ("generate".equals(options.mode)) {
+            SyntheticInputGenerator.generate(options.input, options.requiredOutput(), options.orders, options.items,
+                    options.warehouses, options.seed);
+            return;
+        }
+        if ("decode".equals(options.mode)) {
+            System.out.println(BinaryResultReader.decode(options.input, options.output) + " rows decoded");
+            return;
+        }
+        if ("snapshot".equals(options.mode)) {
+            CatalogSnapshot.write(CatalogSnapshot.readReferenceData(options.input), options.requiredOutput());
+            return;
+        }
+        if ("benchmark".equals(options.mode)) {
+            Benchmarks.run(options);
+            return;
+        }
+        RunMetrics metrics = RunMetrics.open(options);
+        try {
+            allocate(options, metrics);
+        } finally {
+            metrics.close();
+        }
+        // after the periodic export stopped, so the final summary is the last one written
+        if (options.metrics != null) {
+            metrics.export(options.metrics);
+        }
+    }
+
+    /**
+     * Allocates the orders in the mode of the options, recording into the metrics.
+     */
+    static void allocate(RunOptions options, RunMetrics metrics) throws IOException {
+        if ("stream".equals(options.mode)) {
+            StreamingAllocator allocator = StreamingAllocator.run(options, metrics);
+            System.out.println("Your total shipment price is: " + allocator.getTotalShipmentPrice() + " ("
+                    + allocator.getAllocatedOrders() + " orders, " + allocator.getLateOrders() + " late)");
+            return;
+        }
+        if ("service".equals(options.mode)) {
+            AllocationService.run(options, metrics);
+            return;
+        }
+        if ("incremental".equals(options.mode)) {
+            IncrementalAllocator.run(options, metrics);
+            return;
+        }
+        if ("whatif".equals(options.mode)) {
+            WhatIfSimulator.run(options, metrics);
+            return;
+        }
+        if ("optimal".equals(options.mode)) {
+            System.out.println("Your total shipment price is: " + runOptimal(options, metrics));
+            return;
+        }
+        if ("columnar".equals(options.mode)) {
+            System.out.println("Your total shipment price is: " + runColumnar(options, metrics));
+            return;
+        }
+        long startNanos = System.nanoTime();
+        InputData input;
+        boolean sorted = false;
+        if (options.snapshot != null) {
+            input = CatalogSnapshot.read(options.snapshot);
+            FastCsvReader.readOrders(options.input, input.orders);
+        } else if (options.shards != null) {
+            // the reference file may hold orders too, which are merged with the ones of the shards
+            input = new InputData();
+            List<List<Order>> runs = ShardedInput.read(options.reference != null ? options.reference : options.input,
+                    ShardedInput.listShards(options.shards), options.threads, input);
+            startNanos = metrics.stage(RunMetrics.Stage.PARSE, startNanos);
+            ShardedInput.merge(runs, input.orders);
+            startNanos = metrics.stage(RunMetrics.Stage.SORT, startNanos);
+            sorted = true;
+        } else {
+            input = options.legacyParser ? CsvParser.readInput(options.input) : FastCsvReader.readInput(options.input);
+        }
+        List<Order> orders = input.orders;
+        startNanos = metrics.stage(RunMetrics.Stage.PARSE, startNanos);
+
+        if (!sorted) {
+            Collections.sort(orders, new Comparator<Order>() {
+                @Override
+                public int compare(Order arg0, Order arg1) {
+                    return Long.compare(arg0.getOrderEpochMinute(), arg1.getOrderEpochMinute());
+                }
+            });
+        }
+
+        startNanos = metrics.stage(RunMetrics.Stage.SORT, startNanos);
+
+        ShipmentsManager shipmentsManager = input.newShipmentsManager(options.costCacheCapacity);
+        shipmentsManager.setMetrics(metrics);
+        startNanos = metrics.stage(RunMetrics.Stage.BUILD, startNanos);
+        if (!shipmentsManager.getItemsWithoutBox().isEmpty()) {
+            System.err.println("There is no suitable box for items " + shipmentsManager.getItemsWithoutBox());
+        }
+
+        ShipmentsManager.Rejects rejects = options.rejects == null ? null : new ShipmentsManager.Rejects();
+        List<ShipmentInfo> shipmentInfos;
+        StockLedger ledger = null;
+        if (options.ledger != null) {
+            try (StockLedger openLedger = new StockLedger(Paths.get(options.ledger), options.ledgerGroupSize)) {
+                shipmentInfos = shipmentsManager.findBestShipmentInfo(orders, options.threads, rejects, openLedger);
+                ledger = openLedger;
+            }
+        } else {
+            shipmentInfos = shipmentsManager.findBestShipmentInfo(orders, options.threads, rejects);
+        }
+        startNanos = metrics.stage(RunMetrics.Stage.ALLOCATE, startNanos);
+
+        Collections.sort(shipmentInfos, new Comparator<ShipmentInfo>() {
+            @Override
+            public int compare(ShipmentInfo arg0, ShipmentInfo arg1) {
+                return Long.compare(arg0.getOrder().getOrderEpochMinute(), arg1.getOrder().getOrderEpochMinute());
+            }
+        });
+        startNanos = metrics.stage(RunMetrics.Stage.SORT_RESULTS, startNanos);
+
+        Float totalShipmentPrice = 0.0f;
+
+        for (ShipmentInfo shipmentInfo : shipmentInfos) {
+            totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+        }
+        if (options.isBinaryOutput()) {
+            try (BinaryResultWriter writer = BinaryResultWriter.open(options.output, options.isCompressedOutput(),
+                    totalShipmentPrice)) {
+                for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                    writer.write(shipmentInfo);
+                }
+            }
+        } else {
+            try (ResultWriter writer = ResultWriter.open(options.output)) {
+                writer.writeTotal(totalShipmentPrice);
+                for (ShipmentInfo shipmentInfo : shipmentInfos) {
+                    writer.write(shipmentInfo);
+                }
+            }
+        }
+        if (rejects != null) {
+            rejects.sortByDate();
+            rejects.write(options.rejects);
+        }
+        metrics.stage(RunMetrics.Stage.WRITE, startNanos);
+        System.out.println("Your total shipment price is: " + totalShipmentPrice);
+        System.out.println(shipmentsManager.getBoxAssignmentStats());
+        System.out.println(shipmentsManager.getShippingCostStats());
+        if (rejects != null) {
+            System.out.println(rejects);
+        }
+        if (ledger != null) {
+            System.out.println(ledger);
+        }
+        System.out.println(metrics);
     };
 
 }
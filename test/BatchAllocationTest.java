@@ -0,0 +1,74 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The batch allocation of {@link CodeGo2019.ShipmentsManager#findBestShipmentInfo(List, int)} against allocating
+ * the same orders one at a time, in date order, with {@link CodeGo2019.ShipmentsManager#findBestShipmentInfo(
+ * CodeGo2019.Order)}: both must write the same bytes.
+ */
+class BatchAllocationTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void batchWritesTheSampleOutput() throws IOException {
+        CodeGo2019.InputData input = CodeGo2019.FastCsvReader.readInput("input001.txt");
+        byte[] expected = Files.readAllBytes(Paths.get("output002.txt"));
+        assertArrayEquals(expected, write(allocateOneByOne(input)));
+        assertArrayEquals(expected, write(input.newShipmentsManager().findBestShipmentInfo(input.orders, 1)));
+        assertArrayEquals(expected, write(input.newShipmentsManager().findBestShipmentInfo(input.orders, 4)));
+    }
+
+    @Test
+    void batchWritesTheSameBytesAsOneOrderAtATime() throws IOException {
+        Path generated = directory.resolve("generated.txt");
+        CodeGo2019.SyntheticInputGenerator.generate("input001.txt", generated.toString(), 20_000, 300, 4, 3);
+        CodeGo2019.InputData input = CodeGo2019.FastCsvReader.readInput(generated.toString());
+        byte[] expected = write(allocateOneByOne(input));
+        assertArrayEquals(expected, write(input.newShipmentsManager().findBestShipmentInfo(input.orders, 1)));
+        assertArrayEquals(expected, write(input.newShipmentsManager().findBestShipmentInfo(input.orders, 4)));
+    }
+
+    private static List<CodeGo2019.ShipmentInfo> allocateOneByOne(CodeGo2019.InputData input) {
+        List<CodeGo2019.Order> orders = new ArrayList<>(input.orders);
+        orders.sort(CodeGo2019.ShipmentsManager.BY_ORDER_DATE);
+        CodeGo2019.ShipmentsManager shipmentsManager = input.newShipmentsManager();
+        List<CodeGo2019.ShipmentInfo> shipmentInfos = new ArrayList<>(orders.size());
+        for (CodeGo2019.Order order : orders) {
+            shipmentInfos.add(shipmentsManager.findBestShipmentInfo(order));
+        }
+        return shipmentInfos;
+    }
+
+    /**
+     * @return the results as the batch mode writes them: the total, then the shipments by order date
+     */
+    static byte[] write(List<CodeGo2019.ShipmentInfo> shipmentInfos) throws IOException {
+        List<CodeGo2019.ShipmentInfo> sorted = new ArrayList<>(shipmentInfos);
+        sorted.sort((a, b) -> Long.compare(a.getOrder().getOrderEpochMinute(), b.getOrder().getOrderEpochMinute()));
+        Float totalShipmentPrice = 0.0f;
+        for (CodeGo2019.ShipmentInfo shipmentInfo : sorted) {
+            totalShipmentPrice += shipmentInfo.shippingPrice + shipmentInfo.getShippingExperiencePrice();
+        }
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (CodeGo2019.ResultWriter writer = new CodeGo2019.ResultWriter(Channels.newChannel(output), 1 << 12)) {
+            writer.writeTotal(totalShipmentPrice);
+            for (CodeGo2019.ShipmentInfo shipmentInfo : sorted) {
+                writer.write(shipmentInfo);
+            }
+        }
+        return output.toByteArray();
+    }
+}
@@ -0,0 +1,121 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.HashSet;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * The choice of {@link CodeGo2019.ShipmentsManager#findBestShipmentInfo(CodeGo2019.Order,
+ * CodeGo2019.ShipmentsManager.Rejects)}, which skips stock rows by their lower bound, against an exhaustive scan
+ * that prices every stocked row of the item: the lowest total price, then the most stock left, then the first
+ * stock row.
+ */
+class BestShipmentSelectionTest {
+
+    @Test
+    void pruningChoosesLikeAnExhaustiveScan() {
+        int prunedRuns = 0;
+        for (int seed = 0; seed < 200; seed++) {
+            CodeGo2019.InputData input = RandomInputs.generate(new Random(seed), 1 + seed % 6, 300);
+            CodeGo2019.ShipmentsManager shipmentsManager = input.newShipmentsManager();
+            assertSameChoices(input, shipmentsManager, "seed " + seed);
+            if (shipmentsManager.getMetrics().pruningRatio() > 0) {
+                prunedRuns++;
+            }
+        }
+        assertTrue(prunedRuns > 100, "only " + prunedRuns + " runs pruned stock rows");
+    }
+
+    @Test
+    void memoChoosesLikeAnExhaustiveScan() {
+        long memoHits = 0;
+        for (int seed = 0; seed < 100; seed++) {
+            // few items and many orders, so that orders of the same item and state share a minute range
+            CodeGo2019.InputData input = RandomInputs.generate(new Random(seed), 1 + seed % 3, 400);
+            CodeGo2019.ShipmentsManager shipmentsManager = input.newShipmentsManager();
+            assertSameChoices(input, shipmentsManager, "seed " + seed);
+            memoHits += shipmentsManager.getMetrics().memoHits.sum();
+            // entries evicted from a small cache come back without their memo
+            assertSameChoices(input, input.newShipmentsManager(2), "seed " + seed + ", capacity 2");
+        }
+        assertTrue(memoHits > 100, "only " + memoHits + " memo hits");
+    }
+
+    /**
+     * Allocates the orders of the input, in date order, on the manager and checks every choice against an
+     * exhaustive scan of the stock left.
+     */
+    static void assertSameChoices(CodeGo2019.InputData input, CodeGo2019.ShipmentsManager shipmentsManager,
+                                  String run) {
+        // prices a stock row for an order, its own stock is never touched
+        CodeGo2019.ShipmentsManager pricing = input.newShipmentsManager();
+        Set<String> routes = routes(input);
+        int[] stock = input.stocks.stream().mapToInt(CodeGo2019.Stock::getStock).toArray();
+        CodeGo2019.ShipmentsManager.Rejects rejects = new CodeGo2019.ShipmentsManager.Rejects();
+        for (CodeGo2019.Order order : input.orders) {
+            String message = run + ", order " + order.getOrderId();
+            int best = -1;
+            CodeGo2019.ShipmentInfo expected = null;
+            boolean unroutedStock = false;
+            for (int position = 0; position < input.stocks.size(); position++) {
+                CodeGo2019.Stock row = input.stocks.get(position);
+                if (!row.getItemId().equals(order.getItemId()) || stock[position] <= 0) {
+                    continue;
+                }
+                if (!routes.contains(route(row.getWarehouse(), order.getTargetState()))) {
+                    unroutedStock = true;
+                    continue;
+                }
+                CodeGo2019.ShipmentInfo candidate = pricing.shipmentInfoAt(order, position);
+                if (expected == null || candidate.getTotalPrice() < expected.getTotalPrice()
+                        || candidate.getTotalPrice() == expected.getTotalPrice() && stock[position] > stock[best]) {
+                    best = position;
+                    expected = candidate;
+                }
+            }
+            CodeGo2019.ShipmentInfo actual = shipmentsManager.findBestShipmentInfo(order, rejects);
+            if (expected == null) {
+                assertNull(actual, message);
+                assertEquals(unroutedStock ? CodeGo2019.ShipmentsManager.RejectReason.NO_ROUTE
+                        : CodeGo2019.ShipmentsManager.RejectReason.NO_STOCK, rejects.reasonAt(rejects.size() - 1),
+                        message);
+                continue;
+            }
+            assertNotNull(actual, message);
+            assertSame(expected.getWarehouse(), actual.getWarehouse(), message);
+            assertEquals(expected.getGuaranteedDeliveryEpochMinute(), actual.getGuaranteedDeliveryEpochMinute(),
+                    message);
+            assertEquals(expected.getBoxType(), actual.getBoxType(), message);
+            assertEquals(expected.getShippingPrice(), actual.getShippingPrice(), message);
+            stock[best]--;
+        }
+    }
+
+    /**
+     * @return the warehouses and states that have a price, departures and a carrier time
+     */
+    private static Set<String> routes(CodeGo2019.InputData input) {
+        Set<String> priced = new HashSet<>();
+        input.carrierPricings.forEach(pricing -> priced.add(route(pricing.getWarehouse(), pricing.getTargetState())));
+        Set<String> timed = new HashSet<>();
+        input.carrierTimes.forEach(time -> timed.add(route(time.getWarehouse(), time.getTargetState())));
+        Set<String> routes = new HashSet<>();
+        input.departureTimes.forEach(departureTime -> {
+            String route = route(departureTime.getWarehouse(), departureTime.getTargetState());
+            if (priced.contains(route) && timed.contains(route)) {
+                routes.add(route);
+            }
+        });
+        return routes;
+    }
+
+    private static String route(CodeGo2019.Warehouse warehouse, String state) {
+        return warehouse.index() + ";" + state;
+    }
+}
@@ -0,0 +1,55 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Results written by {@link CodeGo2019.BinaryResultWriter}, plain and deflated, then decoded by
+ * {@link CodeGo2019.BinaryResultReader#decode}, against the text output of the same run: both must have the
+ * same bytes.
+ */
+class BinaryResultTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void decodesTheSampleOutput() throws IOException {
+        byte[] expected = Files.readAllBytes(Paths.get("output002.txt"));
+        for (String mode : new String[]{"batch", "columnar"}) {
+            for (String format : new String[]{"binary", "binary-deflate"}) {
+                assertArrayEquals(expected, roundTrip("input001.txt", mode, format), mode + ", " + format);
+            }
+        }
+    }
+
+    @Test
+    void decodesAnOutputOfSeveralBlocks() throws IOException {
+        Path generated = directory.resolve("generated.txt");
+        CodeGo2019.SyntheticInputGenerator.generate("input001.txt", generated.toString(),
+                CodeGo2019.BinaryResultWriter.BLOCK_ROWS * 2 + 1_000, 1_000, 6, 24);
+        Path csv = directory.resolve("generated-output.txt");
+        CodeGo2019.main(new String[]{"--input=" + generated, "--output=" + csv});
+        byte[] expected = Files.readAllBytes(csv);
+        for (String format : new String[]{"binary", "binary-deflate"}) {
+            assertArrayEquals(expected, roundTrip(generated.toString(), "batch", format), format);
+        }
+    }
+
+    /**
+     * @return the text decoded from the binary output of a run
+     */
+    private byte[] roundTrip(String input, String mode, String format) throws IOException {
+        Path binary = directory.resolve("output-" + mode + "." + format);
+        Path decoded = directory.resolve("decoded-" + mode + "-" + format + ".txt");
+        CodeGo2019.main(new String[]{"--input=" + input, "--output=" + binary, "--mode=" + mode,
+                "--output-format=" + format});
+        CodeGo2019.main(new String[]{"--mode=decode", "--input=" + binary, "--output=" + decoded});
+        return Files.readAllBytes(decoded);
+    }
+}
@@ -0,0 +1,103 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.channels.Channels;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link CodeGo2019.CsvLineEncoder}, through {@link CodeGo2019.ResultWriter}, against
+ * {@link CodeGo2019.ShipmentInfo#toCsvLine()}, which formats with {@code DecimalFormat}: every line must have the
+ * same bytes.
+ */
+class CsvLineEncoderTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void encodesTheShipmentsOfTheSampleLikeToCsvLine() throws IOException {
+        CodeGo2019.InputData input = CodeGo2019.FastCsvReader.readInput("input001.txt");
+        assertSameLines(input.newShipmentsManager().findBestShipmentInfo(input.orders));
+    }
+
+    @Test
+    void encodesTheShipmentsOfAGeneratedInputLikeToCsvLine() throws IOException {
+        Path generated = directory.resolve("generated.txt");
+        CodeGo2019.SyntheticInputGenerator.generate("input001.txt", generated.toString(), 20_000, 500, 6, 11);
+        CodeGo2019.InputData input = CodeGo2019.FastCsvReader.readInput(generated.toString());
+        assertSameLines(input.newShipmentsManager().findBestShipmentInfo(input.orders));
+    }
+
+    @Test
+    void encodesEdgePricesLikeToCsvLine() throws IOException {
+        float[] prices = {0f, -0f, 0.0004f, 0.0005f, 0.0015f, 0.4f, 0.9995f, 1f, 1.0005f, 2.5f, 2.0625f, 10.08f,
+                999.9995f, 123456.789f, 999999.94f, 1e7f, 12345678f, 1e12f, 1e15f, 1e16f, 3.4e38f, -1.5f,
+                -0.0005f, -12345.678f, Float.MIN_VALUE};
+        List<CodeGo2019.ShipmentInfo> shipmentInfos = new ArrayList<>();
+        for (float price : prices) {
+            shipmentInfos.add(shipment(1, CodeGo2019.EpochMinutes.of(LocalDateTime.of(2019, 3, 1, 10, 0)), price));
+        }
+        assertSameLines(shipmentInfos);
+    }
+
+    @Test
+    void encodesRandomPricesAndDatesLikeToCsvLine() throws IOException {
+        Random random = new Random(2019);
+        long first = CodeGo2019.EpochMinutes.of(LocalDateTime.of(1, 1, 1, 0, 0));
+        long last = CodeGo2019.EpochMinutes.of(LocalDateTime.of(9999, 12, 31, 23, 59));
+        List<CodeGo2019.ShipmentInfo> shipmentInfos = new ArrayList<>();
+        for (int i = 0; i < 100_000; i++) {
+            float price;
+            switch (i % 4) {
+                case 0:
+                    price = random.nextFloat() * 100;
+                    break;
+                case 1:
+                    // thousandths and halves of them, where rounding ties are
+                    price = (random.nextInt(2_000_000) + (random.nextBoolean() ? 0.5f : 0f)) / 1000f;
+                    break;
+                case 2:
+                    price = Float.intBitsToFloat(random.nextInt(0x5a000000));
+                    break;
+                default:
+                    price = (float) Math.scalb(random.nextDouble(), random.nextInt(40));
+                    break;
+            }
+            long orderEpochMinute = first + (long) (random.nextDouble() * (last - first - 100_000));
+            shipmentInfos.add(shipment(random.nextLong() & Long.MAX_VALUE, orderEpochMinute, price));
+        }
+        assertSameLines(shipmentInfos);
+    }
+
+    private static CodeGo2019.ShipmentInfo shipment(long orderId, long orderEpochMinute, float price) {
+        CodeGo2019.Order order = new CodeGo2019.Order(orderId, orderEpochMinute, "0002100380003", "Montgomery", "AL");
+        // the delivery decides the shipping experience price, the second price of the line
+        return new CodeGo2019.ShipmentInfo(order, CodeGo2019.Warehouse.SAN_FRANCISCO,
+                orderEpochMinute + Math.abs(orderId % 20_000), "XL", price);
+    }
+
+    private static void assertSameLines(List<CodeGo2019.ShipmentInfo> shipmentInfos) throws IOException {
+        ByteArrayOutputStream output = new ByteArrayOutputStream();
+        try (CodeGo2019.ResultWriter writer = new CodeGo2019.ResultWriter(Channels.newChannel(output), 1 << 12)) {
+            for (CodeGo2019.ShipmentInfo shipmentInfo : shipmentInfos) {
+                writer.write(shipmentInfo);
+            }
+        }
+        String[] lines = new String(output.toByteArray(), StandardCharsets.UTF_8).split("\n", -1);
+        assertEquals(shipmentInfos.size() + 1, lines.length);
+        for (int i = 0; i < shipmentInfos.size(); i++) {
+            CodeGo2019.ShipmentInfo shipmentInfo = shipmentInfos.get(i);
+            assertEquals(shipmentInfo.toCsvLine(), lines[i], "price " + shipmentInfo.shippingPrice
+                    + ", experience price " + shipmentInfo.getShippingExperiencePrice());
+        }
+    }
+}
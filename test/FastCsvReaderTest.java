@@ -0,0 +1,129 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.function.BiConsumer;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * {@link CodeGo2019.FastCsvReader} against {@link CodeGo2019.CsvParser}, the reference implementation: both must
+ * read every entity of an input with the same fields.
+ */
+class FastCsvReaderTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void readsTheSampleLikeTheReferenceParser() throws IOException {
+        assertSameInput("input001.txt");
+    }
+
+    @Test
+    void readsAGeneratedInputLikeTheReferenceParser() throws IOException {
+        Path generated = directory.resolve("generated.txt");
+        CodeGo2019.SyntheticInputGenerator.generate("input001.txt", generated.toString(), 5_000, 500, 5, 42);
+        assertSameInput(generated.toString());
+    }
+
+    @Test
+    void readsEdgeValuesLikeTheReferenceParser() throws IOException {
+        Path input = directory.resolve("edges.txt");
+        Files.write(input, String.join("\n",
+                "---Stocks---",
+                "0000000000001;New York;0",
+                "0000000000001;San Francisco;2147483647",
+                "---BoxTypes---",
+                "XS;200;20;25;5;0,5",
+                "XL;30000;60;50;40;120,125",
+                "---CarrierPricing---",
+                "New York;CA;0,01",
+                "San Francisco;CA;12,345",
+                "---DepartureTimes---",
+                "New York;CA;MONDAY 00:00, WEDNESDAY 12:30, SUNDAY 23:59",
+                "San Francisco;CA;FRIDAY 08:00",
+                "---CarrierTimes---",
+                "New York;CA;0 hours",
+                "San Francisco;CA;120 hours",
+                "---Items---",
+                "0000000000001;SOME ITEM, WITH A COMMA;1;1;1;1",
+                "---Orders---",
+                "1;2019-01-01 00:00;0000000000001;Los Angeles;CA",
+                "9223372036854775807;2019-12-31 23:59;0000000000001;San Jose;CA",
+                "").getBytes(StandardCharsets.UTF_8));
+        assertSameInput(input.toString());
+    }
+
+    private static void assertSameInput(String path) throws IOException {
+        CodeGo2019.InputData expected = CodeGo2019.CsvParser.readInput(path);
+        CodeGo2019.InputData actual = CodeGo2019.FastCsvReader.readInput(path);
+        assertSameEntities("stock", expected.stocks, actual.stocks, (e, a) -> {
+            assertEquals(e.itemId, a.itemId);
+            assertSameWarehouse(e.warehouse, a.warehouse);
+            assertEquals(e.stock, a.stock);
+        });
+        assertSameEntities("box type", expected.boxTypes, actual.boxTypes, (e, a) -> {
+            assertEquals(e.boxType, a.boxType);
+            assertEquals(e.maxWeight, a.maxWeight);
+            assertEquals(e.length, a.length);
+            assertEquals(e.width, a.width);
+            assertEquals(e.height, a.height);
+            assertEquals(Float.floatToIntBits(e.volume), Float.floatToIntBits(a.volume), "volume " + e.volume);
+        });
+        assertSameEntities("carrier pricing", expected.carrierPricings, actual.carrierPricings, (e, a) -> {
+            assertSameWarehouse(e.warehouse, a.warehouse);
+            assertEquals(e.targetState, a.targetState);
+            assertEquals(Float.floatToIntBits(e.volumePrice), Float.floatToIntBits(a.volumePrice),
+                    "volume price " + e.volumePrice);
+        });
+        assertSameEntities("departure time", expected.departureTimes, actual.departureTimes, (e, a) -> {
+            assertSameWarehouse(e.warehouse, a.warehouse);
+            assertEquals(e.targetState, a.targetState);
+            assertSameEntities("shipping hour", e.shippingHours, a.shippingHours, (eHour, aHour) -> {
+                assertEquals(eHour.day, aHour.day);
+                assertEquals(eHour.time, aHour.time);
+            });
+        });
+        assertSameEntities("carrier time", expected.carrierTimes, actual.carrierTimes, (e, a) -> {
+            assertSameWarehouse(e.warehouse, a.warehouse);
+            assertEquals(e.targetState, a.targetState);
+            assertEquals(e.carrierTime, a.carrierTime);
+        });
+        assertSameEntities("item", expected.items, actual.items, (e, a) -> {
+            assertEquals(e.itemId, a.itemId);
+            assertEquals(e.weight, a.weight);
+            assertEquals(e.length, a.length);
+            assertEquals(e.width, a.width);
+            assertEquals(e.height, a.height);
+        });
+        assertSameEntities("order", expected.orders, actual.orders, (e, a) -> {
+            assertEquals(e.orderId, a.orderId);
+            assertEquals(e.orderEpochMinute, a.orderEpochMinute);
+            assertEquals(e.itemId, a.itemId);
+            assertEquals(e.city, a.city);
+            assertEquals(e.targetState, a.targetState);
+        });
+    }
+
+    private static <T> void assertSameEntities(String kind, List<T> expected, List<T> actual,
+                                               BiConsumer<T, T> assertSame) {
+        assertEquals(expected.size(), actual.size(), "number of " + kind + " entries");
+        for (int i = 0; i < expected.size(); i++) {
+            try {
+                assertSame.accept(expected.get(i), actual.get(i));
+            } catch (AssertionError e) {
+                throw new AssertionError(kind + " " + i + ": " + e.getMessage(), e);
+            }
+        }
+    }
+
+    private static void assertSameWarehouse(CodeGo2019.Warehouse expected, CodeGo2019.Warehouse actual) {
+        assertEquals(expected.toName(), actual.toName());
+        assertEquals(expected.index(), actual.index());
+    }
+}
@@ -0,0 +1,91 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link CodeGo2019.IncrementalAllocator} against a batch run of its current orders, in arrival order, on a fresh
+ * manager: after every insertion or cancellation, both its allocation and the one built from the changes it
+ * returned must equal the batch one.
+ */
+class IncrementalAllocatorTest {
+
+    @Test
+    void changesMatchABatchRerun() {
+        for (int seed = 0; seed < 60; seed++) {
+            Random random = new Random(seed);
+            CodeGo2019.InputData input = RandomInputs.generate(random, 1 + seed % 4, 120);
+            // orders arrive out of date order, and the late ones are inserted one at a time
+            List<CodeGo2019.Order> late = new ArrayList<>(input.orders);
+            Collections.shuffle(late, random);
+            List<CodeGo2019.Order> current = new ArrayList<>(late.subList(0, 60));
+            late = new ArrayList<>(late.subList(60, late.size()));
+            int checkpointInterval = new int[]{1, 3, 64}[seed % 3];
+            CodeGo2019.IncrementalAllocator allocator =
+                    new CodeGo2019.IncrementalAllocator(input.newShipmentsManager(), checkpointInterval);
+            allocator.addAll(current);
+            Map<Long, String> allocation = batch(input, current);
+            assertSameAllocation(input, current, allocator, allocation, "seed " + seed + ", added");
+            for (int step = 0; !late.isEmpty(); step++) {
+                String message = "seed " + seed + ", step " + step;
+                List<CodeGo2019.IncrementalAllocator.Change> changes;
+                if (current.isEmpty() || random.nextInt(3) != 0) {
+                    CodeGo2019.Order order = late.remove(late.size() - 1);
+                    current.add(order);
+                    changes = allocator.insert(order);
+                } else {
+                    CodeGo2019.Order order = current.remove(random.nextInt(current.size()));
+                    changes = allocator.cancel(order.getOrderId());
+                    assertTrue(changes.get(0).cancelled, message);
+                    assertEquals(order.getOrderId(), changes.get(0).order.getOrderId(), message);
+                }
+                for (CodeGo2019.IncrementalAllocator.Change change : changes) {
+                    if (change.cancelled) {
+                        allocation.remove(change.order.getOrderId());
+                    } else {
+                        allocation.put(change.order.getOrderId(), change.shipmentInfo == null
+                                ? change.rejectReason.name() : change.shipmentInfo.toCsvLine());
+                    }
+                }
+                assertSameAllocation(input, current, allocator, allocation, message);
+            }
+            assertTrue(allocator.cancel(-1).isEmpty(), "an unknown order was cancelled");
+        }
+    }
+
+    private static void assertSameAllocation(CodeGo2019.InputData input, List<CodeGo2019.Order> current,
+                                             CodeGo2019.IncrementalAllocator allocator, Map<Long, String> allocation,
+                                             String message) {
+        assertEquals(current, allocator.getOrders(), message);
+        assertEquals(batch(input, current), allocation, message + ", changes");
+        List<String> expected = new ArrayList<>();
+        input.newShipmentsManager().findBestShipmentInfo(current, 1, new CodeGo2019.ShipmentsManager.Rejects())
+                .forEach(shipmentInfo -> expected.add(shipmentInfo.toCsvLine()));
+        List<String> actual = new ArrayList<>();
+        allocator.getShipmentInfos().forEach(shipmentInfo -> actual.add(shipmentInfo.toCsvLine()));
+        assertEquals(expected, actual, message);
+    }
+
+    /**
+     * @return the result line of every allocated order and the reason of every rejected one, by order id
+     */
+    private static Map<Long, String> batch(CodeGo2019.InputData input, List<CodeGo2019.Order> orders) {
+        CodeGo2019.ShipmentsManager.Rejects rejects = new CodeGo2019.ShipmentsManager.Rejects();
+        Map<Long, String> allocation = new HashMap<>();
+        for (CodeGo2019.ShipmentInfo shipmentInfo : input.newShipmentsManager().findBestShipmentInfo(orders, 1,
+                rejects)) {
+            allocation.put(shipmentInfo.getOrder().getOrderId(), shipmentInfo.toCsvLine());
+        }
+        for (int i = 0; i < rejects.size(); i++) {
+            allocation.put(rejects.orderAt(i).getOrderId(), rejects.reasonAt(i).name());
+        }
+        return allocation;
+    }
+}
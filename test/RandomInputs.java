@@ -0,0 +1,107 @@
+import java.time.DayOfWeek;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Small random inputs for the tests that check an allocation against a brute-force one. Prices come from a short
+ * list and a third of the routes leave every hour, so that totals tie; stock is scarce so that rows run out, some
+ * routes are missing, and orders come in bursts of the same hour around the 2019 change to daylight saving time
+ * of the American warehouses.
+ */
+final class RandomInputs {
+    static final String[] STATES = {"CA", "NY", "TX", "WA"};
+    private static final String[] ZONES = {"America/Chicago", "America/Denver", "Europe/Madrid", "UTC", "Asia/Tokyo"};
+    private static final float[] VOLUME_PRICES = {0.1f, 0.2f, 0.25f, 0.3f};
+    private static final int[] CARRIER_HOURS = {5, 10, 24, 48};
+    private static final LocalDateTime FIRST_ORDER_DATE = LocalDateTime.of(2019, 3, 8, 0, 0);
+    // a departure every hour, which the packages always catch as early as they can, so that the total of a
+    // row is its lower bound
+    private static final List<CodeGo2019.ShippingHour> HOURLY = hourly();
+
+    private RandomInputs() {
+    }
+
+    /**
+     * @param orderCount number of orders, sorted by date
+     */
+    static CodeGo2019.InputData generate(Random random, int itemCount, int orderCount) {
+        CodeGo2019.InputData input = new CodeGo2019.InputData();
+        int warehouseCount = 2 + random.nextInt(5);
+        for (int i = 2; i < warehouseCount; i++) {
+            input.warehouses.register("Warehouse " + i, ZoneId.of(ZONES[random.nextInt(ZONES.length)]));
+        }
+        CodeGo2019.Warehouse[] warehouses = input.warehouses.values();
+
+        input.boxTypes.add(new CodeGo2019.BoxType("S", 1000, 30, 30, 30, 10f));
+        input.boxTypes.add(new CodeGo2019.BoxType("L", 5000, 60, 60, 60, 50f));
+        for (int i = 0; i < itemCount; i++) {
+            input.items.add(new CodeGo2019.Item(itemId(i), 100 + random.nextInt(4000), 10 + random.nextInt(40),
+                    10 + random.nextInt(40), 10 + random.nextInt(40)));
+        }
+        for (CodeGo2019.Warehouse warehouse : warehouses) {
+            for (String state : STATES) {
+                // one route in eight misses one of its parts
+                int missing = random.nextInt(8) == 0 ? random.nextInt(3) : -1;
+                if (missing != 0) {
+                    input.carrierPricings.add(new CodeGo2019.CarrierPricing(warehouse, state,
+                            VOLUME_PRICES[random.nextInt(VOLUME_PRICES.length)]));
+                }
+                if (missing != 1) {
+                    input.departureTimes.add(new CodeGo2019.DepartureTime(warehouse, state,
+                            random.nextInt(3) == 0 ? HOURLY : randomShippingHours(random)));
+                }
+                if (missing != 2) {
+                    input.carrierTimes.add(new CodeGo2019.CarrierTime(warehouse, state,
+                            CARRIER_HOURS[random.nextInt(CARRIER_HOURS.length)]));
+                }
+            }
+        }
+        for (int i = 0; i < itemCount; i++) {
+            for (CodeGo2019.Warehouse warehouse : warehouses) {
+                if (random.nextInt(5) != 0) {
+                    input.stocks.add(new CodeGo2019.Stock(itemId(i), warehouse, random.nextInt(5)));
+                }
+            }
+        }
+        long[] bursts = new long[1 + orderCount / 10];
+        for (int i = 0; i < bursts.length; i++) {
+            bursts[i] = CodeGo2019.EpochMinutes.of(FIRST_ORDER_DATE) + random.nextInt(5 * 24 * 60);
+        }
+        Arrays.sort(bursts);
+        for (int i = 0; i < orderCount; i++) {
+            long orderEpochMinute = bursts[random.nextInt(bursts.length)] + random.nextInt(20);
+            input.orders.add(new CodeGo2019.Order(1000 + i, orderEpochMinute, itemId(random.nextInt(itemCount)),
+                    "City", STATES[random.nextInt(STATES.length)]));
+        }
+        input.orders.sort(CodeGo2019.ShipmentsManager.BY_ORDER_DATE);
+        return input;
+    }
+
+    private static List<CodeGo2019.ShippingHour> randomShippingHours(Random random) {
+        List<CodeGo2019.ShippingHour> shippingHours = new ArrayList<>();
+        for (int j = 1 + random.nextInt(3); j > 0; j--) {
+            shippingHours.add(new CodeGo2019.ShippingHour(DayOfWeek.of(1 + random.nextInt(7)),
+                    LocalTime.of(random.nextInt(24), random.nextBoolean() ? 0 : 30)));
+        }
+        return shippingHours;
+    }
+
+    private static List<CodeGo2019.ShippingHour> hourly() {
+        List<CodeGo2019.ShippingHour> shippingHours = new ArrayList<>();
+        for (DayOfWeek day : DayOfWeek.values()) {
+            for (int hour = 0; hour < 24; hour++) {
+                shippingHours.add(new CodeGo2019.ShippingHour(day, LocalTime.of(hour, 0)));
+            }
+        }
+        return shippingHours;
+    }
+
+    static String itemId(int index) {
+        return String.format("%013d", index);
+    }
+}
@@ -0,0 +1,111 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * The orders of {@link CodeGo2019.ShardedInput}, parsed by chunks and merged, against the same orders read from a
+ * single file and sorted by date: the same orders must come in the same order, ties included.
+ */
+class ShardedInputTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void mergedShardsMatchASingleFile() throws IOException {
+        Random random = new Random(23);
+        Path generated = directory.resolve("generated.txt");
+        CodeGo2019.SyntheticInputGenerator.generate("input001.txt", generated.toString(), 20_000, 300, 4, 23);
+        List<String> lines = Files.readAllLines(generated, StandardCharsets.UTF_8);
+        int ordersHeader = lines.indexOf("---Orders---");
+        List<String> referenceLines = new ArrayList<>(lines.subList(0, ordersHeader + 1));
+        List<String> orderLines = new ArrayList<>(lines.subList(ordersHeader + 1, lines.size()));
+        orderLines.removeIf(String::isEmpty);
+        // shards out of date order, so that runs need their sort and equal dates come from several files
+        Collections.shuffle(orderLines, random);
+
+        // the reference file keeps some orders, the others go to shards of random sizes, some with a header and
+        // some without a final line break
+        int referenceOrders = random.nextInt(1_000);
+        referenceLines.addAll(orderLines.subList(0, referenceOrders));
+        Path reference = directory.resolve("reference.txt");
+        Files.write(reference, referenceLines, StandardCharsets.UTF_8);
+        Path shards = Files.createDirectories(directory.resolve("shards"));
+        int shardCount = 0;
+        for (int start = referenceOrders; start < orderLines.size(); shardCount++) {
+            int end = Math.min(orderLines.size(), start + random.nextInt(3_000));
+            String text = (random.nextBoolean() ? "---Orders---\n" : "")
+                    + String.join("\n", orderLines.subList(start, end)) + (random.nextBoolean() ? "\n" : "");
+            Files.write(shards.resolve(String.format("shard-%03d.txt", shardCount)),
+                    text.getBytes(StandardCharsets.UTF_8));
+            start = end;
+        }
+        assertTrue(shardCount > 5, shardCount + " shards");
+
+        Path single = directory.resolve("single.txt");
+        List<String> singleLines = new ArrayList<>(lines.subList(0, ordersHeader + 1));
+        singleLines.addAll(orderLines);
+        Files.write(single, singleLines, StandardCharsets.UTF_8);
+        CodeGo2019.InputData expected = CodeGo2019.FastCsvReader.readInput(single.toString());
+        expected.orders.sort(CodeGo2019.ShipmentsManager.BY_ORDER_DATE);
+
+        List<Path> shardPaths = CodeGo2019.ShardedInput.listShards(shards.toString());
+        assertEquals(shardCount, shardPaths.size());
+        for (int threads : new int[]{1, 4}) {
+            CodeGo2019.InputData input = new CodeGo2019.InputData();
+            List<List<CodeGo2019.Order>> runs = CodeGo2019.ShardedInput.read(reference.toString(), shardPaths,
+                    threads, input);
+            CodeGo2019.ShardedInput.merge(runs, input.orders);
+            assertSameOrders(expected.orders, input.orders, threads + " threads");
+            assertEquals(expected.stocks.size(), input.stocks.size());
+            assertEquals(expected.items.size(), input.items.size());
+            assertArrayEquals(BatchAllocationTest.write(expected.newShipmentsManager().findBestShipmentInfo(
+                    expected.orders, 1)), BatchAllocationTest.write(input.newShipmentsManager().findBestShipmentInfo(
+                    input.orders, 1)), threads + " threads");
+        }
+
+        // chunks far smaller than the default, down to one line each, with the reference orders as first run
+        for (long chunkSize : new long[]{1, 50, 1_000, 100_000}) {
+            List<List<CodeGo2019.Order>> runs = new ArrayList<>();
+            runs.add(CodeGo2019.ShardedInput.read(reference.toString(), Collections.emptyList(), 1,
+                    new CodeGo2019.InputData()).get(0));
+            List<CodeGo2019.ShardedInput.Chunk> chunks = new ArrayList<>();
+            for (Path shard : shardPaths) {
+                CodeGo2019.ShardedInput.split(shard, chunkSize, chunks);
+            }
+            for (CodeGo2019.ShardedInput.Chunk chunk : chunks) {
+                runs.add(CodeGo2019.ShardedInput.parse(chunk));
+            }
+            List<CodeGo2019.Order> merged = new ArrayList<>();
+            CodeGo2019.ShardedInput.merge(runs, merged);
+            assertSameOrders(expected.orders, merged, "chunks of " + chunkSize + " bytes");
+        }
+    }
+
+    private static void assertSameOrders(List<CodeGo2019.Order> expected, List<CodeGo2019.Order> actual,
+                                         String run) {
+        assertEquals(expected.size(), actual.size(), run + ", number of orders");
+        for (int i = 0; i < expected.size(); i++) {
+            CodeGo2019.Order e = expected.get(i);
+            CodeGo2019.Order a = actual.get(i);
+            String message = run + ", order " + i;
+            assertEquals(e.orderId, a.orderId, message);
+            assertEquals(e.orderEpochMinute, a.orderEpochMinute, message);
+            assertEquals(e.itemId, a.itemId, message);
+            assertEquals(e.city, a.city, message);
+            assertEquals(e.targetState, a.targetState, message);
+        }
+    }
+}
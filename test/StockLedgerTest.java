@@ -0,0 +1,109 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * A batch run on a {@link CodeGo2019.StockLedger} that is cut off after a group commit, with the records of the
+ * next group partly written, then resumed, against an uninterrupted run: both must allocate and reject the
+ * same orders.
+ */
+class StockLedgerTest {
+    private static final int GROUP_SIZE = 100;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void resumedRunMatchesAnUninterruptedOne() throws IOException {
+        Random random = new Random(25);
+        // scarce stock and missing routes, so that the log holds rejects as well as stock rows
+        CodeGo2019.InputData input = RandomInputs.generate(random, 40, 4_000);
+        CodeGo2019.ShipmentsManager.Rejects expectedRejects = new CodeGo2019.ShipmentsManager.Rejects();
+        byte[] expected = BatchAllocationTest.write(input.newShipmentsManager().findBestShipmentInfo(input.orders,
+                1, expectedRejects));
+        assertTrue(expectedRejects.size() > 0 && expectedRejects.size() < input.orders.size(),
+                expectedRejects.size() + " orders rejected");
+        for (int threads : new int[]{1, 4}) {
+            for (boolean truncated : new boolean[]{false, true}) {
+                String run = threads + " threads" + (truncated ? ", truncated log" : ", unforced records");
+                Path ledgerDirectory = directory.resolve("ledger-" + threads + "-" + truncated);
+                CodeGo2019.ShipmentsManager.Rejects rejects = new CodeGo2019.ShipmentsManager.Rejects();
+                assertArrayEquals(expected, allocate(input, ledgerDirectory, threads, rejects), run);
+                assertSameRejects(expectedRejects, rejects, run);
+
+                long committed = (1 + random.nextInt(input.orders.size() / GROUP_SIZE - 1)) * (long) GROUP_SIZE;
+                cutOff(ledgerDirectory.resolve("reservations.log"), committed, truncated, random);
+                rejects = new CodeGo2019.ShipmentsManager.Rejects();
+                CodeGo2019.StockLedger ledger = new CodeGo2019.StockLedger(ledgerDirectory, GROUP_SIZE);
+                List<CodeGo2019.ShipmentInfo> shipmentInfos;
+                try {
+                    shipmentInfos = input.newShipmentsManager().findBestShipmentInfo(input.orders, threads, rejects,
+                            ledger);
+                } finally {
+                    ledger.close();
+                }
+                assertTrue(ledger.toString().startsWith("stock ledger: " + committed + " orders resumed"),
+                        run + ": " + ledger);
+                assertArrayEquals(expected, BatchAllocationTest.write(shipmentInfos), run + ", resumed");
+                assertSameRejects(expectedRejects, rejects, run + ", resumed");
+            }
+        }
+    }
+
+    private static byte[] allocate(CodeGo2019.InputData input, Path ledgerDirectory, int threads,
+                                   CodeGo2019.ShipmentsManager.Rejects rejects) throws IOException {
+        try (CodeGo2019.StockLedger ledger = new CodeGo2019.StockLedger(ledgerDirectory, GROUP_SIZE)) {
+            return BatchAllocationTest.write(input.newShipmentsManager().findBestShipmentInfo(input.orders, threads,
+                    rejects, ledger));
+        }
+    }
+
+    /**
+     * Leaves the log as a crash right after the group commit of the given number of records would: the records
+     * of the next group are written but not committed, garbage here, or cut off in the middle of a record.
+     */
+    private static void cutOff(Path log, long committed, boolean truncated, Random random) throws IOException {
+        try (FileChannel channel = FileChannel.open(log, StandardOpenOption.READ, StandardOpenOption.WRITE)) {
+            ByteBuffer count = ByteBuffer.allocate(8).order(ByteOrder.BIG_ENDIAN);
+            count.putLong(0, committed);
+            channel.write(count, CodeGo2019.StockLedger.COMMITTED_OFFSET);
+            long start = CodeGo2019.StockLedger.HEADER_SIZE + committed * CodeGo2019.StockLedger.RECORD_SIZE;
+            if (truncated) {
+                channel.truncate(start + random.nextInt(GROUP_SIZE * CodeGo2019.StockLedger.RECORD_SIZE));
+            } else {
+                byte[] garbage = new byte[GROUP_SIZE * CodeGo2019.StockLedger.RECORD_SIZE];
+                random.nextBytes(garbage);
+                channel.write(ByteBuffer.wrap(garbage), start);
+            }
+        }
+    }
+
+    private static void assertSameRejects(CodeGo2019.ShipmentsManager.Rejects expected,
+                                          CodeGo2019.ShipmentsManager.Rejects actual, String run) {
+        assertEquals(rejectLines(expected), rejectLines(actual), run);
+    }
+
+    private static List<String> rejectLines(CodeGo2019.ShipmentsManager.Rejects rejects) {
+        List<String> lines = new ArrayList<>();
+        for (int i = 0; i < rejects.size(); i++) {
+            lines.add(rejects.orderAt(i).getOrderId() + ";" + rejects.reasonAt(i));
+        }
+        // threads reject the orders of different items in any order
+        Collections.sort(lines);
+        return lines;
+    }
+}
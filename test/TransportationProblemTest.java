@@ -0,0 +1,93 @@
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+
+/**
+ * {@link CodeGo2019.ShipmentsManager.TransportationProblem} against a brute force over every assignment of small
+ * random instances: the most orders assigned, then the lowest summed cost, within the capacities and without
+ * the pairs that have no cost.
+ */
+class TransportationProblemTest {
+
+    @Test
+    void solvesSmallInstancesOptimally() {
+        Random random = new Random(19);
+        for (int instance = 0; instance < 2_000; instance++) {
+            int orders = 1 + random.nextInt(7);
+            int[] capacities = new int[1 + random.nextInt(3)];
+            for (int column = 0; column < capacities.length; column++) {
+                capacities[column] = random.nextInt(4);
+            }
+            double[][] costs = new double[orders][capacities.length];
+            for (int order = 0; order < orders; order++) {
+                for (int column = 0; column < capacities.length; column++) {
+                    // one pair in five has no route; whole costs tie, fractional ones do not
+                    costs[order][column] = random.nextInt(5) == 0 ? Double.POSITIVE_INFINITY
+                            : random.nextBoolean() ? random.nextInt(4) : random.nextDouble() * 10;
+                }
+            }
+            assertOptimal(costs, capacities, "instance " + instance);
+        }
+    }
+
+    private static void assertOptimal(double[][] costs, int[] capacities, String message) {
+        CodeGo2019.ShipmentsManager.TransportationProblem problem =
+                new CodeGo2019.ShipmentsManager.TransportationProblem(costs.length, capacities);
+        for (int order = 0; order < costs.length; order++) {
+            for (int column = 0; column < capacities.length; column++) {
+                if (costs[order][column] != Double.POSITIVE_INFINITY) {
+                    problem.setCost(order, column, costs[order][column]);
+                }
+            }
+        }
+        int[] assignment = problem.solve();
+        assertEquals(costs.length, assignment.length, message);
+        int[] counts = new int[capacities.length];
+        int assigned = 0;
+        double cost = 0;
+        for (int order = 0; order < costs.length; order++) {
+            int column = assignment[order];
+            if (column >= 0) {
+                assertNotEquals(Double.POSITIVE_INFINITY, costs[order][column], message + ", order " + order);
+                counts[column]++;
+                assigned++;
+                cost += costs[order][column];
+            }
+        }
+        for (int column = 0; column < capacities.length; column++) {
+            assertTrue(counts[column] <= capacities[column], message + ", column " + column + " over capacity");
+        }
+        double[] best = bruteForce(costs, capacities, new int[capacities.length], 0);
+        assertEquals(best[0], assigned, message + ", orders assigned");
+        assertEquals(best[1], cost, 1e-9, message + ", summed cost");
+    }
+
+    /**
+     * @return the most orders that can be assigned from the given one on, and the lowest cost of assigning them
+     */
+    private static double[] bruteForce(double[][] costs, int[] capacities, int[] counts, int order) {
+        if (order == costs.length) {
+            return new double[]{0, 0};
+        }
+        // rejected
+        double[] best = bruteForce(costs, capacities, counts, order + 1);
+        for (int column = 0; column < capacities.length; column++) {
+            if (counts[column] == capacities[column] || costs[order][column] == Double.POSITIVE_INFINITY) {
+                continue;
+            }
+            counts[column]++;
+            double[] rest = bruteForce(costs, capacities, counts, order + 1);
+            counts[column]--;
+            double assigned = rest[0] + 1;
+            double cost = rest[1] + costs[order][column];
+            if (assigned > best[0] || assigned == best[0] && cost < best[1]) {
+                best = new double[]{assigned, cost};
+            }
+        }
+        return best;
+    }
+}
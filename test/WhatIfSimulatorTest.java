@@ -0,0 +1,127 @@
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+/**
+ * Scenarios of {@link CodeGo2019.WhatIfSimulator} run concurrently against the same scenarios run one after the
+ * other: every result and every line written must be the same.
+ */
+class WhatIfSimulatorTest {
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void concurrentScenariosMatchASequentialRun() throws IOException {
+        CodeGo2019.InputData input = generatedInput();
+        CodeGo2019.WhatIfSimulator simulator = new CodeGo2019.WhatIfSimulator(input,
+                CodeGo2019.ShipmentsManager.ShippingCostCache.AUTO_CAPACITY, new CodeGo2019.RunMetrics());
+        List<CodeGo2019.ShipmentsManager.Scenario> scenarios = scenarios(input, new Random(20));
+        List<CodeGo2019.WhatIfSimulator.ScenarioResult> expected = simulator.runAll(scenarios, 1);
+        List<CodeGo2019.WhatIfSimulator.ScenarioResult> actual = simulator.runAll(scenarios, 4);
+        assertEquals(expected.size(), actual.size());
+        int changes = 0;
+        for (int i = 0; i < expected.size(); i++) {
+            CodeGo2019.WhatIfSimulator.ScenarioResult e = expected.get(i);
+            CodeGo2019.WhatIfSimulator.ScenarioResult a = actual.get(i);
+            assertEquals(e.name, a.name);
+            assertEquals(Float.floatToIntBits(e.totalShipmentPrice), Float.floatToIntBits(a.totalShipmentPrice),
+                    e.name);
+            assertEquals(e.rejects.toString(), a.rejects.toString(), e.name);
+            assertEquals(e.shipmentInfos.size(), a.shipmentInfos.size(), e.name);
+            for (int j = 0; j < e.shipmentInfos.size(); j++) {
+                assertEquals(e.shipmentInfos.get(j).toCsvLine(), a.shipmentInfos.get(j).toCsvLine(), e.name);
+            }
+            assertEquals(e.changes.size(), a.changes.size(), e.name);
+            for (int j = 0; j < e.changes.size(); j++) {
+                assertEquals(toCsvLine(e.changes.get(j)[0]), toCsvLine(a.changes.get(j)[0]), e.name);
+                assertEquals(toCsvLine(e.changes.get(j)[1]), toCsvLine(a.changes.get(j)[1]), e.name);
+            }
+            changes += e.changes.size();
+        }
+        assertTrue(changes > 0, "no scenario changed an order");
+    }
+
+    @Test
+    void concurrentScenariosWriteTheBytesOfASequentialRun() throws IOException {
+        CodeGo2019.InputData input = generatedInput();
+        List<String> lines = new ArrayList<>();
+        Random random = new Random(21);
+        for (int i = 0; i < 16; i++) {
+            CodeGo2019.CarrierPricing pricing = input.carrierPricings.get(random.nextInt(input.carrierPricings.size()));
+            CodeGo2019.CarrierTime time = input.carrierTimes.get(random.nextInt(input.carrierTimes.size()));
+            lines.add("scenario s" + i);
+            lines.add("pricing " + pricing.getWarehouse().toName() + ";" + pricing.getTargetState() + ";"
+                    + (pricing.getVolumePrice() * (0.5f + random.nextFloat())));
+            lines.add("carriertime " + time.getWarehouse().toName() + ";" + time.getTargetState() + ";"
+                    + (1 + random.nextInt(72)));
+        }
+        Path scenarios = directory.resolve("scenarios.txt");
+        Files.write(scenarios, lines, StandardCharsets.UTF_8);
+        byte[] expected = run(scenarios, 1);
+        assertTrue(new String(expected, StandardCharsets.UTF_8).contains(" => "), "no scenario changed an order");
+        assertArrayEquals(expected, run(scenarios, 4));
+    }
+
+    private byte[] run(Path scenarios, int threads) throws IOException {
+        Path output = directory.resolve("whatif-" + threads + ".txt");
+        CodeGo2019.RunOptions options = CodeGo2019.RunOptions.parse(new String[]{
+                "--mode=whatif", "--input=" + directory.resolve("generated.txt"), "--output=" + output,
+                "--scenarios=" + scenarios, "--threads=" + threads});
+        CodeGo2019.WhatIfSimulator.run(options, new CodeGo2019.RunMetrics());
+        return Files.readAllBytes(output);
+    }
+
+    private CodeGo2019.InputData generatedInput() throws IOException {
+        Path generated = directory.resolve("generated.txt");
+        CodeGo2019.SyntheticInputGenerator.generate("input001.txt", generated.toString(), 5_000, 200, 4, 20);
+        return CodeGo2019.FastCsvReader.readInput(generated.toString());
+    }
+
+    /**
+     * @return scenarios that change the price or the carrier time of random routes, or scale the stock of
+     *     random rows
+     */
+    private static List<CodeGo2019.ShipmentsManager.Scenario> scenarios(CodeGo2019.InputData input,
+                                                                         Random random) {
+        List<CodeGo2019.ShipmentsManager.Scenario> scenarios = new ArrayList<>();
+        for (int i = 0; i < 24; i++) {
+            CodeGo2019.ShipmentsManager.Scenario scenario = new CodeGo2019.ShipmentsManager.Scenario("s" + i);
+            for (int j = 0; j < 3; j++) {
+                switch (random.nextInt(3)) {
+                    case 0:
+                        CodeGo2019.CarrierPricing pricing =
+                                input.carrierPricings.get(random.nextInt(input.carrierPricings.size()));
+                        scenario.setCarrierPricing(pricing.getWarehouse(), pricing.getTargetState(),
+                                pricing.getVolumePrice() * (0.5f + random.nextFloat()));
+                        break;
+                    case 1:
+                        CodeGo2019.CarrierTime time = input.carrierTimes.get(random.nextInt(input.carrierTimes.size()));
+                        scenario.setCarrierTime(time.getWarehouse(), time.getTargetState(), 1 + random.nextInt(72));
+                        break;
+                    default:
+                        CodeGo2019.Stock stock = input.stocks.get(random.nextInt(input.stocks.size()));
+                        scenario.scaleStock(stock.getItemId(), stock.getWarehouse(), random.nextDouble() * 2);
+                        break;
+                }
+            }
+            scenarios.add(scenario);
+        }
+        return scenarios;
+    }
+
+    private static String toCsvLine(CodeGo2019.ShipmentInfo shipmentInfo) {
+        return shipmentInfo == null ? "REJECTED" : shipmentInfo.toCsvLine();
+    }
+}